@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import com.github.mikephil.charting.data.Entry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.chromium.latency.walt.MathUtils.interp;
+
+/**
+ * Number crunching for the accelerometer latency test.
+ *
+ * Kept separate from AccelerometerFragment so it can run on a plain JVM, e.g. in benchmarks.
+ */
+class AccelerometerAnalyzer {
+
+    static final double SHIFT_STEP = 0.1;  // milliseconds
+    static final double MAX_SHIFT = 40;  // milliseconds
+
+    static List<Entry> smoothEntries(List<Entry> entries, int windowSize) {
+        List<Entry> smoothEntries = new ArrayList<>();
+        for (int i = windowSize; i < entries.size() - windowSize; i++) {
+            final float time = entries.get(i).getX();
+            float avg = 0;
+            for (int j = i - windowSize; j <= i + windowSize; j++) {
+                avg += entries.get(j).getY() / (2 * windowSize + 1);
+            }
+            smoothEntries.add(new Entry(time, avg));
+        }
+        return smoothEntries;
+    }
+
+    /**
+     * Returns the latency of the phone accelerometer events relative to the WALT ones, in ms.
+     *
+     * Scores shifts the same way as findShifts(), but with CrossCorrelator instead of scoring
+     * each of them separately, and with sub-step resolution. NaN if there are no phone events or
+     * less than two WALT ones.
+     */
+    static double findBestShift(List<Entry> phoneEntries, List<Entry> waltEntries) {
+        double[] phoneTimes = new double[phoneEntries.size()];
+        double[] phoneValues = new double[phoneEntries.size()];
+        double[] waltTimes = new double[waltEntries.size()];
+        double[] waltValues = new double[waltEntries.size()];
+
+        for (int i = 0; i < phoneTimes.length; i++) {
+            phoneTimes[i] = phoneEntries.get(i).getX();
+            phoneValues[i] = phoneEntries.get(i).getY();
+        }
+
+        for (int i = 0; i < waltTimes.length; i++) {
+            waltTimes[i] = waltEntries.get(i).getX();
+            waltValues[i] = waltEntries.get(i).getY();
+        }
+
+        return new CrossCorrelator(SHIFT_STEP, MAX_SHIFT)
+                .findBestShift(phoneTimes, phoneValues, waltTimes, waltValues);
+    }
+
+    static double[] findShifts(List<Entry> phoneEntries, List<Entry> waltEntries) {
+        double[] phoneTimes = new double[phoneEntries.size()];
+        double[] phoneValues = new double[phoneEntries.size()];
+        double[] waltTimes = new double[waltEntries.size()];
+        double[] waltValues = new double[waltEntries.size()];
+
+        for (int i = 0; i < phoneTimes.length; i++) {
+            phoneTimes[i] = phoneEntries.get(i).getX();
+            phoneValues[i] = phoneEntries.get(i).getY();
+        }
+
+        for (int i = 0; i < waltTimes.length; i++) {
+            waltTimes[i] = waltEntries.get(i).getX();
+            waltValues[i] = waltEntries.get(i).getY();
+        }
+
+        double[] shiftCorrelations = new double[401];
+        for (int i = 0; i < shiftCorrelations.length; i++) {
+            double shift = i / 10.;
+            final double[] shiftedPhoneTimes = new double[phoneTimes.length];
+            for (int j = 0; j < phoneTimes.length; j++) {
+                shiftedPhoneTimes[j] = phoneTimes[j] - shift;
+            }
+            final double[] interpolatedValues = interp(shiftedPhoneTimes, waltTimes, waltValues);
+            double sum = 0;
+            for (int j = 0; j < shiftedPhoneTimes.length; j++) {
+                // Calculate square dot product of phone and walt values
+                sum += Math.pow(phoneValues[j] * interpolatedValues[j], 2);
+            }
+            shiftCorrelations[i] = sum;
+        }
+        return shiftCorrelations;
+    }
+}
@@ -45,8 +45,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.chromium.latency.walt.Utils.argmax;
-import static org.chromium.latency.walt.Utils.interp;
 import static org.chromium.latency.walt.Utils.max;
 import static org.chromium.latency.walt.Utils.mean;
 import static org.chromium.latency.walt.Utils.min;
@@ -113,10 +111,10 @@ public class AccelerometerFragment extends Fragment implements
         @Override
         public void run() {
             waltDevice.setTriggerHandler(triggerHandler);
-            try {
-                waltDevice.command(WaltDevice.CMD_ACCELEROMETER);
-            } catch (IOException e) {
-                logger.log("Error sending command CMD_ACCELEROMETER: " + e.getMessage());
+            // The data goes to onReceiveRaw(), keep other replies out of it
+            waltDevice.pauseSkewSampling();
+            // The listener is running, it picks up the ack
+            if (waltDevice.commandNoWait(WaltDevice.CMD_ACCELEROMETER).isCompletedExceptionally()) {
                 startButton.setEnabled(true);
                 return;
             }
@@ -133,65 +131,20 @@ public class AccelerometerFragment extends Fragment implements
 
     static List<Entry> getEntriesFromString(final String latencyString) {
         List<Entry> entries = new ArrayList<>();
-        // "o" marks the start of the accelerometer data
-        int startIndex = latencyString.indexOf("o") + 1;
-
-        String[] brightnessStrings =
-                latencyString.substring(startIndex).trim().split("\n");
-        for (String str : brightnessStrings) {
-            String[] arr = str.split(" ");
-            final float timestampMs = Integer.parseInt(arr[0]) / 1000f;
-            final float value = Integer.parseInt(arr[1]);
-            entries.add(new Entry(timestampMs, value));
-        }
-        return entries;
-    }
-
-    static List<Entry> smoothEntries(List<Entry> entries, int windowSize) {
-        List<Entry> smoothEntries = new ArrayList<>();
-        for (int i = windowSize; i < entries.size() - windowSize; i++) {
-            final float time = entries.get(i).getX();
-            float avg = 0;
-            for (int j = i - windowSize; j <= i + windowSize; j++) {
-                avg += entries.get(j).getY() / (2 * windowSize + 1);
-            }
-            smoothEntries.add(new Entry(time, avg));
-        }
-        return smoothEntries;
-    }
-
-    static double[] findShifts(List<Entry> phoneEntries, List<Entry> waltEntries) {
-        double[] phoneTimes = new double[phoneEntries.size()];
-        double[] phoneValues = new double[phoneEntries.size()];
-        double[] waltTimes = new double[waltEntries.size()];
-        double[] waltValues = new double[waltEntries.size()];
-
-        for (int i = 0; i < phoneTimes.length; i++) {
-            phoneTimes[i] = phoneEntries.get(i).getX();
-            phoneValues[i] = phoneEntries.get(i).getY();
-        }
-
-        for (int i = 0; i < waltTimes.length; i++) {
-            waltTimes[i] = waltEntries.get(i).getX();
-            waltValues[i] = waltEntries.get(i).getY();
-        }
-
-        double[] shiftCorrelations = new double[401];
-        for (int i = 0; i < shiftCorrelations.length; i++) {
-            double shift = i / 10.;
-            final double[] shiftedPhoneTimes = new double[phoneTimes.length];
-            for (int j = 0; j < phoneTimes.length; j++) {
-                shiftedPhoneTimes[j] = phoneTimes[j] - shift;
-            }
-            final double[] interpolatedValues = interp(shiftedPhoneTimes, waltTimes, waltValues);
-            double sum = 0;
-            for (int j = 0; j < shiftedPhoneTimes.length; j++) {
-                // Calculate square dot product of phone and walt values
-                sum += Math.pow(phoneValues[j] * interpolatedValues[j], 2);
+        // One "time value" line per sample, the "o" ack went to the command
+        String[] accelerometerStrings = latencyString.trim().split("\n");
+        for (String str : accelerometerStrings) {
+            String[] arr = str.trim().split("\\s+");
+            if (arr.length < 2) continue;
+            try {
+                final float timestampMs = Integer.parseInt(arr[0]) / 1000f;
+                final float value = Integer.parseInt(arr[1]);
+                entries.add(new Entry(timestampMs, value));
+            } catch (NumberFormatException e) {
+                // Not a sample, leave it out
             }
-            shiftCorrelations[i] = sum;
         }
-        return shiftCorrelations;
+        return entries;
     }
 
     @Override
@@ -275,23 +228,34 @@ public class AccelerometerFragment extends Fragment implements
     private void calculateAndDrawLatencyChart(final String latencyString) {
         List<Entry> phoneEntries = new ArrayList<>();
         List<Entry> waltEntries = getEntriesFromString(latencyString);
-        List<Entry> waltSmoothEntries = smoothEntries(waltEntries, 4);
+        List<Entry> waltSmoothEntries = AccelerometerAnalyzer.smoothEntries(waltEntries, 4);
 
         for (AccelerometerEvent e : phoneAccelerometerData) {
             phoneEntries.add(new Entry(e.callbackTimeMs, e.value));
         }
 
-        while (phoneEntries.get(0).getX() < waltSmoothEntries.get(0).getX()) {
+        if (waltSmoothEntries.size() < 2) {
+            logger.log("Not enough WALT accelerometer data to calculate the latency");
+            return;
+        }
+
+        while (!phoneEntries.isEmpty() &&
+                phoneEntries.get(0).getX() < waltSmoothEntries.get(0).getX()) {
             // This event is earlier than any walt event, so discard it
             phoneEntries.remove(0);
         }
 
-        while (phoneEntries.get(phoneEntries.size() - 1).getX() >
+        while (!phoneEntries.isEmpty() && phoneEntries.get(phoneEntries.size() - 1).getX() >
                 waltSmoothEntries.get(waltSmoothEntries.size() - 1).getX()) {
             // This event is later than any walt event, so discard it
             phoneEntries.remove(phoneEntries.size() - 1);
         }
 
+        if (phoneEntries.isEmpty()) {
+            logger.log("No phone accelerometer events overlap with the WALT ones");
+            return;
+        }
+
         // Adjust waltEntries so min and max is the same as phoneEntries
         float phoneMean = mean(phoneEntries);
         float phoneMax = max(phoneEntries);
@@ -308,8 +272,7 @@ public class AccelerometerFragment extends Fragment implements
             e.setY(e.getY() - phoneMean);
         }
 
-        double[] shifts = findShifts(phoneEntries, waltSmoothEntries);
-        double bestShift = argmax(shifts) / 10d;
+        double bestShift = AccelerometerAnalyzer.findBestShift(phoneEntries, waltSmoothEntries);
         logger.log(String.format("Accelerometer latency: %.1fms", bestShift));
 
         double[] deltasKernelToCallback = new double[phoneAccelerometerData.size()];
@@ -241,10 +241,10 @@ public class AudioFragment extends Fragment implements View.OnClickListener,
         } else {
             if (!audioTest.deltas_mic.isEmpty()) {
                 latencyChart.setLegendEnabled(true);
-                latencyChart.setLabel(String.format(Locale.US, "Median=%.1f ms", Utils.median(audioTest.deltas_mic)));
+                latencyChart.setLabel(String.format(Locale.US, "Median=%.1f ms", audioTest.deltas_mic.median()));
             } else if (!audioTest.deltas_queue2wire.isEmpty()) {
                 latencyChart.setLegendEnabled(true);
-                latencyChart.setLabel(String.format(Locale.US, "Median=%.1f ms", Utils.median(audioTest.deltas_queue2wire)));
+                latencyChart.setLabel(String.format(Locale.US, "Median=%.1f ms", audioTest.deltas_queue2wire.median()));
             }
         }
         LogUploader.uploadIfAutoEnabled(getContext());
@@ -260,6 +260,10 @@ public class AudioFragment extends Fragment implements View.OnClickListener,
     @Override
     public void onTestPartialResult(double value) {
         latencyChart.addEntry(value);
+        final LatencyHistogram stats = audioTest.liveStats;
+        latencyChart.setLegendEnabled(true);
+        latencyChart.setLabel(String.format(Locale.US, "p50=%.1f p90=%.1f p99=%.1f ms",
+                stats.getPercentile(50), stats.getPercentile(90), stats.getPercentile(99)));
     }
 
     private void drawWaveformChart() {
@@ -21,7 +21,6 @@ import android.media.AudioManager;
 import android.os.Handler;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Locale;
 
 import static org.chromium.latency.walt.Utils.getIntPreference;
@@ -66,13 +65,17 @@ class AudioTest extends BaseTest {
     private static int recorderSyncAfterRepetitions = 10;
     private final int threshold;
 
-    ArrayList<Double> deltas_mic = new ArrayList<>();
-    private ArrayList<Double> deltas_play2queue = new ArrayList<>();
-    ArrayList<Double> deltas_queue2wire = new ArrayList<>();
-    private ArrayList<Double> deltasJ2N = new ArrayList<>();
+    SampleBuffer deltas_mic = new SampleBuffer();
+    private SampleBuffer deltas_play2queue = new SampleBuffer();
+    SampleBuffer deltas_queue2wire = new SampleBuffer();
+    private SampleBuffer deltasJ2N = new SampleBuffer();
 
     long lastBeepTime;
 
+    // Recordings are saved with the enqueue time, along with the beep start from WALT and a mark
+    // 'C' for the recorder callback. Playback saves marks 'P' for playTone and 'Q' for enqueue.
+    private final EventCapture capture;
+
     public static native long playTone();
     public static native void startWarmTest();
     public static native void stopTests();
@@ -88,7 +91,12 @@ class AudioTest extends BaseTest {
     public static native long getTePlay();
 
     AudioTest(Context context) {
-        super(context);
+        this(context, WaltDevice.getInstance(context));
+    }
+
+    AudioTest(Context context, WaltDevice waltDevice) {
+        super(context, waltDevice);
+        capture = new EventCapture(context);
         playbackRepetitions = getIntPreference(context, R.string.preference_audio_out_reps, 10);
         recordingRepetitions = getIntPreference(context, R.string.preference_audio_in_reps, 5);
         threshold = getIntPreference(context, R.string.preference_audio_in_threshold, 5000);
@@ -110,8 +118,9 @@ class AudioTest extends BaseTest {
         logger.log("Audio engine created");
     }
 
-    AudioTest(Context context, AutoRunFragment.ResultHandler resultHandler) {
-        this(context);
+    AudioTest(Context context, WaltDevice waltDevice,
+              AutoRunFragment.ResultHandler resultHandler) {
+        this(context, waltDevice);
         this.resultHandler = resultHandler;
     }
 
@@ -148,6 +157,7 @@ class AudioTest extends BaseTest {
     }
 
     void teardown() {
+        capture.finish(waltDevice.clock);
         destroyEngine();
         logger.log("Audio engine destroyed");
     }
@@ -158,12 +168,14 @@ class AudioTest extends BaseTest {
         deltas_play2queue.clear();
         deltas_queue2wire.clear();
         deltasJ2N.clear();
+        liveStats.clear();
 
         int framesToRecord = (int) (0.001 * msToRecord * frameRate);
         createAudioRecorder(frameRate, framesToRecord);
         logger.log("Audio recorder created; starting test");
 
         requestedBeeps = 0;
+        capture.start("audio_in", waltDevice.clock);
         doRecordingTestRepetition();
     }
 
@@ -181,6 +193,7 @@ class AudioTest extends BaseTest {
                 if (testStateListener != null) testStateListener.onTestStoppedWithError();
                 return;
             }
+            capture.clock(waltDevice.clock);
         }
 
         requestedBeeps++;
@@ -213,6 +226,8 @@ class AudioTest extends BaseTest {
         deltas_play2queue.clear();
         deltas_queue2wire.clear();
         deltasJ2N.clear();
+        liveStats.clear();
+        capture.start("audio_out", waltDevice.clock);
 
         logger.log("Starting playback test");
 
@@ -231,33 +246,34 @@ class AudioTest extends BaseTest {
             handler.removeCallbacks(playBeepRunnable);
 
             detectedBeeps++;
-            long enqueueTime = getTePlay() - waltDevice.clock.baseTime;
+            long enqueueTime = waltDevice.clock.toRemote(getTePlay());
+            capture.trigger(tmsg);
+            capture.mark('P', lastBeepTime, 0);
+            capture.mark('Q', enqueueTime, 0);
             double dt_play2queue = (enqueueTime - lastBeepTime) / 1000.;
             deltas_play2queue.add(dt_play2queue);
 
             double dt_queue2wire = (tmsg.t - enqueueTime) / 1000.;
             deltas_queue2wire.add(dt_queue2wire);
 
-            logger.log(String.format(Locale.US,
-                    "Beep detected, initiatedBeeps=%d, detectedBeeps=%d\n" +
+            logger.log("Beep detected, initiatedBeeps=%d, detectedBeeps=%d\n" +
                             "dt native playTone to Enqueue = %.2f ms\n" +
                             "dt Enqueue to wire  = %.2f ms\n",
                     initiatedBeeps, detectedBeeps,
                     dt_play2queue,
-                    dt_queue2wire
-            ));
+                    dt_queue2wire);
 
             if (traceLogger != null) {
-                traceLogger.log(lastBeepTime + waltDevice.clock.baseTime,
-                        enqueueTime + waltDevice.clock.baseTime,
+                traceLogger.log(waltDevice.clock.toLocal(lastBeepTime),
+                        waltDevice.clock.toLocal(enqueueTime),
                         "Play-to-queue",
                         "Bar starts at play time, ends when enqueued");
-                traceLogger.log(enqueueTime + waltDevice.clock.baseTime,
-                        tmsg.t + waltDevice.clock.baseTime,
+                traceLogger.log(waltDevice.clock.toLocal(enqueueTime),
+                        waltDevice.clock.toLocal(tmsg.t),
                         "Enqueue-to-wire",
                         "Bar starts at enqueue time, ends when beep is detected");
             }
-            if (testStateListener != null) testStateListener.onTestPartialResult(dt_queue2wire);
+            reportPartialResult(dt_queue2wire);
 
             // Schedule another beep soon-ish
             handler.postDelayed(playBeepRunnable, (long) (period + Math.random() * 50 - 25));
@@ -294,25 +310,20 @@ class AudioTest extends BaseTest {
                 }
             }
 
-            try {
-                waltDevice.command(WaltDevice.CMD_AUDIO);
-            } catch (IOException e) {
-                logger.log("Error sending command AUDIO: " + e.getMessage());
+            if (waltDevice.commandNoWait(WaltDevice.CMD_AUDIO).isCompletedExceptionally()) {
                 return;
             }
             long javaBeepTime = waltDevice.clock.micros();
-            lastBeepTime = playTone() - waltDevice.clock.baseTime;
+            lastBeepTime = waltDevice.clock.toRemote(playTone());
             double dtJ2N = (lastBeepTime - javaBeepTime)/1000.;
             deltasJ2N.add(dtJ2N);
             if (traceLogger != null) {
-                traceLogger.log(javaBeepTime + waltDevice.clock.baseTime,
-                        lastBeepTime + waltDevice.clock.baseTime, "Java-to-native",
+                traceLogger.log(waltDevice.clock.toLocal(javaBeepTime),
+                        waltDevice.clock.toLocal(lastBeepTime), "Java-to-native",
                         "Bar starts when Java tells native to beep and ends when buffer written in native");
             }
-            logger.log(String.format(Locale.US,
-                    "Called playTone(), dt Java to native = %.3f ms",
-                    dtJ2N
-            ));
+            logger.log("Called playTone(), dt Java to native = %.3f ms",
+                    dtJ2N);
 
 
             // Repost doBeep to some far away time to blink again even if nothing arrives from
@@ -354,10 +365,13 @@ class AudioTest extends BaseTest {
     private Runnable processRecordingRunnable = new Runnable() {
         @Override
         public void run() {
-            long te = getTeRec() - waltDevice.clock.baseTime;  // When a buffer was enqueued for recording
-            long tc = getTcRec() - waltDevice.clock.baseTime;  // When callback receiving a recorded buffer fired
+            long te = waltDevice.clock.toRemote(getTeRec());  // When a buffer was enqueued for recording
+            long tc = waltDevice.clock.toRemote(getTcRec());  // When callback receiving a recorded buffer fired
             long tb = last_tb;  // When WALT started a beep (according to WALT clock)
             short[] wave = getRecordedWave();
+            capture.wave(te, frameRate, wave);
+            capture.trigger(WaltDevice.CMD_BEEP, tb);
+            capture.mark('C', tc, 0);
             int noisyAtFrame = 0;  // First frame when some noise starts
             while (noisyAtFrame < wave.length && wave[noisyAtFrame] < threshold)
                 noisyAtFrame++;
@@ -382,17 +396,15 @@ class AudioTest extends BaseTest {
             // the buffer was recorded
             double latencyEnqueue_ms = (tb - te - silent_us) / 1000.;
 
-            logger.log(String.format(Locale.US,
-                    "Processed: L_cb = %.3f ms, L_eq = %.3f ms, noisy frame = %d",
+            logger.log("Processed: L_cb = %.3f ms, L_eq = %.3f ms, noisy frame = %d",
                     latencyCb_ms,
                     latencyEnqueue_ms,
-                    noisyAtFrame
-            ));
+                    noisyAtFrame);
 
-            if (testStateListener != null) testStateListener.onTestPartialResult(latencyCb_ms);
+            reportPartialResult(latencyCb_ms);
             if (traceLogger != null) {
-                traceLogger.log((long) (tb + waltDevice.clock.baseTime + remaining_us),
-                        tc + waltDevice.clock.baseTime,
+                traceLogger.log(waltDevice.clock.toLocal((long) (tb + remaining_us)),
+                        waltDevice.clock.toLocal(tc),
                         "Beep-to-rec-callback",
                         "Bar starts when WALT plays beep and ends when recording callback received");
             }
@@ -407,6 +419,7 @@ class AudioTest extends BaseTest {
         waltDevice.stopListener();
         waltDevice.clearTriggerHandler();
         waltDevice.checkDrift();
+        capture.finish(waltDevice.clock);
 
         // Debug: logger.log("deltas_play2queue = array(" + deltas_play2queue.toString() +")");
         logger.log(String.format(Locale.US,
@@ -420,11 +433,12 @@ class AudioTest extends BaseTest {
                         "-------------------------------\n",
                 audioMode == AudioMode.COLD? "Cold" : "Continuous",
                 detectedBeeps, initiatedBeeps,
-                Utils.median(deltasJ2N),
-                Utils.median(deltas_play2queue),
+                deltasJ2N.median(),
+                deltas_play2queue.median(),
                 framesPerBuffer, frameRate, 1000.0 / frameRate * framesPerBuffer,
-                Utils.median(deltas_queue2wire)
+                deltas_queue2wire.median()
         ));
+        logger.log("Enqueue to wire: " + liveStats.summary());
 
         if (resultHandler != null) {
             resultHandler.onResult(deltas_play2queue, deltas_queue2wire);
@@ -435,6 +449,7 @@ class AudioTest extends BaseTest {
 
     private void finishRecordingMeasurement() {
         waltDevice.checkDrift();
+        capture.finish(waltDevice.clock);
 
         // Debug: logger.log("deltas_mic: " + deltas_mic.toString());
 
@@ -446,8 +461,9 @@ class AudioTest extends BaseTest {
                         "time from sampling the last frame to recorder callback is %.1f ms\n" +
                         "-------------------------------\n",
                 deltas_mic.size(),
-                Utils.median(deltas_mic)
+                deltas_mic.median()
         ));
+        logger.log("Callback latency: " + liveStats.summary());
 
         if (resultHandler != null) {
             resultHandler.onResult(deltas_mic);
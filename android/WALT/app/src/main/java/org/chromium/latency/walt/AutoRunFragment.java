@@ -31,15 +31,19 @@ import android.widget.TextView;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.HashMap;
 
+/**
+ * Runs the tests requested with TEST_ACTION intents. There is one test per WALT at a time, a new
+ * intent for a device that is already busy replaces its test, tests on other devices go on.
+ */
 public class AutoRunFragment extends Fragment {
 
     static final String TEST_ACTION = "org.chromium.latency.walt.START_TEST";
     static final String MODE_COLD = "Cold";
 
-    private WaltDevice waltDevice;
-    private AudioTest toTearDown; // TODO: figure out a better way to destroy the engine
+    // By device name. TODO: figure out a better way to destroy the engine
+    private final HashMap<String, AudioTest> toTearDown = new HashMap<>();
     Handler handler = new Handler();
 
     private class AudioResultHandler implements ResultHandler {
@@ -50,23 +54,18 @@ public class AutoRunFragment extends Fragment {
         }
 
         @Override
-        public void onResult(Iterable[] results) {
+        public void onResult(SampleBuffer[] results) {
             if (results.length == 0) {
                 logger.log("Can't write empty data!");
                 return;
             }
             logger.log("Writing data file");
 
-            Iterator its[] = new Iterator[results.length];
-
-            for (int i = 0; i < results.length; i++) {
-                its[i] = results[i].iterator();
-            }
             try {
-                while (its[0].hasNext()) {
-                    for (Iterator it : its) {
-                        if (it.hasNext()) {
-                            fileWriter.write(it.next().toString() + ",");
+                for (int row = 0; row < results[0].size(); row++) {
+                    for (SampleBuffer result : results) {
+                        if (row < result.size()) {
+                            fileWriter.write(result.get(row) + ",");
                         }
                     }
                     fileWriter.write("\n");
@@ -83,7 +82,20 @@ public class AutoRunFragment extends Fragment {
         }
     }
 
-    private void doTest(@NonNull Bundle args) {
+    /**
+     * Starts the test described by the extras of a TEST_ACTION intent, on the WALT named by the
+     * "Device" extra or the default one.
+     */
+    void doTest(@NonNull Bundle args) {
+        // Several WALTs can be attached, the extra picks one by name, see WaltDeviceRegistry
+        String deviceName = args.getString("Device", null);
+        final String key = deviceName != null ? deviceName : WaltDeviceRegistry.DEFAULT_DEVICE;
+        final WaltDevice waltDevice = WaltDeviceRegistry.getInstance(getContext()).getDevice(key);
+        AudioTest previous = toTearDown.remove(key);
+        if (previous != null) {
+            logger.log("Replacing the running test on " + key);
+            previous.teardown();
+        }
         final int reps = args.getInt("Reps", 10);
         String fileName = args.getString("FileName", null);
         ResultHandler r = null;
@@ -103,7 +115,7 @@ public class AutoRunFragment extends Fragment {
                 testRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        MidiTest midiTest = new MidiTest(getContext(), resultHandler);
+                        MidiTest midiTest = new MidiTest(getContext(), waltDevice, resultHandler);
                         midiTest.setInputRepetitions(reps);
                         midiTest.testMidiIn();
                     }
@@ -114,7 +126,7 @@ public class AutoRunFragment extends Fragment {
                 testRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        MidiTest midiTest = new MidiTest(getContext(), resultHandler);
+                        MidiTest midiTest = new MidiTest(getContext(), waltDevice, resultHandler);
                         midiTest.setOutputRepetitions(reps);
                         midiTest.testMidiOut();
                     }
@@ -125,12 +137,13 @@ public class AutoRunFragment extends Fragment {
                 testRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        AudioTest audioTest = new AudioTest(getContext(), resultHandler);
+                        AudioTest audioTest =
+                                new AudioTest(getContext(), waltDevice, resultHandler);
                         audioTest.setRecordingRepetitions(reps);
                         audioTest.setAudioMode(MODE_COLD.equals(mode) ?
                                 AudioTest.AudioMode.COLD : AudioTest.AudioMode.CONTINUOUS);
                         audioTest.beginRecordingMeasurement();
-                        toTearDown = audioTest;
+                        toTearDown.put(key, audioTest);
                     }
                 };
                 break;
@@ -140,7 +153,8 @@ public class AutoRunFragment extends Fragment {
                 testRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        AudioTest audioTest = new AudioTest(getContext(), resultHandler);
+                        AudioTest audioTest =
+                                new AudioTest(getContext(), waltDevice, resultHandler);
                         audioTest.setPlaybackRepetitions(reps);
                         audioTest.setAudioMode(MODE_COLD.equals(mode) ?
                                 AudioTest.AudioMode.COLD : AudioTest.AudioMode.CONTINUOUS);
@@ -151,7 +165,7 @@ public class AutoRunFragment extends Fragment {
                                     AudioTest.COLD_TEST_PERIOD : AudioTest.CONTINUOUS_TEST_PERIOD);
                         }
                         audioTest.beginPlaybackMeasurement();
-                        toTearDown = audioTest;
+                        toTearDown.put(key, audioTest);
                     }
                 };
                 break;
@@ -159,6 +173,7 @@ public class AutoRunFragment extends Fragment {
         }
 
         // Not sure we need the handler.post() here, but just in case.
+        // Runs right away if the device is connected already
         final Runnable finalTestRunnable = testRunnable;
         waltDevice.setConnectionStateListener(new WaltConnection.ConnectionStateListener() {
             @Override
@@ -170,17 +185,22 @@ public class AutoRunFragment extends Fragment {
             public void onDisconnect() {}
         });
 
+        // Connect only now, connect() may finish before it returns
+        if (deviceName != null && !waltDevice.isConnected()) {
+            waltDevice.connect();
+        }
     }
 
     interface ResultHandler {
-        void onResult(Iterable... r);
+        void onResult(SampleBuffer... r);
     }
 
     @Override
     public void onDestroyView() {
-        if (toTearDown != null) {
-            toTearDown.teardown();
+        for (AudioTest audioTest : toTearDown.values()) {
+            audioTest.teardown();
         }
+        toTearDown.clear();
         super.onDestroyView();
     }
 
@@ -204,7 +224,6 @@ public class AutoRunFragment extends Fragment {
                              Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         logger = SimpleLogger.getInstance(getContext());
-        waltDevice = WaltDevice.getInstance(getContext());
 
         View view = inflater.inflate(R.layout.fragment_auto_run, container, false);
 
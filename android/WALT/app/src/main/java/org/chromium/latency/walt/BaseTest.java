@@ -34,10 +34,19 @@ abstract class BaseTest {
     WaltDevice waltDevice;
     TestStateListener testStateListener = null;
     AutoRunFragment.ResultHandler resultHandler = null;
+    /** Statistics of the partial results of the current run, see reportPartialResult() */
+    final LatencyHistogram liveStats = new LatencyHistogram();
 
     BaseTest(Context context) {
+        this(context, WaltDevice.getInstance(context));
+    }
+
+    /**
+     * @param waltDevice the WALT to measure with, see WaltDeviceRegistry
+     */
+    BaseTest(Context context, WaltDevice waltDevice) {
         this.context = context;
-        waltDevice = WaltDevice.getInstance(context);
+        this.waltDevice = waltDevice;
         logger = SimpleLogger.getInstance(context);
         if (getBooleanPreference(context, R.string.preference_systrace, true)) {
             traceLogger = TraceLogger.getInstance();
@@ -47,4 +56,12 @@ abstract class BaseTest {
     void setTestStateListener(TestStateListener listener) {
         this.testStateListener = listener;
     }
+
+    /**
+     * Adds a sample to liveStats and passes it on to the listener. Call on the main thread.
+     */
+    void reportPartialResult(double value) {
+        liveStats.record(value);
+        if (testStateListener != null) testStateListener.onTestPartialResult(value);
+    }
 }
@@ -27,7 +27,10 @@ import android.hardware.usb.UsbManager;
 import android.support.v4.content.LocalBroadcastManager;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class BaseUsbConnection {
     private static final String USB_PERMISSION_RESPONSE_INTENT = "usb-permission-response";
@@ -39,6 +42,12 @@ public abstract class BaseUsbConnection {
     private BroadcastReceiver currentConnectReceiver;
     private WaltConnection.ConnectionStateListener connectionStateListener;
 
+    // Names of the USB devices reserved by any connection, so that each one finds a different WALT
+    private static final Set<String> devicesInUse = new HashSet<>();
+    private static final AtomicInteger nextConnectionId = new AtomicInteger();
+    // Tells the connect broadcasts of connections to different WALTs with the same VID:PID apart
+    private final int connectionId = nextConnectionId.getAndIncrement();
+
     private UsbManager usbManager;
     protected UsbDevice usbDevice = null;
     protected UsbDeviceConnection usbConnection;
@@ -71,11 +80,14 @@ public abstract class BaseUsbConnection {
 
 
     private String getConnectIntent() {
-        return CONNECT_INTENT + getVid() + ":" + getPid();
+        // Per connection, the callback may be registered before we know which device it gets
+        return CONNECT_INTENT + getVid() + ":" + getPid() + ":" + connectionId;
     }
 
     private String getUsbPermissionResponseIntent() {
-        return USB_PERMISSION_RESPONSE_INTENT + getVid() + ":" + getPid();
+        // Per device, with several WALTs the answers must not get mixed up
+        return USB_PERMISSION_RESPONSE_INTENT + getVid() + ":" + getPid() + ":" +
+                usbDevice.getDeviceName();
     }
 
     public boolean isConnected() {
@@ -120,7 +132,13 @@ public abstract class BaseUsbConnection {
             return;
         }
 
-        this.usbDevice = usbDevice;
+        synchronized (devicesInUse) {
+            if (isInUseByOthers(usbDevice)) {
+                logger.log("Device is in use by another connection");
+                return;
+            }
+            reserve(usbDevice);
+        }
 
         // Request permission
         // This displays a dialog asking user for permission to use the device.
@@ -142,7 +160,7 @@ public abstract class BaseUsbConnection {
 
         usbConnection.close();
         usbConnection = null;
-        usbDevice = null;
+        release();
 
         context.unregisterReceiver(disconnectReceiver);
     }
@@ -177,6 +195,8 @@ public abstract class BaseUsbConnection {
                 broadcastManager.sendBroadcast(new Intent(getConnectIntent()));
             } else {
                 logger.log("Could not get permission to open the USB device");
+                // Let another connection try it
+                release();
             }
             BaseUsbConnection.this.context.unregisterReceiver(respondToUsbPermission);
         }
@@ -196,27 +216,57 @@ public abstract class BaseUsbConnection {
 
         UsbDevice usbDevice = null;
 
-        for (String key : deviceHash.keySet()) {
+        // Reserve the device before returning it, another connection may be looking too
+        synchronized (devicesInUse) {
+            for (String key : deviceHash.keySet()) {
 
-            UsbDevice dev = deviceHash.get(key);
+                UsbDevice dev = deviceHash.get(key);
 
-            String msg = String.format(Locale.US,
-                    "USB Device: %s, VID:PID - %x:%x, %d interfaces",
-                    key, dev.getVendorId(), dev.getProductId(), dev.getInterfaceCount()
-            );
+                String msg = String.format(Locale.US,
+                        "USB Device: %s, VID:PID - %x:%x, %d interfaces",
+                        key, dev.getVendorId(), dev.getProductId(), dev.getInterfaceCount()
+                );
 
-            if (isCompatibleUsbDevice(dev)) {
-                usbDevice = dev;
-                msg = "Using " + msg;
-            } else {
-                msg = "Skipping " + msg;
-            }
+                if (isCompatibleUsbDevice(dev) && isInUseByOthers(dev)) {
+                    msg = "Skipping (in use) " + msg;
+                } else if (isCompatibleUsbDevice(dev)) {
+                    usbDevice = dev;
+                    msg = "Using " + msg;
+                } else {
+                    msg = "Skipping " + msg;
+                }
 
-            logger.log(msg);
+                logger.log(msg);
+            }
+            if (usbDevice != null) reserve(usbDevice);
         }
         return usbDevice;
     }
 
+    private boolean isInUseByOthers(UsbDevice dev) {
+        synchronized (devicesInUse) {
+            return devicesInUse.contains(dev.getDeviceName()) && !dev.equals(this.usbDevice);
+        }
+    }
+
+    // Claims dev for this connection, giving up the one it had before if that is another device
+    private void reserve(UsbDevice dev) {
+        synchronized (devicesInUse) {
+            if (usbDevice != null && !usbDevice.equals(dev)) {
+                devicesInUse.remove(usbDevice.getDeviceName());
+            }
+            devicesInUse.add(dev.getDeviceName());
+            usbDevice = dev;
+        }
+    }
+
+    private void release() {
+        synchronized (devicesInUse) {
+            if (usbDevice != null) devicesInUse.remove(usbDevice.getDeviceName());
+            usbDevice = null;
+        }
+    }
+
     public void setConnectionStateListener(WaltConnection.ConnectionStateListener connectionStateListener) {
         this.connectionStateListener = connectionStateListener;
     }
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decodes the output of CMD_BRIGHTNESS_CURVE as it arrives and measures the transitions in it.
+ *
+ * The firmware sends one "time value" line per sample, times in microseconds, followed by "end".
+ * feed() takes the raw chunks from the listener in any size, lines may be split between chunks,
+ * and keeps the samples in primitive arrays, so the text is never buffered as a whole.
+ *
+ * analyze() finds the black-to-white transition at the start and the white-to-black one at the
+ * end and measures 10-90% rise and fall times, overshoot and, if the white level flickers, the
+ * PWM frequency. The thresholds depend on the black and white levels, which are only known once
+ * the curve has settled, so this is one pass over the arrays, which can be done at any time.
+ *
+ * Plain Java, no Android dependencies. Not thread safe.
+ */
+class BrightnessCurve {
+
+    static final String END = "end";
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int LINE_MAX = 32;
+    // Fraction of the black-to-white swing that counts as a flicker, and the hysteresis for it
+    private static final double PWM_MIN_SWING = 0.2;
+    private static final double PWM_HYSTERESIS = 0.1;
+
+    /**
+     * Measurements of a curve, times in ms. NaN where a transition was not found.
+     */
+    static class Result {
+        int low;
+        int high;
+        double riseTime = Double.NaN;
+        double fallTime = Double.NaN;
+        double overshoot = Double.NaN;  // In percent of the swing
+        double pwmFrequency = 0;  // Hz, 0 if no flicker was found
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Levels: black %d, white %d\n" +
+                            "Rise time (10-90%%): %.2f ms\n" +
+                            "Fall time (90-10%%): %.2f ms\n" +
+                            "Overshoot: %.1f%%\n" +
+                            "PWM: %s",
+                    low, high, riseTime, fallTime, overshoot,
+                    pwmFrequency > 0 ? String.format(Locale.US, "%.0f Hz", pwmFrequency) : "none");
+        }
+    }
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private boolean ended = false;
+    private final char[] line = new char[LINE_MAX];
+    private int lineLength = 0;
+    private boolean lineTooLong = false;
+    private int badLines = 0;
+
+    /**
+     * Decodes the next piece of the output. Everything after "end" is ignored.
+     */
+    void feed(CharSequence chunk) {
+        for (int i = 0; i < chunk.length() && !ended; i++) {
+            char c = chunk.charAt(i);
+            if (c == '\n' || c == '\r') {
+                endLine();
+            } else if (lineLength < LINE_MAX) {
+                line[lineLength++] = c;
+            } else {
+                lineTooLong = true;
+            }
+        }
+    }
+
+    private void endLine() {
+        if (lineLength > 0 && !lineTooLong) parseLine();
+        else if (lineTooLong) badLines++;
+        lineLength = 0;
+        lineTooLong = false;
+    }
+
+    private boolean isEndLine() {
+        if (lineLength != END.length()) return false;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] != END.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void parseLine() {
+        if (isEndLine()) {
+            ended = true;
+            return;
+        }
+        long t = 0;
+        int value = 0;
+        int field = 0;
+        int digits = 0;
+        for (int i = 0; i < lineLength; i++) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                if (field == 0) {
+                    t = t * 10 + (c - '0');
+                } else {
+                    value = value * 10 + (c - '0');
+                }
+                digits++;
+            } else if (c == ' ' && field == 0 && digits > 0) {
+                field = 1;
+                digits = 0;
+            } else {
+                badLines++;
+                return;
+            }
+        }
+        if (field != 1 || digits == 0) {
+            badLines++;
+            return;
+        }
+        add(t, value);
+    }
+
+    void add(long t, int value) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        times[size] = t;
+        values[size] = value;
+        size++;
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getTime(int i) {
+        return times[i];
+    }
+
+    int getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * Lines that were not samples or "end".
+     */
+    int getBadLineCount() {
+        return badLines;
+    }
+
+    void clear() {
+        size = 0;
+        ended = false;
+        lineLength = 0;
+        lineTooLong = false;
+        badLines = 0;
+    }
+
+    /**
+     * The samples as text in the format the firmware sends them, without "end".
+     */
+    void appendText(StringBuilder sb) {
+        appendText(sb, 0, size);
+    }
+
+    /**
+     * Same as appendText(StringBuilder) for the samples in [from, to) only.
+     */
+    void appendText(StringBuilder sb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sb.append(times[i]).append(' ').append(values[i]).append('\n');
+        }
+    }
+
+    /**
+     * Time in ms at which the curve crosses level between samples i - 1 and i, interpolated.
+     */
+    private double crossingTime(int i, double level) {
+        double v0 = values[i - 1];
+        double v1 = values[i];
+        double f = v1 == v0 ? 0 : (level - v0) / (v1 - v0);
+        return (times[i - 1] + f * (times[i] - times[i - 1])) / 1000.;
+    }
+
+    private boolean crossesUp(int i, double level) {
+        return values[i - 1] < level && values[i] >= level;
+    }
+
+    private boolean crossesDown(int i, double level) {
+        return values[i - 1] >= level && values[i] < level;
+    }
+
+    Result analyze() {
+        Result result = new Result();
+        if (size < 2) return result;
+
+        // Black and white take up most of the curve, the transitions are short
+        int[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        result.low = sorted[size / 20];
+        result.high = sorted[size - 1 - size / 20];
+        double swing = result.high - result.low;
+        if (swing <= 0) return result;
+        double level10 = result.low + 0.1 * swing;
+        double level90 = result.low + 0.9 * swing;
+
+        int rise10 = -1;
+        int rise90 = -1;
+        for (int i = 1; i < size; i++) {
+            if (rise10 < 0) {
+                if (crossesUp(i, level10)) rise10 = i;
+            } else if (crossesUp(i, level90)) {
+                rise90 = i;
+                break;
+            }
+        }
+        if (rise90 < 0) return result;
+        result.riseTime = crossingTime(rise90, level90) - crossingTime(rise10, level10);
+
+        // With PWM the level dips below 90% on every cycle, the fall is the last time it does
+        int fall90 = -1;
+        int fall10 = -1;
+        for (int i = rise90 + 1; i < size; i++) {
+            if (crossesDown(i, level90)) fall90 = i;
+        }
+        if (fall90 >= 0) {
+            for (int i = fall90 + 1; i < size; i++) {
+                if (crossesDown(i, level10)) {
+                    fall10 = i;
+                    break;
+                }
+            }
+        }
+        if (fall10 >= 0) {
+            result.fallTime = crossingTime(fall10, level10) - crossingTime(fall90, level90);
+        }
+
+        // The white part of the curve
+        int end = fall90 >= 0 ? fall90 : size;
+        int[] plateau = Arrays.copyOfRange(values, rise90, end);
+        Arrays.sort(plateau);
+        // Upper quartile rather than median, in case PWM pulls part of the plateau down
+        int settled = plateau[plateau.length * 3 / 4];
+        int peak = plateau[plateau.length - 1];
+        result.overshoot = 100. * Math.max(0, peak - settled) / swing;
+
+        if (plateau[plateau.length - 1] - plateau[0] >= PWM_MIN_SWING * swing) {
+            result.pwmFrequency = pwmFrequency(rise90, end,
+                    (plateau[0] + plateau[plateau.length - 1]) / 2., PWM_HYSTERESIS * swing);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the rising edges through mid +- hysteresis in [start, end) and returns their rate.
+     */
+    private double pwmFrequency(int start, int end, double mid, double hysteresis) {
+        boolean isLow = false;
+        int edges = 0;
+        long firstEdge = 0;
+        long lastEdge = 0;
+        for (int i = start; i < end; i++) {
+            if (values[i] < mid - hysteresis) {
+                isLow = true;
+            } else if (isLow && values[i] > mid + hysteresis) {
+                isLow = false;
+                if (edges == 0) firstEdge = times[i];
+                lastEdge = times[i];
+                edges++;
+            }
+        }
+        if (edges < 2 || lastEdge == firstEdge) return 0;
+        return (edges - 1) * 1e6 / (lastEdge - firstEdge);
+    }
+}
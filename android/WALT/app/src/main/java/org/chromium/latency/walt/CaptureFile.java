@@ -0,0 +1,695 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Binary capture of the raw events of a test run, for archiving and re-analysis.
+ *
+ * There are four streams of events, all with timestamps in microseconds of the remote clock:
+ * - triggers from WALT, as in WaltDevice.TriggerMessage
+ * - marks, app side events such as the start of a frame, a tag and a value like triggers
+ * - touches, as in UsMotionEvent, with the ID of the pointer that moved and the number of pointers
+ * - waves, recorded audio
+ * and clock records, the state of RemoteClockInfo after each sync.
+ *
+ * Layout, all little endian:
+ *   header  "WCAP", u16 version, u16 header size, i64 creation time in ms since the epoch,
+ *           i64 baseTime, i32 minLag, i32 maxLag, f64 skew, i32 number of blocks,
+ *           u16 length of the test name, test name in UTF-8
+ *   blocks  u8 kind, i32 number of events, i32 payload size, payload
+ *
+ * Events are written in blocks of up to BLOCK_EVENTS per stream, each one column after the other.
+ * Timestamps are stored as the difference to the previous one in the same stream and like all
+ * integers as zigzag varints, so a block of touches takes about 12 bytes per event. The clock in
+ * the header is the last one written, the number of blocks is 0 if the writer was not closed. A
+ * file cut short, e.g. by a crash, can still be read up to the last complete block.
+ *
+ * Since version 2 the action of a touch is stored together with its pointer, as
+ * action | pointerId << 8 | (pointerCount - 1) << 16, so single touches take no extra space.
+ * Version 1 stored MotionEvent.getAction() and no pointers.
+ *
+ * Plain Java, no Android dependencies.
+ */
+class CaptureFile {
+    static final int MAGIC = 0x50414357;  // "WCAP"
+    static final int VERSION = 2;
+    static final int BLOCK_EVENTS = 1024;
+
+    static final byte KIND_TRIGGER = 1;
+    static final byte KIND_MARK = 2;
+    static final byte KIND_TOUCH = 3;
+    static final byte KIND_WAVE = 4;
+    static final byte KIND_CLOCK = 5;
+
+    private static final int CLOCK_OFFSET = 16;
+    private static final int HEADER_FIXED_SIZE = 46;
+    private static final int BLOCK_HEADER_SIZE = 9;
+
+    static class Clock {
+        long baseTime;
+        int minLag;
+        int maxLag;
+        double skew;
+    }
+
+    static class Triggers {
+        long[] t;
+        char[] tag;
+        int[] value;
+        int[] count;
+        int size;
+
+        Triggers(int capacity) {
+            t = new long[capacity];
+            tag = new char[capacity];
+            value = new int[capacity];
+            count = new int[capacity];
+        }
+    }
+
+    static class Marks {
+        long[] t;
+        char[] tag;
+        int[] value;
+        int size;
+
+        Marks(int capacity) {
+            t = new long[capacity];
+            tag = new char[capacity];
+            value = new int[capacity];
+        }
+    }
+
+    static class Touches {
+        long[] t;
+        long[] createTime;
+        float[] x;
+        float[] y;
+        int[] action;
+        int[] pointerId;
+        int[] pointerCount;
+        int size;
+
+        Touches(int capacity) {
+            t = new long[capacity];
+            createTime = new long[capacity];
+            x = new float[capacity];
+            y = new float[capacity];
+            action = new int[capacity];
+            pointerId = new int[capacity];
+            pointerCount = new int[capacity];
+        }
+    }
+
+    static class Wave {
+        long t;  // Time of the first sample
+        int sampleRate;
+        short[] samples;
+    }
+
+    /*******************************************************************************************
+     Writer
+     */
+
+    /**
+     * Streams events to a capture file. Events are kept in memory only until a block is full.
+     *
+     * Full blocks are encoded on the calling thread and written to the file by a thread of their
+     * own, so the touch and trigger callbacks never wait for the disk. An error while writing is
+     * thrown by the next call after it, or by close().
+     */
+    static class Writer implements Closeable {
+        // Tells the writer thread that no more blocks follow
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final LinkedBlockingQueue<ByteBuffer> pendingBlocks = new LinkedBlockingQueue<>();
+        private final Thread writerThread;
+        private volatile IOException writeError;
+        private final Encoder encoder = new Encoder();
+        private final Triggers triggers = new Triggers(BLOCK_EVENTS);
+        private final Marks marks = new Marks(BLOCK_EVENTS);
+        private final Touches touches = new Touches(BLOCK_EVENTS);
+        private final Clock clock = new Clock();
+        private long lastTriggerT, lastMarkT, lastTouchT;
+        private int blocks = 0;
+
+        Writer(File path, String testName) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            byte[] name = testName.getBytes(StandardCharsets.UTF_8);
+            encoder.reset();
+            encoder.putInt(MAGIC);
+            encoder.putShort(VERSION);
+            encoder.putShort(HEADER_FIXED_SIZE + name.length);
+            encoder.putLong(System.currentTimeMillis());
+            putClock(encoder, clock);
+            encoder.putInt(0);
+            encoder.putShort(name.length);
+            encoder.putBytes(name);
+            encoder.writeTo(channel);
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "WALT capture writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        private void writeLoop() {
+            try {
+                ByteBuffer block;
+                while ((block = pendingBlocks.take()) != END) {
+                    // After an error the rest is dropped, the file is only good up to there
+                    if (writeError != null) continue;
+                    try {
+                        while (block.hasRemaining()) channel.write(block);
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkWriteError() throws IOException {
+            IOException e = writeError;
+            if (e != null) throw new IOException("Can't write capture: " + e.getMessage(), e);
+        }
+
+        synchronized void writeTrigger(long t, char tag, int value, int count) throws IOException {
+            int i = triggers.size++;
+            triggers.t[i] = t;
+            triggers.tag[i] = tag;
+            triggers.value[i] = value;
+            triggers.count[i] = count;
+            if (triggers.size == BLOCK_EVENTS) flushTriggers();
+        }
+
+        synchronized void writeMark(long t, char tag, int value) throws IOException {
+            int i = marks.size++;
+            marks.t[i] = t;
+            marks.tag[i] = tag;
+            marks.value[i] = value;
+            if (marks.size == BLOCK_EVENTS) flushMarks();
+        }
+
+        /**
+         * @param t kernel time of the event
+         * @param createTime when the app received it
+         */
+        void writeTouch(long t, long createTime, float x, float y, int action)
+                throws IOException {
+            writeTouch(t, createTime, x, y, action, 0, 1);
+        }
+
+        /**
+         * @param action masked action, as in MotionEvent.getActionMasked()
+         * @param pointerId ID of the pointer that went down, up or moved
+         * @param pointerCount pointers on the screen, including that one
+         */
+        synchronized void writeTouch(long t, long createTime, float x, float y, int action,
+                                     int pointerId, int pointerCount) throws IOException {
+            int i = touches.size++;
+            touches.t[i] = t;
+            touches.createTime[i] = createTime;
+            touches.x[i] = x;
+            touches.y[i] = y;
+            touches.action[i] = action;
+            touches.pointerId[i] = pointerId;
+            touches.pointerCount[i] = pointerCount;
+            if (touches.size == BLOCK_EVENTS) flushTouches();
+        }
+
+        /**
+         * Writes a whole recording at once, as a block of its own.
+         */
+        synchronized void writeWave(long t, int sampleRate, short[] samples) throws IOException {
+            encoder.reset();
+            encoder.putVarLong(t);
+            encoder.putVarLong(sampleRate);
+            int last = 0;
+            for (short s : samples) {
+                encoder.putVarLong(s - last);
+                last = s;
+            }
+            writeBlock(KIND_WAVE, samples.length);
+        }
+
+        /**
+         * Records the clock after a sync. Everything written before stays before it in the file,
+         * the timestamps that follow are relative to the new clock.
+         */
+        synchronized void writeClock(long baseTime, int minLag, int maxLag, double skew)
+                throws IOException {
+            flush();
+            clock.baseTime = baseTime;
+            clock.minLag = minLag;
+            clock.maxLag = maxLag;
+            clock.skew = skew;
+            encoder.reset();
+            putClock(encoder, clock);
+            writeBlock(KIND_CLOCK, 1);
+        }
+
+        /**
+         * Writes the events of partially filled blocks.
+         */
+        synchronized void flush() throws IOException {
+            if (triggers.size > 0) flushTriggers();
+            if (marks.size > 0) flushMarks();
+            if (touches.size > 0) flushTouches();
+        }
+
+        /**
+         * Flushes and completes the header with the last clock and the number of blocks.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                try {
+                    flush();
+                } finally {
+                    finishWriting();
+                }
+                checkWriteError();
+                encoder.reset();
+                putClock(encoder, clock);
+                encoder.putInt(blocks);
+                encoder.writeTo(channel, CLOCK_OFFSET);
+            } finally {
+                file.close();
+            }
+        }
+
+        private void flushTriggers() throws IOException {
+            encoder.reset();
+            int n = triggers.size;
+            for (int i = 0; i < n; i++) {
+                encoder.putVarLong(triggers.t[i] - lastTriggerT);
+                lastTriggerT = triggers.t[i];
+            }
+            for (int i = 0; i < n; i++) encoder.putByte(triggers.tag[i]);
+            for (int i = 0; i < n; i++) encoder.putVarLong(triggers.value[i]);
+            for (int i = 0; i < n; i++) encoder.putVarLong(triggers.count[i]);
+            triggers.size = 0;
+            writeBlock(KIND_TRIGGER, n);
+        }
+
+        private void flushMarks() throws IOException {
+            encoder.reset();
+            int n = marks.size;
+            for (int i = 0; i < n; i++) {
+                encoder.putVarLong(marks.t[i] - lastMarkT);
+                lastMarkT = marks.t[i];
+            }
+            for (int i = 0; i < n; i++) encoder.putByte(marks.tag[i]);
+            for (int i = 0; i < n; i++) encoder.putVarLong(marks.value[i]);
+            marks.size = 0;
+            writeBlock(KIND_MARK, n);
+        }
+
+        private void flushTouches() throws IOException {
+            encoder.reset();
+            int n = touches.size;
+            for (int i = 0; i < n; i++) {
+                encoder.putVarLong(touches.t[i] - lastTouchT);
+                lastTouchT = touches.t[i];
+            }
+            // Usually a few ms after the kernel time
+            for (int i = 0; i < n; i++) encoder.putVarLong(touches.createTime[i] - touches.t[i]);
+            for (int i = 0; i < n; i++) encoder.putFloat(touches.x[i]);
+            for (int i = 0; i < n; i++) encoder.putFloat(touches.y[i]);
+            for (int i = 0; i < n; i++) {
+                encoder.putVarLong(touches.action[i] | touches.pointerId[i] << 8
+                        | (touches.pointerCount[i] - 1) << 16);
+            }
+            touches.size = 0;
+            writeBlock(KIND_TOUCH, n);
+        }
+
+        /**
+         * Waits for the writer thread to write all pending blocks.
+         */
+        private void finishWriting() throws IOException {
+            pendingBlocks.add(END);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing capture");
+            }
+        }
+
+        // The encoder holds the payload
+        private void writeBlock(byte kind, int count) throws IOException {
+            checkWriteError();
+            pendingBlocks.add(encoder.takeBlock(kind, count));
+            blocks++;
+        }
+    }
+
+    private static void putClock(Encoder encoder, Clock clock) {
+        encoder.putLong(clock.baseTime);
+        encoder.putInt(clock.minLag);
+        encoder.putInt(clock.maxLag);
+        encoder.putDouble(clock.skew);
+    }
+
+    /**
+     * A growable little endian buffer, with room for a block header in front of the payload.
+     */
+    private static class Encoder {
+        private ByteBuffer buffer = newBuffer(64 * 1024);
+
+        private static ByteBuffer newBuffer(int capacity) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void reset() {
+            buffer.clear();
+            buffer.position(BLOCK_HEADER_SIZE);
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer bigger = newBuffer(Math.max(buffer.capacity() * 2,
+                    buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+
+        void putByte(int b) {
+            ensure(1);
+            buffer.put((byte) b);
+        }
+
+        void putShort(int s) {
+            ensure(2);
+            buffer.putShort((short) s);
+        }
+
+        void putInt(int i) {
+            ensure(4);
+            buffer.putInt(i);
+        }
+
+        void putLong(long l) {
+            ensure(8);
+            buffer.putLong(l);
+        }
+
+        void putFloat(float f) {
+            ensure(4);
+            buffer.putFloat(f);
+        }
+
+        void putDouble(double d) {
+            ensure(8);
+            buffer.putDouble(d);
+        }
+
+        void putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            long zigzag = (v << 1) ^ (v >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            buffer.put((byte) zigzag);
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            buffer.flip();
+            buffer.position(BLOCK_HEADER_SIZE);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+
+        void writeTo(FileChannel channel, long position) throws IOException {
+            buffer.flip();
+            buffer.position(BLOCK_HEADER_SIZE);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Returns a copy of the block header and payload, ready to be written.
+         */
+        ByteBuffer takeBlock(byte kind, int count) {
+            int payload = buffer.position() - BLOCK_HEADER_SIZE;
+            buffer.put(0, kind);
+            buffer.putInt(1, count);
+            buffer.putInt(5, payload);
+            buffer.flip();
+            ByteBuffer block = ByteBuffer.allocate(buffer.remaining());
+            block.put(buffer);
+            block.flip();
+            return block;
+        }
+    }
+
+    /*******************************************************************************************
+     Reader
+     */
+
+    /**
+     * Reads a capture file through a memory mapping. The blocks are indexed when opening, the
+     * streams are decoded when asked for.
+     */
+    static class Reader {
+        private final MappedByteBuffer map;
+        private final int version;
+        private final long createdMillis;
+        private final String testName;
+        private final Clock clock = new Clock();
+        private final boolean complete;
+        private final List<Integer> blockPositions = new ArrayList<>();
+        private final int[] eventCounts = new int[KIND_CLOCK + 1];
+
+        Reader(File path) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+                // The mapping stays valid after the file is closed
+                map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            int headerSize;
+            int blockCount;
+            try {
+                if (map.getInt() != MAGIC) throw new IOException("Not a WALT capture: " + path);
+                version = map.getShort() & 0xFFFF;
+                if (version > VERSION) {
+                    throw new IOException("Unsupported capture version " + version);
+                }
+                headerSize = map.getShort() & 0xFFFF;
+                createdMillis = map.getLong();
+                readClock(map, clock);
+                blockCount = map.getInt();
+                byte[] name = new byte[map.getShort() & 0xFFFF];
+                map.get(name);
+                testName = new String(name, StandardCharsets.UTF_8);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Capture header is truncated: " + path);
+            }
+
+            // A newer version may have a longer header, the blocks start after it
+            int position = headerSize;
+            while (position + BLOCK_HEADER_SIZE <= map.limit()) {
+                byte kind = map.get(position);
+                int count = map.getInt(position + 1);
+                int payload = map.getInt(position + 5);
+                int end = position + BLOCK_HEADER_SIZE + payload;
+                if (payload < 0 || end > map.limit()) break;
+                if (kind > 0 && kind < eventCounts.length) {
+                    blockPositions.add(position);
+                    eventCounts[kind] += count;
+                }
+                position = end;
+            }
+            complete = blockCount > 0 && blockCount == blockPositions.size();
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getTestName() {
+            return testName;
+        }
+
+        long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        /**
+         * The clock at the end of the run, or at the last sync if the file was not closed.
+         */
+        Clock getClock() {
+            if (complete) return clock;
+            List<Clock> clocks = getClocks();
+            return clocks.isEmpty() ? clock : clocks.get(clocks.size() - 1);
+        }
+
+        /**
+         * False if the writer was not closed, the file may miss the events of the last blocks.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        List<Clock> getClocks() {
+            List<Clock> clocks = new ArrayList<>();
+            for (int position : blockPositions) {
+                if (map.get(position) != KIND_CLOCK) continue;
+                map.position(position + BLOCK_HEADER_SIZE);
+                Clock c = new Clock();
+                readClock(map, c);
+                clocks.add(c);
+            }
+            return clocks;
+        }
+
+        Triggers getTriggers() {
+            Triggers triggers = new Triggers(eventCounts[KIND_TRIGGER]);
+            long t = 0;
+            for (int position : blockPositions) {
+                if (map.get(position) != KIND_TRIGGER) continue;
+                int n = startBlock(position);
+                int start = triggers.size;
+                for (int i = start; i < start + n; i++) triggers.t[i] = t += getVarLong(map);
+                for (int i = start; i < start + n; i++) triggers.tag[i] = (char) map.get();
+                for (int i = start; i < start + n; i++) triggers.value[i] = (int) getVarLong(map);
+                for (int i = start; i < start + n; i++) triggers.count[i] = (int) getVarLong(map);
+                triggers.size += n;
+            }
+            return triggers;
+        }
+
+        Marks getMarks() {
+            Marks marks = new Marks(eventCounts[KIND_MARK]);
+            long t = 0;
+            for (int position : blockPositions) {
+                if (map.get(position) != KIND_MARK) continue;
+                int n = startBlock(position);
+                int start = marks.size;
+                for (int i = start; i < start + n; i++) marks.t[i] = t += getVarLong(map);
+                for (int i = start; i < start + n; i++) marks.tag[i] = (char) map.get();
+                for (int i = start; i < start + n; i++) marks.value[i] = (int) getVarLong(map);
+                marks.size += n;
+            }
+            return marks;
+        }
+
+        Touches getTouches() {
+            Touches touches = new Touches(eventCounts[KIND_TOUCH]);
+            long t = 0;
+            for (int position : blockPositions) {
+                if (map.get(position) != KIND_TOUCH) continue;
+                int n = startBlock(position);
+                int start = touches.size;
+                for (int i = start; i < start + n; i++) touches.t[i] = t += getVarLong(map);
+                for (int i = start; i < start + n; i++) {
+                    touches.createTime[i] = touches.t[i] + getVarLong(map);
+                }
+                for (int i = start; i < start + n; i++) touches.x[i] = map.getFloat();
+                for (int i = start; i < start + n; i++) touches.y[i] = map.getFloat();
+                for (int i = start; i < start + n; i++) {
+                    int action = (int) getVarLong(map);
+                    if (version < 2) {
+                        touches.action[i] = action;
+                        touches.pointerCount[i] = 1;
+                    } else {
+                        touches.action[i] = action & 0xFF;
+                        touches.pointerId[i] = (action >> 8) & 0xFF;
+                        touches.pointerCount[i] = (action >> 16) + 1;
+                    }
+                }
+                touches.size += n;
+            }
+            return touches;
+        }
+
+        List<Wave> getWaves() {
+            List<Wave> waves = new ArrayList<>();
+            for (int position : blockPositions) {
+                if (map.get(position) != KIND_WAVE) continue;
+                int n = startBlock(position);
+                Wave wave = new Wave();
+                wave.t = getVarLong(map);
+                wave.sampleRate = (int) getVarLong(map);
+                wave.samples = new short[n];
+                int last = 0;
+                for (int i = 0; i < n; i++) {
+                    last += (int) getVarLong(map);
+                    wave.samples[i] = (short) last;
+                }
+                waves.add(wave);
+            }
+            return waves;
+        }
+
+        // Positions the map at the payload, returns the number of events
+        private int startBlock(int position) {
+            map.position(position + BLOCK_HEADER_SIZE);
+            return map.getInt(position + 1);
+        }
+    }
+
+    private static void readClock(ByteBuffer buffer, Clock clock) {
+        clock.baseTime = buffer.getLong();
+        clock.minLag = buffer.getInt();
+        clock.maxLag = buffer.getInt();
+        clock.skew = buffer.getDouble();
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Estimates the rate of the remote clock relative to the local one, see RemoteClockInfo.skew.
+ *
+ * Each sample is a reading of the remote clock and the local time it was taken at, known up to
+ * some uncertainty, typically the round trip of the request. A straight line is fitted through
+ * the most recent samples by weighted least squares, where precise samples count more. Its slope
+ * minus one is the skew.
+ *
+ * Samples only make sense between two zeroings of the remote clock, call restart() after each
+ * sync. The estimated skew is kept, the crystals don't change.
+ */
+class ClockSkewTracker {
+    static final int MAX_SAMPLES = 256;
+    // Over shorter spans the uncertainty of the samples dominates the drift
+    static final long MIN_SPAN_US = 30 * 1000 * 1000L;
+    // Crystals are specified within 100 ppm or better, anything beyond this is a bad fit
+    static final double MAX_SKEW = 500e-6;
+    private static final long REMOTE_WRAP = 1L << 32;
+
+    private final long[] local = new long[MAX_SAMPLES];
+    private final long[] remote = new long[MAX_SAMPLES];
+    private final double[] weight = new double[MAX_SAMPLES];
+    private int count = 0;
+    private int next = 0;
+    private long lastRemote;
+    private double skew = 0;
+
+    /**
+     * @param localMicros local time when the remote clock was read, middle of the round trip
+     * @param remoteMicros the remote clock reading
+     * @param uncertaintyMicros how far off localMicros may be, e.g. the round trip time
+     */
+    synchronized void addSample(long localMicros, long remoteMicros, int uncertaintyMicros) {
+        // The firmware clock is 32 bit and wraps every 71 minutes
+        if (count > 0) {
+            while (remoteMicros < lastRemote - REMOTE_WRAP / 2) remoteMicros += REMOTE_WRAP;
+        }
+        lastRemote = remoteMicros;
+        local[next] = localMicros;
+        remote[next] = remoteMicros;
+        double u = Math.max(uncertaintyMicros, 1);
+        weight[next] = 1 / (u * u);
+        next = (next + 1) % MAX_SAMPLES;
+        if (count < MAX_SAMPLES) count++;
+    }
+
+    /**
+     * Fits the samples. Returns true and updates getSkew() if there are enough of them over a
+     * long enough time and the result is plausible.
+     */
+    synchronized boolean fit() {
+        if (count < 3) return false;
+        // Relative to one of the samples, the absolute values are too large for doubles to keep
+        // sub microsecond precision in the sums
+        long local0 = local[0];
+        long remote0 = remote[0];
+        long minLocal = Long.MAX_VALUE;
+        long maxLocal = Long.MIN_VALUE;
+        double sw = 0, sx = 0, sy = 0;
+        for (int i = 0; i < count; i++) {
+            double x = local[i] - local0;
+            double y = remote[i] - remote0;
+            sw += weight[i];
+            sx += weight[i] * x;
+            sy += weight[i] * y;
+            minLocal = Math.min(minLocal, local[i]);
+            maxLocal = Math.max(maxLocal, local[i]);
+        }
+        if (maxLocal - minLocal < MIN_SPAN_US) return false;
+        double mx = sx / sw;
+        double my = sy / sw;
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < count; i++) {
+            double dx = local[i] - local0 - mx;
+            double dy = remote[i] - remote0 - my;
+            sxx += weight[i] * dx * dx;
+            sxy += weight[i] * dx * dy;
+        }
+        if (sxx == 0) return false;
+        double s = sxy / sxx - 1;
+        if (Math.abs(s) > MAX_SKEW) return false;
+        skew = s;
+        return true;
+    }
+
+    synchronized double getSkew() {
+        return skew;
+    }
+
+    /**
+     * Drops all samples, e.g. when the remote clock was zeroed. Keeps the skew.
+     */
+    synchronized void restart() {
+        count = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock synchronization over any WaltConnection, the same algorithm as sync_clock.c.
+ *
+ * The lag E of the remote clock behind local time - baseTime is bounded from both sides, see
+ * jni/README.md. Digits sent to WALT and timestamped on arrival give lower bounds (improveMinE),
+ * digits sent by WALT and timestamped here give upper bounds (improveMaxE). Rounds are repeated
+ * until the bounds are within the target width, stop improving, or the maximum number of rounds
+ * is reached.
+ *
+ * Unlike the native code this does not flush incoming data with read timeouts, it skips
+ * whatever does not look like the expected reply instead. Not thread safe, the connection must
+ * not be used by anyone else meanwhile.
+ */
+class ClockSync {
+    static final int DEFAULT_MAX_ROUNDS = 7;  // Same as kSyncRepeats in sync_clock.c
+    static final int DEFAULT_PATIENCE = 3;
+    private static final int SYNC_N = 9;
+    // Sleep between digits sent to WALT is a fraction of the current bounds interval
+    private static final int MAX_SLEEP_US = 700;
+    private static final int MIN_SLEEP_US = 70;
+    private static final int SLEEP_TIME_DIVIDER = 10;
+    // Enough to skip the output of a trigger or two, but not to wait forever for a lost reply
+    private static final int MAX_SKIPPED_MESSAGES = 100;
+
+    private final WaltConnection connection;
+    private final MessageFramer framer = new MessageFramer(1024 * 4);
+    private final byte[] buffer = new byte[1024 * 4];
+    private final long[] timesLocal = new long[SYNC_N];
+    private final long[] timesRemote = new long[SYNC_N];
+
+    private int maxRounds = DEFAULT_MAX_ROUNDS;
+    private int targetWidthUs = 0;
+    private int patience = DEFAULT_PATIENCE;
+
+    private long baseTime;
+    private int minE;
+    private int maxE;
+    private int rounds;
+
+    ClockSync(WaltConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Upper limit on the number of rounds, each one improves both bounds once.
+     */
+    void setMaxRounds(int maxRounds) {
+        this.maxRounds = maxRounds;
+    }
+
+    /**
+     * Stop as soon as maxE - minE is at most this, 0 to always run all rounds.
+     */
+    void setTargetWidthMicros(int targetWidthUs) {
+        this.targetWidthUs = targetWidthUs;
+    }
+
+    /**
+     * Stop after this many rounds in a row that did not narrow the bounds, 0 to never stop early.
+     */
+    void setPatience(int patience) {
+        this.patience = patience;
+    }
+
+    /**
+     * Zeroes the remote clock and bounds its lag. The returned clock has minLag = 0, as with
+     * sync_clocks().
+     */
+    RemoteClockInfo sync(RemoteClockInfo clock) throws IOException {
+        framer.clear();
+        zeroRemote();
+        improveBounds();
+
+        // Shift the base time to set minE = 0
+        baseTime += minE;
+        maxE -= minE;
+        minE = 0;
+        clock.baseTime = baseTime;
+        clock.minLag = minE;
+        clock.maxLag = maxE;
+        return clock;
+    }
+
+    /**
+     * Measures the lag bounds again without zeroing the remote clock, like update_bounds().
+     * The bounds are relative to clock.baseTime without skew correction.
+     */
+    void updateBounds(RemoteClockInfo clock) throws IOException {
+        framer.clear();
+        baseTime = clock.baseTime;
+        minE = -10000000;
+        maxE = 10000000;
+        improveBounds();
+        clock.minLag = minE;
+        clock.maxLag = maxE;
+    }
+
+    /**
+     * Number of rounds the last sync() or updateBounds() took.
+     */
+    int getRounds() {
+        return rounds;
+    }
+
+    private int micros() {
+        return (int) (RemoteClockInfo.microTime() - baseTime);
+    }
+
+    private void zeroRemote() throws IOException {
+        baseTime = RemoteClockInfo.microTime();
+        connection.sendByte(WaltDevice.CMD_SYNC_ZERO);
+        readReply('z');
+        maxE = micros();
+        minE = 0;
+    }
+
+    private void improveBounds() throws IOException {
+        int idle = 0;
+        for (rounds = 0; rounds < maxRounds; ) {
+            int width = maxE - minE;
+            improveMinE();
+            improveMaxE();
+            rounds++;
+            if (maxE - minE <= targetWidthUs) break;
+            idle = maxE - minE < width ? 0 : idle + 1;
+            if (patience > 0 && idle >= patience) break;
+        }
+        if (minE > maxE) {
+            throw new IOException("Inconsistent clock bounds, minE=" + minE + " maxE=" + maxE);
+        }
+    }
+
+    private void improveMinE() throws IOException {
+        int sleepTime = Math.min(Math.max((maxE - minE) / SLEEP_TIME_DIVIDER, MIN_SLEEP_US),
+                MAX_SLEEP_US);
+        for (int i = 0; i < SYNC_N; i++) {
+            timesLocal[i] = micros();
+            connection.sendByte((char) ('1' + i));
+            sleepMicros(sleepTime);
+        }
+        readRemoteTimestamps();
+        for (int i = 0; i < SYNC_N; i++) {
+            // The digit was sent after timesLocal and received at timesRemote
+            long dt = timesLocal[i] - timesRemote[i];
+            if (timesLocal[i] != 0 && timesRemote[i] != 0 && dt > minE) {
+                minE = (int) dt;
+            }
+        }
+    }
+
+    private void improveMaxE() throws IOException {
+        for (int i = 0; i < SYNC_N; i++) timesLocal[i] = 0;
+        connection.sendByte(WaltDevice.CMD_SYNC_SEND);
+        int skipped = 0;
+        for (int received = 0; received < SYNC_N; ) {
+            int length = readMessage();
+            // Several digits may come in one read, they all get its time which only makes the
+            // bound looser, never wrong
+            long t = micros();
+            int start = framer.getMessageStart();
+            byte[] message = framer.getBuffer();
+            if (length == 2 && message[start] >= '1' && message[start] <= '9') {
+                timesLocal[message[start] - '1'] = t;
+                received++;
+            } else if (++skipped > MAX_SKIPPED_MESSAGES) {
+                // Same limit as readReply(), a constant stream of triggers must not hang the sync
+                throw new IOException("No sync digits from WALT");
+            }
+        }
+        readRemoteTimestamps();
+        for (int i = 0; i < SYNC_N; i++) {
+            // The digit was sent at timesRemote and received before timesLocal
+            long dt = timesLocal[i] - timesRemote[i];
+            if (timesLocal[i] != 0 && timesRemote[i] != 0 && dt < maxE) {
+                maxE = (int) dt;
+            }
+        }
+    }
+
+    /**
+     * Reads the remote times of the last digits sent or received with CMD_SYNC_READOUT. The
+     * replies look like "3:123456".
+     */
+    private void readRemoteTimestamps() throws IOException {
+        // WALT answers in order, no need to wait for each reply before asking for the next one
+        for (int i = 0; i < SYNC_N; i++) {
+            connection.sendByte(WaltDevice.CMD_SYNC_READOUT);
+        }
+        for (int i = 0; i < SYNC_N; i++) {
+            String reply = readReply((char) ('1' + i));
+            int colon = reply.indexOf(':');
+            try {
+                timesRemote[i] = Long.parseLong(reply.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad reply for sync readout: " + reply);
+            }
+        }
+    }
+
+    /**
+     * Returns the next message starting with the given char, skipping anything else.
+     */
+    private String readReply(char first) throws IOException {
+        for (int skipped = 0; skipped < MAX_SKIPPED_MESSAGES; skipped++) {
+            int length = readMessage();
+            if (framer.getBuffer()[framer.getMessageStart()] == first) {
+                return new String(framer.getBuffer(), framer.getMessageStart(), length);
+            }
+        }
+        throw new IOException("No reply from WALT starting with '" + first + "'");
+    }
+
+    private int readMessage() throws IOException {
+        while (!framer.next()) {
+            int ret = connection.blockingRead(buffer);
+            if (ret <= 0) throw new IOException("Timed out during clock sync");
+            framer.append(buffer, 0, ret);
+        }
+        return framer.getMessageLength();
+    }
+
+    private static void sleepMicros(int us) {
+        long end = System.nanoTime() + us * 1000L;
+        long remaining;
+        while ((remaining = end - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Commands sent to WALT that are still waiting for their response.
+ *
+ * WALT answers commands in the order it receives them, each response starting with the ack
+ * character of its command. Incoming messages are matched to the oldest pending command with
+ * that ack, anything else is left to the caller. Thread safe.
+ */
+class CommandQueue {
+
+    private static class PendingCommand {
+        final char cmd;
+        final char ack;
+        final long deadlineNanos;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        PendingCommand(char cmd, char ack, long deadlineNanos) {
+            this.cmd = cmd;
+            this.ack = ack;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+    // The earliest deadline in pending, so that expire() costs nothing while none has passed
+    private long nextDeadlineNanos;
+
+    /**
+     * Registers a command. Its future completes with the response, without the ack character and
+     * trimmed like WaltDevice.command() returns it, or fails with an IOException.
+     */
+    synchronized CompletableFuture<String> add(char cmd, char ack, long deadlineNanos) {
+        PendingCommand command = new PendingCommand(cmd, ack, deadlineNanos);
+        if (pending.isEmpty() || deadlineNanos - nextDeadlineNanos < 0) {
+            nextDeadlineNanos = deadlineNanos;
+        }
+        pending.add(command);
+        return command.future;
+    }
+
+    synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Completes the oldest command waiting for the ack that buff[start] holds, if any.
+     * Returns false if the message is not a response to any pending command.
+     */
+    boolean offer(byte[] buff, int start, int length) {
+        PendingCommand command = null;
+        synchronized (this) {
+            if (pending.isEmpty() || length <= 0) return false;
+            for (Iterator<PendingCommand> it = pending.iterator(); it.hasNext(); ) {
+                PendingCommand c = it.next();
+                if (c.ack == (char) buff[start]) {
+                    it.remove();
+                    command = c;
+                    break;
+                }
+            }
+            if (command != null) updateNextDeadline();
+        }
+        if (command == null) return false;
+        // Completing runs dependent callbacks, do it outside of the lock
+        command.future.complete(new String(buff, start + 1, length - 1).trim());
+        return true;
+    }
+
+    /**
+     * Fails all commands whose deadline is before nowNanos.
+     */
+    void expire(long nowNanos) {
+        ArrayDeque<PendingCommand> expired;
+        synchronized (this) {
+            // Called after every message, don't allocate unless something expired
+            if (pending.isEmpty() || nowNanos - nextDeadlineNanos <= 0) return;
+            expired = new ArrayDeque<>();
+            for (Iterator<PendingCommand> it = pending.iterator(); it.hasNext(); ) {
+                PendingCommand c = it.next();
+                if (nowNanos - c.deadlineNanos > 0) {
+                    it.remove();
+                    expired.add(c);
+                }
+            }
+            updateNextDeadline();
+        }
+        for (PendingCommand c : expired) {
+            c.future.completeExceptionally(new IOException(
+                    "Timed out waiting for WALT to answer command " + c.cmd));
+        }
+    }
+
+    private void updateNextDeadline() {
+        PendingCommand first = pending.peekFirst();
+        if (first == null) return;
+        nextDeadlineNanos = first.deadlineNanos;
+        for (PendingCommand c : pending) {
+            if (c.deadlineNanos - nextDeadlineNanos < 0) nextDeadlineNanos = c.deadlineNanos;
+        }
+    }
+
+    /**
+     * Fails all pending commands, e.g. when the connection is lost.
+     */
+    void failAll(IOException e) {
+        ArrayDeque<PendingCommand> failed;
+        synchronized (this) {
+            failed = new ArrayDeque<>(pending);
+            pending.clear();
+        }
+        for (PendingCommand c : failed) {
+            c.future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Finds the delay between two sampled signals by cross-correlating them with an FFT.
+ *
+ * The score for a delay s is the same as in AccelerometerAnalyzer.findShifts():
+ * sum over the samples of a of (a(t) * b(t - s))^2, with b linearly interpolated and zero outside
+ * of its data. Instead of interpolating b again for every candidate s, both signals are put on a
+ * uniform grid once and all delays are scored at once in O(N log N). The grid peak is then refined
+ * with a parabola through the scores one sample interval of b away.
+ */
+class CrossCorrelator {
+
+    private final double step;
+    private final int maxLag;
+
+    /**
+     * @param step grid step, in the same unit as the sample times
+     * @param maxShift largest delay to consider, the smallest one is 0
+     */
+    CrossCorrelator(double step, double maxShift) {
+        this.step = step;
+        this.maxLag = (int) Math.round(maxShift / step);
+    }
+
+    /**
+     * Returns the delay s in [0, maxShift] that maximizes the score. Times must be sorted. NaN if
+     * a is empty or b has less than two samples.
+     */
+    double findBestShift(double[] aTimes, double[] aValues, double[] bTimes, double[] bValues) {
+        if (aTimes.length == 0 || bTimes.length < 2) return Double.NaN;
+        final double t0 = bTimes[0];
+        final double tEnd = Math.max(bTimes[bTimes.length - 1], aTimes[aTimes.length - 1]);
+        final int n = (int) Math.ceil((tEnd - t0) / step) + 2;
+        int size = 1;
+        while (size < n + maxLag + 1) size <<= 1;
+
+        // a goes into the real part as an impulse train of a^2, split between the two nearest
+        // grid points. b^2 on the grid goes into the imaginary part.
+        double[] re = new double[size];
+        double[] im = new double[size];
+        for (int j = 0; j < aTimes.length; j++) {
+            double pos = (aTimes[j] - t0) / step;
+            if (pos < 0) continue;  // b(t - s) is zero there for any s >= 0
+            int i = (int) pos;
+            double f = pos - i;
+            double sq = aValues[j] * aValues[j];
+            re[i] += (1 - f) * sq;
+            re[i + 1] += f * sq;
+        }
+        double[] gridTimes = new double[n];
+        for (int i = 0; i < n; i++) gridTimes[i] = t0 + i * step;
+        double[] gridValues = MathUtils.interp(gridTimes, bTimes, bValues);
+        for (int i = 0; i < n; i++) im[i] = gridValues[i] * gridValues[i];
+
+        // One complex FFT for both real signals, then A * conj(B) per frequency
+        fft(re, im);
+        for (int k = 0; k <= size / 2; k++) {
+            int m = (size - k) & (size - 1);
+            double zkr = re[k], zki = im[k], zmr = re[m], zmi = im[m];
+            // A[k] = (Z[k] + conj(Z[m])) / 2, B[k] = (Z[k] - conj(Z[m])) / 2i
+            double ar = (zkr + zmr) / 2, ai = (zki - zmi) / 2;
+            double br = (zki + zmi) / 2, bi = (zmr - zkr) / 2;
+            // X[k] = A[k] * conj(B[k]), X[m] = conj(X[k]) since the correlation is real
+            double xr = ar * br + ai * bi;
+            double xi = ai * br - ar * bi;
+            re[k] = xr;
+            im[k] = xi;
+            re[m] = xr;
+            im[m] = -xi;
+        }
+
+        // Inverse FFT via conj(fft(conj(X))), the 1/size scale does not move the peak
+        for (int k = 0; k < size; k++) im[k] = -im[k];
+        fft(re, im);
+
+        int best = 0;
+        for (int k = 1; k <= maxLag; k++) {
+            if (re[k] > re[best]) best = k;
+        }
+        // Linear interpolation makes the score peak on the sample times of b, so the parabola
+        // goes through the scores one b sample interval away on either side.
+        double bInterval = (bTimes[bTimes.length - 1] - bTimes[0]) / (bTimes.length - 1);
+        int h = Math.max(1, (int) Math.round(bInterval / step));
+        double offset = 0;
+        if (best - h >= 0 && best + h <= maxLag) {
+            double left = re[best - h], mid = re[best], right = re[best + h];
+            double denom = left - 2 * mid + right;
+            if (denom < 0) offset = h * (left - right) / (2 * denom);
+        }
+        return (best + offset) * step;
+    }
+
+    /**
+     * In place iterative radix-2 FFT. The length must be a power of two.
+     */
+    static void fft(double[] re, double[] im) {
+        final int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            double angle = -2 * Math.PI / len;
+            double wr = Math.cos(angle), wi = Math.sin(angle);
+            int half = len >> 1;
+            for (int i = 0; i < n; i += len) {
+                double cr = 1, ci = 0;
+                for (int j = 0; j < half; j++) {
+                    int u = i + j, v = u + half;
+                    double vr = re[v] * cr - im[v] * ci;
+                    double vi = re[v] * ci + im[v] * cr;
+                    re[v] = re[u] - vr;
+                    im[v] = im[u] - vi;
+                    re[u] += vr;
+                    im[u] += vi;
+                    double nr = cr * wr - ci * wi;
+                    ci = cr * wi + ci * wr;
+                    cr = nr;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Number crunching for the drag latency test.
+ *
+ * Kept separate from DragLatencyFragment so it can run on a plain JVM, e.g. to re-analyze saved
+ * captures. Problems with the data are reported as an IllegalArgumentException with a message
+ * for the log.
+ */
+class DragLatencyAnalyzer {
+
+    static final int MIN_TOUCH_EVENTS = 100;
+    static final int MIN_LASER_EVENTS = 8;
+
+    static class Result {
+        // All times in milliseconds since the first touch event
+        final double[] ft;
+        final double[] fy;
+        final double[] lt;
+        final double[] sideShifts;
+        final double latency;
+
+        Result(double[] ft, double[] fy, double[] lt, double[] sideShifts, double latency) {
+            this.ft = ft;
+            this.fy = fy;
+            this.lt = lt;
+            this.sideShifts = sideShifts;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * Analyzes the first touchCount touch events (kernel time in microseconds, y) and the first
+     * laserCount laser events (time in microseconds of the same clock, value as in the trigger
+     * messages). The arrays are not modified.
+     */
+    static Result analyze(long[] touchT, float[] touchY, int touchCount,
+                          long[] laserT, int[] laserValue, int laserCount) {
+        if (touchCount < MIN_TOUCH_EVENTS) {
+            throw new IllegalArgumentException(
+                    "Insufficient number of touch events (<" + MIN_TOUCH_EVENTS + "), aborting.");
+        }
+        if (laserCount < MIN_LASER_EVENTS) {
+            throw new IllegalArgumentException(
+                    "Insufficient number of laser events (<" + MIN_LASER_EVENTS + "), aborting.");
+        }
+
+        // Use the time of the first touch event as time = 0 for debugging convenience
+        long t0_us = touchT[0];
+        long tLast_us = touchT[touchCount - 1];
+
+        double[] ft = new double[touchCount];
+        double[] fy = new double[touchCount];
+        for (int i = 0; i < touchCount; i++) {
+            ft[i] = (touchT[i] - t0_us) / 1000.;
+            fy[i] = touchY[i];
+        }
+
+        // Skip all laser events that are outside the time span of the touch events
+        // they are not usable and would result in errors downstream
+        int last = laserCount - 1;
+        while (last >= 0 && laserT[last] > tLast_us) last--;
+        int first = 0;
+        while (first <= last && laserT[first] < t0_us) first++;
+
+        // Calculation assumes that the first event is generated by the finger obstructing the beam.
+        // Skip the first event if it was generated by finger going out of the beam (value==1).
+        while (first <= last && laserValue[first] == 1) first++;
+
+        int lN = last - first + 1;
+        if (lN < MIN_LASER_EVENTS) {
+            throw new IllegalArgumentException(
+                    "ERROR: Insufficient number of laser events overlapping with touch events," +
+                            "aborting.");
+        }
+
+        double[] lt = new double[lN];
+        int[] ldir = new int[lN];
+        for (int i = 0; i < lN; i++) {
+            lt[i] = (laserT[first + i] - t0_us) / 1000.;
+            ldir[i] = laserValue[first + i];
+        }
+
+        return calculateDragLatency(ft, fy, lt, ldir);
+    }
+
+    static Result analyze(CaptureFile.Reader capture) {
+        CaptureFile.Touches touches = capture.getTouches();
+        CaptureFile.Triggers lasers = capture.getTriggers();
+        return analyze(touches.t, touches.y, touches.size, lasers.t, lasers.value, lasers.size);
+    }
+
+    static Result calculateDragLatency(double[] ft, double[] fy, double[] lt, int[] ldir) {
+        // TODO: throw away several first laser crossings (if not already)
+        // Assume first crossing is into the beam = light-off = 0
+        if (ldir[0] != 0) {
+            // TODO: add more sanity checks here.
+            throw new IllegalArgumentException("First laser crossing is not into the beam, aborting");
+        }
+
+        // label sides, one simple label is i starts from 1, then side = (i mod 4) / 2  same as the 2nd LSB bit or i.
+        int[] sideIdx = new int[lt.length];
+
+        // This is one way of deciding what laser events were on which side
+        // It should go above, below, below, above, above
+        // The other option is to mirror the python code that uses position and velocity for this
+        for (int i = 0; i<lt.length; i++) {
+            sideIdx[i] = ((i+1) / 2) % 2;
+        }
+
+        double[] sideShifts = new double[2];
+        double averageBestShift = 0;
+        for(int side = 0; side < 2; side++) {
+            double[] lts = MathUtils.extract(sideIdx, side, lt);
+            sideShifts[side] = MathUtils.findBestShift(lts, ft, fy);
+            averageBestShift += sideShifts[side] / 2;
+        }
+        return new Result(ft, fy, lt, sideShifts, averageBestShift);
+    }
+}
@@ -47,6 +47,7 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
 
     private SimpleLogger logger;
     private WaltDevice waltDevice;
+    private EventCapture capture;
     private TextView logTextView;
     private TouchCatcherView touchCatcher;
     private TextView crossCountsView;
@@ -118,6 +119,7 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
                              Bundle savedInstanceState) {
         logger = SimpleLogger.getInstance(getContext());
         waltDevice = WaltDevice.getInstance(getContext());
+        capture = new EventCapture(getContext());
 
         // Inflate the layout for this fragment
         final View view = inflater.inflate(R.layout.fragment_drag_latency, container, false);
@@ -165,6 +167,13 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         super.onPause();
     }
 
+    @Override
+    public void onDestroyView() {
+        // Left in the middle of a run, keep what was captured so far
+        capture.finish(waltDevice.clock);
+        super.onDestroyView();
+    }
+
     public void appendLogText(String msg) {
         logTextView.append(msg + "\n");
     }
@@ -177,11 +186,13 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
     void addMeasurement(MotionEvent event) {
         int histLen = event.getHistorySize();
         for (int i = 0; i < histLen; i++){
-            UsMotionEvent eh = new UsMotionEvent(event, waltDevice.clock.baseTime, i);
+            UsMotionEvent eh = new UsMotionEvent(event, waltDevice.clock, i);
             touchEventList.add(eh);
+            capture.touch(eh);
         }
-        UsMotionEvent e = new UsMotionEvent(event, waltDevice.clock.baseTime);
+        UsMotionEvent e = new UsMotionEvent(event, waltDevice.clock);
         touchEventList.add(e);
+        capture.touch(e);
         moveCount += histLen + 1;
 
         updateCountsDisplay();
@@ -201,13 +212,18 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         // Register a callback for triggers
         waltDevice.setTriggerHandler(triggerHandler);
         try {
-            waltDevice.command(WaltDevice.CMD_AUTO_LASER_ON);
             waltDevice.startListener();
         } catch (IOException e) {
             logger.log("Error: " + e.getMessage());
             waltDevice.clearTriggerHandler();
             return false;
         }
+        // The listener picks up the ack while the rest of the test is set up
+        if (waltDevice.commandNoWait(WaltDevice.CMD_AUTO_LASER_ON).isCompletedExceptionally()) {
+            waltDevice.stopListener();
+            waltDevice.clearTriggerHandler();
+            return false;
+        }
         final int spinnerPosition = sourceSpinner.getSelectedItemPosition();
         if (spinnerPosition == 0) {
             touchCatcher.setOnTouchListener(touchListener);
@@ -221,6 +237,7 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         }
         touchEventList.clear();
         laserEventList.clear();
+        capture.start("drag", waltDevice.clock);
         moveCount = 0;
         updateCountsDisplay();
         return true;
@@ -237,6 +254,7 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         touchCatcher.startAnimation();
         touchEventList.clear();
         laserEventList.clear();
+        capture.start("drag", waltDevice.clock);
         moveCount = 0;
         updateCountsDisplay();
     }
@@ -256,6 +274,7 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         waltDevice.clearTriggerHandler();
 
         waltDevice.checkDrift();
+        capture.finish(waltDevice.clock);
 
         logger.log(String.format(Locale.US,
                 "Recorded %d laser events and %d touch events. ",
@@ -263,19 +282,9 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
                 touchEventList.size()
         ));
 
-        if (touchEventList.size() < 100) {
-            logger.log("Insufficient number of touch events (<100), aborting.");
-            return;
-        }
-
-        if (laserEventList.size() < 8) {
-            logger.log("Insufficient number of laser events (<8), aborting.");
-            return;
-        }
-
         // TODO: Log raw data if enabled in settings, touch events add lots of text to the log.
         // logRawData();
-        reshapeAndCalculate();
+        if (!reshapeAndCalculate()) return;
         LogUploader.uploadIfAutoEnabled(getContext());
     }
 
@@ -298,59 +307,41 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
         logger.log("=====< END OF TOUCH EVENTS =====");
     }
 
-    void reshapeAndCalculate() {
-        double[] ft, lt; // All time arrays are in _milliseconds_
-        double[] fy;
-        int[] ldir;
-
-        // Use the time of the first touch event as time = 0 for debugging convenience
-        long t0_us = touchEventList.get(0).kernelTime;
-        long tLast_us = touchEventList.get(touchEventList.size() - 1).kernelTime;
-
-        int fN = touchEventList.size();
-        ft = new double[fN];
-        fy = new double[fN];
-
-        for (int i = 0; i < fN; i++){
-            ft[i] = (touchEventList.get(i).kernelTime - t0_us) / 1000.;
-            fy[i] = touchEventList.get(i).y;
-        }
-
-        // Remove all laser events that are outside the time span of the touch events
-        // they are not usable and would result in errors downstream
-        int j = laserEventList.size() - 1;
-        while (j >= 0 && laserEventList.get(j).t > tLast_us) {
-            laserEventList.remove(j);
-            j--;
-        }
-
-        while (laserEventList.size() > 0 && laserEventList.get(0).t < t0_us) {
-            laserEventList.remove(0);
+    /**
+     * @return true if the latency could be calculated
+     */
+    boolean reshapeAndCalculate() {
+        int touchCount = touchEventList.size();
+        long[] touchT = new long[touchCount];
+        float[] touchY = new float[touchCount];
+        for (int i = 0; i < touchCount; i++) {
+            touchT[i] = touchEventList.get(i).kernelTime;
+            touchY[i] = touchEventList.get(i).y;
         }
 
-        // Calculation assumes that the first event is generated by the finger obstructing the beam.
-        // Remove the first event if it was generated by finger going out of the beam (value==1).
-        while (laserEventList.size() > 0 && laserEventList.get(0).value == 1) {
-            laserEventList.remove(0);
+        int laserCount = laserEventList.size();
+        long[] laserT = new long[laserCount];
+        int[] laserValue = new int[laserCount];
+        for (int i = 0; i < laserCount; i++) {
+            laserT[i] = laserEventList.get(i).t;
+            laserValue[i] = laserEventList.get(i).value;
         }
 
-        int lN = laserEventList.size();
-
-        if (lN < 8) {
-            logger.log("ERROR: Insufficient number of laser events overlapping with touch events," +
-                            "aborting."
-            );
-            return;
+        DragLatencyAnalyzer.Result result;
+        try {
+            result = DragLatencyAnalyzer.analyze(touchT, touchY, touchCount,
+                    laserT, laserValue, laserCount);
+        } catch (IllegalArgumentException e) {
+            logger.log(e.getMessage());
+            return false;
         }
 
-        lt = new double[lN];
-        ldir = new int[lN];
-        for (int i = 0; i < lN; i++){
-            lt[i] = (laserEventList.get(i).t - t0_us) / 1000.;
-            ldir[i] = laserEventList.get(i).value;
+        for (double bestShift : result.sideShifts) {
+            logger.log(String.format(Locale.US, "bestShift = %.2f", bestShift));
         }
-
-        calculateDragLatency(ft,fy, lt, ldir);
+        drawLatencyGraph(result.ft, result.fy, result.lt, result.latency);
+        logger.log(String.format(Locale.US, "Drag latency is %.1f [ms]", result.latency));
+        return true;
     }
 
     /**
@@ -395,50 +386,12 @@ public class DragLatencyFragment extends Fragment implements View.OnClickListene
     private WaltDevice.TriggerHandler triggerHandler = new WaltDevice.TriggerHandler() {
         @Override
         public void onReceive(WaltDevice.TriggerMessage tmsg) {
-            laserEventList.add(tmsg);
+            laserEventList.add(new WaltDevice.TriggerMessage(tmsg));
+            capture.trigger(tmsg);
             updateCountsDisplay();
         }
     };
 
-    public void calculateDragLatency(double[] ft, double[] fy, double[] lt, int[] ldir) {
-        // TODO: throw away several first laser crossings (if not already)
-        double[] ly = Utils.interp(lt, ft, fy);
-        double lmid = Utils.mean(ly);
-        // Assume first crossing is into the beam = light-off = 0
-        if (ldir[0] != 0) {
-            // TODO: add more sanity checks here.
-            logger.log("First laser crossing is not into the beam, aborting");
-            return;
-        }
-
-        // label sides, one simple label is i starts from 1, then side = (i mod 4) / 2  same as the 2nd LSB bit or i.
-        int[] sideIdx = new int[lt.length];
-
-        // This is one way of deciding what laser events were on which side
-        // It should go above, below, below, above, above
-        // The other option is to mirror the python code that uses position and velocity for this
-        for (int i = 0; i<lt.length; i++) {
-            sideIdx[i] = ((i+1) / 2) % 2;
-        }
-        /*
-        logger.log("ft = " + Utils.array2string(ft, "%.2f"));
-        logger.log("fy = " + Utils.array2string(fy, "%.2f"));
-        logger.log("lt = " + Utils.array2string(lt, "%.2f"));
-        logger.log("sideIdx = " + Arrays.toString(sideIdx));*/
-
-        double averageBestShift = 0;
-        for(int side = 0; side < 2; side++) {
-            double[] lts = Utils.extract(sideIdx, side, lt);
-            // TODO: time this call
-            double bestShift = Utils.findBestShift(lts, ft, fy);
-            logger.log(String.format(Locale.US, "bestShift = %.2f", bestShift));
-            averageBestShift += bestShift / 2;
-        }
-
-        drawLatencyGraph(ft, fy, lt, averageBestShift);
-        logger.log(String.format(Locale.US, "Drag latency is %.1f [ms]", averageBestShift));
-    }
-
     private void drawLatencyGraph(double[] ft, double[] fy, double[] lt, double averageBestShift) {
         final ArrayList<Entry> touchEntries = new ArrayList<>();
         final ArrayList<Entry> laserEntries = new ArrayList<>();
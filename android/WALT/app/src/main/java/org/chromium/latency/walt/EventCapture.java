@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.chromium.latency.walt.Utils.getBooleanPreference;
+
+/**
+ * Streams the raw events of a test run to a CaptureFile, if enabled in the settings.
+ *
+ * Files go to captures/ in the app's external files dir, one per run. When capturing is off or
+ * writing failed, all methods do nothing, so the tests can call them unconditionally.
+ */
+class EventCapture {
+    static final String DIRECTORY = "captures";
+    static final String EXTENSION = ".wcap";
+
+    private final Context context;
+    private final SimpleLogger logger;
+    private CaptureFile.Writer writer;
+    private File file;
+
+    EventCapture(Context context) {
+        this.context = context;
+        logger = SimpleLogger.getInstance(context);
+    }
+
+    /**
+     * Starts a new file, finishing the previous one if any.
+     */
+    void start(String testName, RemoteClockInfo clock) {
+        finish(clock);
+        if (!getBooleanPreference(context, R.string.preference_capture, false)) return;
+        File dir = new File(context.getExternalFilesDir(null), DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            logger.log("Can't create capture directory " + dir);
+            return;
+        }
+        file = new File(dir, String.format(Locale.US, "%s-%d%s",
+                testName, System.currentTimeMillis(), EXTENSION));
+        try {
+            writer = new CaptureFile.Writer(file, testName);
+        } catch (IOException e) {
+            logger.log("Can't create capture file: " + e.getMessage());
+            return;
+        }
+        clock(clock);
+    }
+
+    /**
+     * Records the clock, call after each sync.
+     */
+    void clock(RemoteClockInfo clock) {
+        if (writer == null || clock == null) return;
+        try {
+            writer.writeClock(clock.baseTime, clock.minLag, clock.maxLag, clock.skew);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void trigger(WaltDevice.TriggerMessage tmsg) {
+        if (writer == null) return;
+        try {
+            writer.writeTrigger(tmsg.t, tmsg.tag, tmsg.value, tmsg.count);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void trigger(char tag, long t) {
+        if (writer == null) return;
+        try {
+            writer.writeTrigger(t, tag, 0, 0);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void mark(char tag, long t, int value) {
+        if (writer == null) return;
+        try {
+            writer.writeMark(t, tag, value);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void touch(UsMotionEvent e) {
+        if (writer == null) return;
+        try {
+            writer.writeTouch(e.kernelTime, e.createTime, e.x, e.y, e.action, e.pointerId,
+                    e.pointerCount);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    void wave(long t, int sampleRate, short[] samples) {
+        if (writer == null) return;
+        try {
+            writer.writeWave(t, sampleRate, samples);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the final clock, e.g. after checkDrift(), and closes the file.
+     */
+    void finish(RemoteClockInfo clock) {
+        if (writer == null) return;
+        clock(clock);
+        try {
+            writer.close();
+            logger.log("Saved capture " + file.getPath());
+        } catch (IOException e) {
+            logger.log("Error closing capture file: " + e.getMessage());
+        }
+        writer = null;
+    }
+
+    private void fail(IOException e) {
+        logger.log("Error writing capture, stopped capturing: " + e.getMessage());
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+        writer = null;
+    }
+}
@@ -32,9 +32,22 @@ import android.widget.Toast;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+/**
+ * Draws the screen response test's rectangle on its own surface, bypassing the view hierarchy.
+ *
+ * By default that's done with a Canvas, in shared buffer mode where available. With setUseGl()
+ * it's a scissored glClear instead, on the front buffer if the driver supports
+ * EGL_KHR_mutable_render_buffer, see jni/front_buffer_jni.c.
+ */
 class FastPathSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
 
+    static {
+        System.loadLibrary("front_buffer_jni");
+    }
+
     private boolean isActive = false;
+    private boolean useGl = false;
+    private boolean isGlReady = false;
 
     public FastPathSurfaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -49,6 +62,19 @@ class FastPathSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         if (surface == null)
             return;
 
+        if (useGl) {
+            int mode = initGl(surface);
+            isGlReady = mode >= 0;
+            if (mode == 1) {
+                displayMessage("Using front buffer GL rendering.");
+            } else if (mode == 0) {
+                displayMessage("Front buffer rendering is not supported, using double-buffered GL.");
+            } else {
+                displayMessage("Could not set up GL rendering.");
+            }
+            return;
+        }
+
         try {
             Method setSharedBufferMode = Surface.class.getMethod("setSharedBufferMode", boolean.class);
             setSharedBufferMode.invoke(surface, true);
@@ -69,6 +95,18 @@ class FastPathSurfaceView extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
         isActive = false;
+        if (isGlReady) {
+            releaseGl();
+            isGlReady = false;
+        }
+    }
+
+    /**
+     * Selects GL or Canvas rendering. Only takes effect when the surface is created again, e.g.
+     * after the view was gone, because a surface can't be drawn with both.
+     */
+    void setUseGl(boolean useGl) {
+        this.useGl = useGl;
     }
 
     private void displayMessage(String message) {
@@ -80,6 +118,12 @@ class FastPathSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         Surface surface = getHolder().getSurface();
         if (surface == null || !isActive)
             return;
+        if (useGl) {
+            if (isGlReady) {
+                drawRectGl(Color.red(color) / 255f, Color.green(color) / 255f, Color.blue(color) / 255f);
+            }
+            return;
+        }
         Rect rect = new Rect(10, 10, 310, 310);
         Canvas canvas = surface.lockCanvas(rect);
         Paint paint = new Paint();
@@ -87,4 +131,10 @@ class FastPathSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         canvas.drawRect(rect, paint);
         surface.unlockCanvasAndPost(canvas);
     }
+
+    private static native int initGl(Surface surface);
+
+    private static native boolean drawRectGl(float r, float g, float b);
+
+    private static native void releaseGl();
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Splits the screen response latency of each blink into the part spent in the app, in rendering
+ * and on the way to the display, using the FrameMetrics of the frame that showed the blink.
+ *
+ * Blinks and frames are matched by the frame's vsync timestamp, which is both the time passed to
+ * the Choreographer frame callback and FrameMetrics.VSYNC_TIMESTAMP. Frame metrics are delivered
+ * some time after the frame, so they may arrive before or after the photosensor trigger. Frames
+ * that are not known to be blinks yet are kept for the last MAX_RECENT_FRAMES only, the frames of
+ * blinks for the whole test.
+ *
+ * Segments, all starting from the vsync the latency is measured from:
+ * - app: input handling, animation, measure and layout, and draw on the UI thread
+ * - render: from there to the end of the frame as given by INTENDED_VSYNC_TIMESTAMP plus
+ *   TOTAL_DURATION, i.e. sync, command issue, buffer swap and GPU work
+ * - display: the rest of the latency up to the photosensor trigger, which covers composition,
+ *   scanout and the panel's response. FrameMetrics can't tell these apart.
+ *
+ * Plain Java, no Android dependencies. Not thread safe.
+ */
+class FrameBreakdown {
+
+    // Some seconds even at 120 Hz, much longer than from a frame to its trigger
+    static final int MAX_RECENT_FRAMES = 500;
+
+    /**
+     * Metrics of one frame, all in nanoseconds in the System.nanoTime() timebase.
+     */
+    static class Frame {
+        long intendedVsync;
+        long vsync;
+        long input;
+        long animation;
+        long layout;
+        long draw;
+        long sync;
+        long command;
+        long swap;
+        long gpu;
+        long total;
+
+        long appDuration() {
+            return input + animation + layout + draw;
+        }
+
+        long renderDuration() {
+            return Math.max(0, intendedVsync + total - vsync - appDuration());
+        }
+    }
+
+    private final LinkedHashMap<Long, Frame> recentFrames = new LinkedHashMap<Long, Frame>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Frame> eldest) {
+            return size() > MAX_RECENT_FRAMES;
+        }
+    };
+    private final HashMap<Long, Frame> blinkFrames = new HashMap<>();
+    // Vsyncs of blinks whose frame metrics have not arrived yet
+    private final HashSet<Long> pendingVsyncs = new HashSet<>();
+    private final ArrayList<Long> blinkVsyncs = new ArrayList<>();
+    private final ArrayList<Double> blinkLatencies = new ArrayList<>();
+
+    final SampleBuffer app = new SampleBuffer();
+    final SampleBuffer render = new SampleBuffer();
+    final SampleBuffer display = new SampleBuffer();
+    final SampleBuffer input = new SampleBuffer();
+    final SampleBuffer animation = new SampleBuffer();
+    final SampleBuffer layout = new SampleBuffer();
+    final SampleBuffer draw = new SampleBuffer();
+    final SampleBuffer sync = new SampleBuffer();
+    final SampleBuffer command = new SampleBuffer();
+    final SampleBuffer swap = new SampleBuffer();
+    final SampleBuffer gpu = new SampleBuffer();
+
+    /**
+     * Keeps the metrics of a frame, until it is pushed out by newer ones unless it is a blink.
+     */
+    void addFrame(Frame frame) {
+        if (pendingVsyncs.remove(frame.vsync)) {
+            blinkFrames.put(frame.vsync, frame);
+        } else {
+            recentFrames.put(frame.vsync, frame);
+        }
+    }
+
+    /**
+     * Records a blink shown by the frame with the given vsync timestamp in ns, and its latency
+     * from that vsync to the trigger in ms.
+     */
+    void addBlink(long vsync, double latency) {
+        blinkVsyncs.add(vsync);
+        blinkLatencies.add(latency);
+        Frame frame = recentFrames.remove(vsync);
+        if (frame != null) {
+            blinkFrames.put(vsync, frame);
+        } else {
+            pendingVsyncs.add(vsync);
+        }
+    }
+
+    int getBlinkCount() {
+        return blinkVsyncs.size();
+    }
+
+    Frame getFrame(int blink) {
+        return blinkFrames.get(blinkVsyncs.get(blink));
+    }
+
+    double getLatency(int blink) {
+        return blinkLatencies.get(blink);
+    }
+
+    void clear() {
+        recentFrames.clear();
+        blinkFrames.clear();
+        pendingVsyncs.clear();
+        blinkVsyncs.clear();
+        blinkLatencies.clear();
+        clearStats();
+    }
+
+    private void clearStats() {
+        for (SampleBuffer buffer : new SampleBuffer[] {app, render, display, input, animation,
+                layout, draw, sync, command, swap, gpu}) {
+            buffer.clear();
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Fills the sample buffers, in ms, from the blinks that have frame metrics. Returns how many
+     * that was.
+     */
+    int calculate() {
+        clearStats();
+        for (int i = 0; i < blinkVsyncs.size(); i++) {
+            Frame frame = getFrame(i);
+            if (frame == null) continue;
+            double appMs = ms(frame.appDuration());
+            double renderMs = ms(frame.renderDuration());
+            app.add(appMs);
+            render.add(renderMs);
+            display.add(getLatency(i) - appMs - renderMs);
+            input.add(ms(frame.input));
+            animation.add(ms(frame.animation));
+            layout.add(ms(frame.layout));
+            draw.add(ms(frame.draw));
+            sync.add(ms(frame.sync));
+            command.add(ms(frame.command));
+            swap.add(ms(frame.swap));
+            gpu.add(ms(frame.gpu));
+        }
+        return app.size();
+    }
+
+    /**
+     * The medians of all segments and phases, as shown at the end of the test.
+     */
+    String getSummary() {
+        int n = calculate();
+        if (n == 0) {
+            return "No frame metrics for any of the " + blinkVsyncs.size() + " blinks";
+        }
+        return String.format(Locale.US,
+                "Frame pipeline, median ms (N=%d of %d blinks):\n" +
+                        "App: %.1f (input %.1f, animation %.1f, layout %.1f, draw %.1f)\n" +
+                        "Render: %.1f (sync %.1f, command %.1f, swap %.1f, GPU %.1f)\n" +
+                        "Display: %.1f (composition, scanout and panel)",
+                n, blinkVsyncs.size(),
+                app.median(), input.median(), animation.median(), layout.median(), draw.median(),
+                render.median(), sync.median(), command.median(), swap.median(), gpu.median(),
+                display.median());
+    }
+}
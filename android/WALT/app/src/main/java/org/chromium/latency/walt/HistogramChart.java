@@ -194,7 +194,7 @@ public class HistogramChart extends RelativeLayout implements View.OnClickListen
 
     static class HistogramData {
         private float binWidth;
-        private final ArrayList<ArrayList<Double>> rawData;
+        private final ArrayList<SampleBuffer> rawData;
         private double minBin = 0;
         private double maxBin = 100;
         private double min = 0;
@@ -204,7 +204,7 @@ public class HistogramChart extends RelativeLayout implements View.OnClickListen
             this.binWidth = binWidth;
             rawData = new ArrayList<>(numDataSets);
             for (int i = 0; i < numDataSets; i++) {
-                rawData.add(new ArrayList<Double>());
+                rawData.add(new SampleBuffer());
             }
         }
 
@@ -223,7 +223,7 @@ public class HistogramChart extends RelativeLayout implements View.OnClickListen
         }
 
         private boolean isEmpty() {
-            for (ArrayList<Double> data : rawData) {
+            for (SampleBuffer data : rawData) {
                 if (!data.isEmpty()) return false;
             }
             return true;
@@ -249,8 +249,9 @@ public class HistogramChart extends RelativeLayout implements View.OnClickListen
             int[][] bins = new int[rawData.size()][getNumBins()];
 
             for (int setNum = 0; setNum < rawData.size(); setNum++) {
-                for (Double d : rawData.get(setNum)) {
-                    ++bins[setNum][(int) (Math.floor((d - minBin) / binWidth))];
+                final SampleBuffer data = rawData.get(setNum);
+                for (int i = 0; i < data.size(); i++) {
+                    ++bins[setNum][(int) (Math.floor((data.get(i) - minBin) / binWidth))];
                 }
             }
 
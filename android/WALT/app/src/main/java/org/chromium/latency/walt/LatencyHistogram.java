@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Running statistics of latency samples in fixed memory, for live display during long runs.
+ *
+ * Samples go into logarithmic buckets, each 1% wider than the previous one, so percentiles are
+ * accurate to about 1% of the value anywhere between LOWEST and HIGHEST. Samples below LOWEST,
+ * including zero and negative ones, share one bucket and are reported as the minimum. Mean and
+ * stdev are exact (Welford's algorithm), and so are min and max.
+ */
+class LatencyHistogram {
+    static final double LOWEST = 0.01;  // ms
+    static final double HIGHEST = 1e6;  // ms
+    static final double PRECISION = 0.01;
+
+    private static final double LOG_BASE = Math.log(1 + PRECISION);
+    private static final int NUM_BUCKETS =
+            (int) Math.ceil(Math.log(HIGHEST / LOWEST) / LOG_BASE) + 2;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count = 0;
+    private double mean = 0;
+    private double m2 = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    void record(double value) {
+        counts[bucketOf(value)]++;
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (count == 1 || value < min) min = value;
+        if (count == 1 || value > max) max = value;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * Population standard deviation, same as MathUtils.stdev()
+     */
+    double getStdev() {
+        return count == 0 ? Double.NaN : Math.sqrt(m2 / count);
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    /**
+     * Value below which the given percentage of samples fall, NaN if there are no samples.
+     */
+    double getPercentile(double percent) {
+        if (count == 0) return Double.NaN;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                if (i == 0) return min;
+                if (i == NUM_BUCKETS - 1) return max;
+                // Middle of the bucket, but never outside of what was actually seen
+                double value = LOWEST * Math.pow(1 + PRECISION, i - 0.5);
+                return Math.min(Math.max(value, min), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * One line summary for the log
+     */
+    String summary() {
+        return String.format(Locale.US,
+                "N=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f mean=%.1f stdev=%.1f ms",
+                count, getPercentile(50), getPercentile(90), getPercentile(99), max,
+                getMean(), getStdev());
+    }
+
+    private static int bucketOf(double value) {
+        if (!(value >= LOWEST)) return 0;  // Also catches NaN
+        if (value >= HIGHEST) return NUM_BUCKETS - 1;
+        int i = 1 + (int) (Math.log(value / LOWEST) / LOG_BASE);
+        return Math.min(i, NUM_BUCKETS - 2);
+    }
+}
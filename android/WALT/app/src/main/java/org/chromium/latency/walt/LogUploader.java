@@ -19,58 +19,137 @@ package org.chromium.latency.walt;
 import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
 
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+/**
+ * Queues the current log for upload and sends everything queued so far, oldest first.
+ *
+ * Uploads that fail stay in the UploadQueue and go out with the next upload, e.g. after the next
+ * test with auto-upload on, so results from many runs on a flaky link are delivered in one go
+ * once it works again. A dropped connection is retried a few times with growing delays,
+ * continuing where the server stopped receiving. An upload the server refuses for good is moved
+ * aside, see UploadQueue.isFinal(), and the rest still go out.
+ */
 class LogUploader extends AsyncTaskLoader<Integer> {
 
+    static final String UPLOAD_DIRECTORY = "uploads";
+    private static final int MAX_ATTEMPTS = 4;
+    private static final int FIRST_RETRY_DELAY_MS = 1000;
+
+    // Only one loader at a time works on the queue
+    private static final Object QUEUE_LOCK = new Object();
+
     private String urlString;
     private SimpleLogger logger;
+    private UploadQueue queue;
 
     LogUploader(Context context) {
-        super(context);
-        urlString = Utils.getStringPreference(context, R.string.preference_log_url, "");
-        logger = SimpleLogger.getInstance(context);
-
+        this(context, Utils.getStringPreference(context, R.string.preference_log_url, ""));
     }
 
     LogUploader(Context context, String urlString) {
         super(context);
         this.urlString = urlString;
         logger = SimpleLogger.getInstance(context);
+        queue = new UploadQueue(new File(context.getFilesDir(), UPLOAD_DIRECTORY));
     }
 
+    /**
+     * @return the HTTP status code of the last request, -1 if there was no response
+     */
     @Override
     public Integer loadInBackground() {
         if (urlString.isEmpty()) return -1;
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection urlConnection =
-                    (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setDoOutput(true);
-            urlConnection.setRequestProperty("Content-Type", "text/plain");
-            BufferedOutputStream out =
-                    new BufferedOutputStream(urlConnection.getOutputStream());
-            PrintWriter writer = new PrintWriter(out);
-            writer.write(logger.getLogText());
-            writer.flush();
-            final int responseCode = urlConnection.getResponseCode();
-            if (responseCode / 100 == 2) {
+        synchronized (QUEUE_LOCK) {
+            try {
+                Writer writer = new OutputStreamWriter(queue.add(), StandardCharsets.UTF_8);
+                logger.writeLogText(writer);
+                writer.close();
+            } catch (IOException e) {
+                logger.log("Failed to queue log for upload: " + e.getMessage());
+                return -1;
+            }
+            URL url;
+            try {
+                url = new URL(urlString);
+            } catch (IOException e) {
+                logger.log("Failed to upload log, bad URL " + urlString);
+                return -1;
+            }
+            List<File> pending = queue.getPending();
+            int uploaded = 0;
+            int rejected = 0;
+            int responseCode = -1;
+            for (File entry : pending) {
+                responseCode = upload(url, entry);
+                if (responseCode / 100 == 2) {
+                    entry.delete();
+                    uploaded++;
+                } else if (UploadQueue.isFinal(responseCode)) {
+                    logger.log("Server refused upload " + entry.getName() + " with status code "
+                            + responseCode + ", not sending it again");
+                    try {
+                        queue.reject(entry);
+                    } catch (IOException e) {
+                        entry.delete();
+                    }
+                    rejected++;
+                } else {
+                    break;
+                }
+            }
+            int left = pending.size() - uploaded - rejected;
+            if (left == 0 && rejected == 0) {
                 logger.log("Log successfully uploaded");
+            } else if (left == 0) {
+                logger.log("Uploaded " + uploaded + " logs, " + rejected + " refused");
+            } else if (responseCode == -1) {
+                logger.log("Failed to upload log, " + left + " uploads queued for next time");
             } else {
-                logger.log("Log upload may have failed. Server return status code " + responseCode);
+                logger.log("Log upload may have failed. Server return status code " + responseCode
+                        + ", " + left + " uploads queued for next time");
             }
             return responseCode;
-        } catch (IOException e) {
-            logger.log("Failed to upload log");
-            return -1;
         }
     }
 
+    /**
+     * Sends one entry, resuming after connection problems. Returns the last status code or -1.
+     */
+    private int upload(URL url, File entry) {
+        long offset = 0;
+        int delay = FIRST_RETRY_DELAY_MS;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) offset = queue.getServerOffset(url, entry);
+                int responseCode = queue.send(url, entry, offset);
+                // The server has a different idea of the offset or didn't get everything, ask it
+                // again right away
+                if (responseCode != HttpURLConnection.HTTP_CONFLICT
+                        && responseCode != HttpURLConnection.HTTP_ACCEPTED) {
+                    return responseCode;
+                }
+                continue;
+            } catch (IOException e) {
+                logger.log("Upload interrupted: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            delay *= 2;
+        }
+        return -1;
+    }
+
     void startUpload() {
         super.forceLoad();
     }
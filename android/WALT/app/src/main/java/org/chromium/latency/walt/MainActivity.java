@@ -126,11 +126,18 @@ public class MainActivity extends AppCompatActivity {
         }, 1000);
 
         if (intent != null && AutoRunFragment.TEST_ACTION.equals(intent.getAction())) {
-            getSupportFragmentManager().popBackStack("Automated Test",
-                    FragmentManager.POP_BACK_STACK_INCLUSIVE);
-            Fragment autoRunFragment = new AutoRunFragment();
-            autoRunFragment.setArguments(intent.getExtras());
-            switchScreen(autoRunFragment, "Automated Test");
+            setIntent(null); // Resuming again must not restart the test
+            // Tests on other WALTs may be running there, add this one to them
+            Fragment running = getSupportFragmentManager().findFragmentByTag("Automated Test");
+            if (running instanceof AutoRunFragment && running.isVisible()) {
+                ((AutoRunFragment) running).doTest(intent.getExtras());
+            } else {
+                getSupportFragmentManager().popBackStack("Automated Test",
+                        FragmentManager.POP_BACK_STACK_INCLUSIVE);
+                Fragment autoRunFragment = new AutoRunFragment();
+                autoRunFragment.setArguments(intent.getExtras());
+                switchScreen(autoRunFragment, "Automated Test");
+            }
         }
     }
 
@@ -242,7 +249,7 @@ public class MainActivity extends AppCompatActivity {
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         toolbar.setTitle(title);
         FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
-        transaction.replace(R.id.fragment_container, newFragment);
+        transaction.replace(R.id.fragment_container, newFragment, title);
         transaction.addToBackStack(title);
         transaction.commit();
     }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Splits the byte stream coming from WALT back into messages.
+ *
+ * A single read from USB or from the TCP bridge may hold several messages, or only part of one.
+ * Bytes are accumulated here until a complete message is available. Text messages end with a
+ * newline, which is kept as part of the message. Binary trigger frames start with
+ * TriggerMessage.FRAME_MAGIC and have a fixed size.
+ *
+ * Not thread safe. The same framer is used by whoever is currently reading from the connection.
+ */
+class MessageFramer {
+    private final byte[] buffer;
+    private int start = 0;  // First byte not returned as a message yet
+    private int end = 0;  // One past the last byte received
+    private int messageStart = 0;
+    private int messageLength = 0;
+    private int droppedBytes = 0;
+
+    MessageFramer(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Adds received bytes. If there is no room even after compacting, the pending partial
+     * message can't be completed and is dropped.
+     */
+    void append(byte[] data, int offset, int length) {
+        if (end + length > buffer.length) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end + length > buffer.length) {
+            droppedBytes += end;
+            end = 0;
+            if (length > buffer.length) {
+                droppedBytes += length - buffer.length;
+                offset += length - buffer.length;
+                length = buffer.length;
+            }
+        }
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Finds the next complete message. On success it is at getBuffer()[getMessageStart()] and
+     * stays valid until the next call to append() or next().
+     */
+    boolean next() {
+        if (start == end) return false;
+        int messageEnd;
+        if (buffer[start] == WaltDevice.TriggerMessage.FRAME_MAGIC) {
+            if (end - start < WaltDevice.TriggerMessage.FRAME_SIZE) return false;
+            messageEnd = start + WaltDevice.TriggerMessage.FRAME_SIZE;
+        } else {
+            int i = start;
+            while (i < end && buffer[i] != '\n') i++;
+            if (i == end) return false;
+            messageEnd = i + 1;
+        }
+        messageStart = start;
+        messageLength = messageEnd - start;
+        start = messageEnd;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return true;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getMessageStart() {
+        return messageStart;
+    }
+
+    int getMessageLength() {
+        return messageLength;
+    }
+
+    /**
+     * Returns the number of bytes received but not yet returned as messages.
+     */
+    int getPendingLength() {
+        return end - start;
+    }
+
+    /**
+     * Returns the number of bytes dropped because of overflow since the last call and resets it.
+     */
+    int takeDroppedCount() {
+        int dropped = droppedBytes;
+        droppedBytes = 0;
+        return dropped;
+    }
+
+    void clear() {
+        start = 0;
+        end = 0;
+    }
+}
@@ -115,11 +115,11 @@ public class MidiFragment extends Fragment
         if (!midiTest.deltasOutputTotal.isEmpty()) {
             latencyChart.setLegendEnabled(true);
             latencyChart.setLabel(String.format(
-                    Locale.US, "Median=%.1f ms", Utils.median(midiTest.deltasOutputTotal)));
+                    Locale.US, "Median=%.1f ms", midiTest.deltasOutputTotal.median()));
         } else if (!midiTest.deltasInputTotal.isEmpty()) {
             latencyChart.setLegendEnabled(true);
             latencyChart.setLabel(String.format(
-                    Locale.US, "Median=%.1f ms", Utils.median(midiTest.deltasInputTotal)));
+                    Locale.US, "Median=%.1f ms", midiTest.deltasInputTotal.median()));
         }
         LogUploader.uploadIfAutoEnabled(getContext());
         startMidiInButton.setEnabled(true);
@@ -135,6 +135,10 @@ public class MidiFragment extends Fragment
     @Override
     public void onTestPartialResult(double value) {
         latencyChart.addEntry(value);
+        final LatencyHistogram stats = midiTest.liveStats;
+        latencyChart.setLegendEnabled(true);
+        latencyChart.setLabel(String.format(Locale.US, "p50=%.1f p90=%.1f p99=%.1f ms",
+                stats.getPercentile(50), stats.getPercentile(90), stats.getPercentile(99)));
     }
 
     public static boolean hasMidi(Context context) {
@@ -27,7 +27,6 @@ import android.media.midi.MidiReceiver;
 import android.os.Handler;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Locale;
 
 import static org.chromium.latency.walt.Utils.getIntPreference;
@@ -54,23 +53,28 @@ class MidiTest extends BaseTest {
     private int inputRepetitions;
     private int outputRepetitions;
     private int repetitionsDone;
-    private ArrayList<Double> deltasToSys = new ArrayList<>();
-    ArrayList<Double> deltasInputTotal = new ArrayList<>();
-    ArrayList<Double> deltasOutputTotal = new ArrayList<>();
+    private SampleBuffer deltasToSys = new SampleBuffer();
+    SampleBuffer deltasInputTotal = new SampleBuffer();
+    SampleBuffer deltasOutputTotal = new SampleBuffer();
 
     private static final int noteDelay = 300;
     private static final int timeout = 1000;
 
     MidiTest(Context context) {
-        super(context);
+        this(context, WaltDevice.getInstance(context));
+    }
+
+    MidiTest(Context context, WaltDevice waltDevice) {
+        super(context, waltDevice);
         inputRepetitions = getIntPreference(context, R.string.preference_midi_in_reps, 100);
         outputRepetitions = getIntPreference(context, R.string.preference_midi_out_reps, 10);
         midiManager = (MidiManager) context.getSystemService(Context.MIDI_SERVICE);
         findMidiDevice();
     }
 
-    MidiTest(Context context, AutoRunFragment.ResultHandler resultHandler) {
-        this(context);
+    MidiTest(Context context, WaltDevice waltDevice,
+             AutoRunFragment.ResultHandler resultHandler) {
+        this(context, waltDevice);
         this.resultHandler = resultHandler;
     }
 
@@ -138,13 +142,18 @@ class MidiTest extends BaseTest {
         repetitionsDone = 0;
         deltasInputTotal.clear();
         deltasOutputTotal.clear();
+        liveStats.clear();
 
         midiInputPort = midiDevice.openInputPort(0);
 
         waltDevice.syncClock();
-        waltDevice.command(WaltDevice.CMD_MIDI);
-        waltDevice.startListener();
         waltDevice.setTriggerHandler(triggerHandler);
+        waltDevice.startListener();
+        // The listener picks up the ack, no need to wait for it before the notes are scheduled
+        if (waltDevice.commandNoWait(WaltDevice.CMD_MIDI).isCompletedExceptionally()) {
+            waltDevice.stopListener();
+            throw new IOException("Failed to send CMD_MIDI");
+        }
 
         scheduleNotes();
     }
@@ -177,12 +186,12 @@ class MidiTest extends BaseTest {
     private WaltDevice.TriggerHandler triggerHandler = new WaltDevice.TriggerHandler() {
         @Override
         public void onReceive(WaltDevice.TriggerMessage tmsg) {
-            last_tWalt = tmsg.t + waltDevice.clock.baseTime;
+            last_tWalt = waltDevice.clock.toLocal(tmsg.t);
             double dt = (last_tWalt - last_tSys) / 1000.;
 
             deltasOutputTotal.add(dt);
-            logger.log(String.format(Locale.US, "Note detected: latency of %.3f ms", dt));
-            if (testStateListener != null) testStateListener.onTestPartialResult(dt);
+            logger.log("Note detected: latency of %.3f ms", dt);
+            reportPartialResult(dt);
             if (traceLogger != null) {
                 traceLogger.log(last_tSys, last_tWalt, "MIDI Output",
                         "Bar starts when system sends audio and ends when WALT receives note");
@@ -192,11 +201,7 @@ class MidiTest extends BaseTest {
             repetitionsDone++;
 
             if (repetitionsDone < outputRepetitions) {
-                try {
-                    waltDevice.command(WaltDevice.CMD_MIDI);
-                } catch (IOException e) {
-                    logger.log("Failed to send command CMD_MIDI: " + e.getMessage());
-                }
+                waltDevice.commandNoWait(WaltDevice.CMD_MIDI);
             } else {
                 finishMidiOut();
             }
@@ -224,7 +229,8 @@ class MidiTest extends BaseTest {
     private void finishMidiOut() {
         logger.log("All notes detected");
         logger.log(String.format(
-                Locale.US, "Median total output latency %.1f ms", Utils.median(deltasOutputTotal)));
+                Locale.US, "Median total output latency %.1f ms", deltasOutputTotal.median()));
+        logger.log("Total output latency: " + liveStats.summary());
 
         handler.removeCallbacks(cancelMidiOutRunnable);
 
@@ -283,8 +289,9 @@ class MidiTest extends BaseTest {
             logger.log("MIDI Input Test Results:");
             logger.log(String.format(Locale.US,
                     "Median MIDI subsystem latency %.1f ms\nMedian total latency %.1f ms",
-                    Utils.median(deltasToSys), Utils.median(deltasInputTotal)
+                    deltasToSys.median(), deltasInputTotal.median()
             ));
+            logger.log("Total input latency: " + liveStats.summary());
 
             if (resultHandler != null) {
                 resultHandler.onResult(deltasToSys, deltasInputTotal);
@@ -301,31 +308,28 @@ class MidiTest extends BaseTest {
             if(count > 0 && data[offset] == (byte) 0x90) { // NoteOn message on channel 1
                 handler.removeCallbacks(finishMidiInRunnable);
                 last_tJava = waltDevice.clock.micros();
-                last_tSys = timestamp / 1000 - waltDevice.clock.baseTime;
+                last_tSys = waltDevice.clock.toRemote(timestamp / 1000);
 
                 final double d1 = (last_tSys - last_tWalt) / 1000.;
                 final double d2 = (last_tJava - last_tSys) / 1000.;
                 final double dt = (last_tJava - last_tWalt) / 1000.;
-                logger.log(String.format(Locale.US,
-                        "Result: Time to MIDI subsystem = %.3f ms, Time to Java = %.3f ms, " +
+                logger.log("Result: Time to MIDI subsystem = %.3f ms, Time to Java = %.3f ms, " +
                                 "Total = %.3f ms",
-                        d1, d2, dt));
+                        d1, d2, dt);
                 deltasToSys.add(d1);
                 deltasInputTotal.add(dt);
-                if (testStateListener != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            testStateListener.onTestPartialResult(dt);
-                        }
-                    });
-                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reportPartialResult(dt);
+                    }
+                });
                 if (traceLogger != null) {
-                    traceLogger.log(last_tWalt + waltDevice.clock.baseTime,
-                            last_tSys + waltDevice.clock.baseTime, "MIDI Input Subsystem",
+                    traceLogger.log(waltDevice.clock.toLocal(last_tWalt),
+                            waltDevice.clock.toLocal(last_tSys), "MIDI Input Subsystem",
                             "Bar starts when WALT sends note and ends when received by MIDI subsystem");
-                    traceLogger.log(last_tSys + waltDevice.clock.baseTime,
-                            last_tJava + waltDevice.clock.baseTime, "MIDI Input Java",
+                    traceLogger.log(waltDevice.clock.toLocal(last_tSys),
+                            waltDevice.clock.toLocal(last_tJava), "MIDI Input Java",
                             "Bar starts when note received by MIDI subsystem and ends when received by app");
                 }
 
@@ -345,8 +349,8 @@ class MidiTest extends BaseTest {
                     handler.post(finishMidiInRunnable);
                 }
             } else {
-                logger.log(String.format(Locale.US, "Expected 0x90, got 0x%x and count was %d",
-                        data[offset], count));
+                logger.log("Expected 0x90, got 0x%x and count was %d",
+                        data[offset], count);
             }
         }
     }
@@ -355,6 +359,7 @@ class MidiTest extends BaseTest {
         repetitionsDone = 0;
         deltasInputTotal.clear();
         deltasOutputTotal.clear();
+        liveStats.clear();
         midiOutputPort = midiDevice.openOutputPort(0);
         midiOutputPort.connect(new WaltReceiver());
         waltDevice.syncClock();
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A socket to the WALT TCP bridge, read by a dedicated thread.
+ *
+ * The reader thread waits on a selector, reads whatever arrived into a direct buffer and splits it
+ * into messages with a MessageFramer. Complete messages are copied into preallocated slots and
+ * queued for read(), so nothing is allocated per message and a message is available to the
+ * reader as soon as its last byte arrives. When read() falls behind and all slots are in use,
+ * new messages are dropped and counted.
+ *
+ * Plain Java, no Android dependencies.
+ */
+class NioMessageChannel {
+    static final int MESSAGE_SIZE = 1024 * 4;
+    static final int DEFAULT_SLOTS = 64;
+
+    static final int READ_TIMEOUT = -2;
+    static final int READ_CLOSED = -1;
+
+    private static class Message {
+        final byte[] data = new byte[MESSAGE_SIZE];
+        int length;
+    }
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+    private final byte[] readBytes = new byte[MESSAGE_SIZE];
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+    private final MessageFramer framer = new MessageFramer(MESSAGE_SIZE);
+    private final ArrayBlockingQueue<Message> free;
+    private final ArrayBlockingQueue<Message> ready;
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final Thread readerThread;
+    private volatile boolean open = true;
+
+    /**
+     * Connects to the bridge, blocking for at most timeoutMs, and starts the reader thread.
+     */
+    NioMessageChannel(InetSocketAddress address, int timeoutMs) throws IOException {
+        this(address, timeoutMs, DEFAULT_SLOTS);
+    }
+
+    NioMessageChannel(InetSocketAddress address, int timeoutMs, int slots) throws IOException {
+        free = new ArrayBlockingQueue<>(slots);
+        ready = new ArrayBlockingQueue<>(slots);
+        for (int i = 0; i < slots; i++) free.add(new Message());
+
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, timeoutMs);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "WALT TCP reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private void readLoop() {
+        try {
+            while (open) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int n;
+                while ((n = channel.read(readBuffer)) > 0) {
+                    readBuffer.flip();
+                    readBuffer.get(readBytes, 0, n);
+                    readBuffer.clear();
+                    framer.append(readBytes, 0, n);
+                    while (framer.next()) {
+                        queueMessage();
+                    }
+                }
+                if (n < 0) break;  // The bridge closed the connection
+            }
+        } catch (IOException e) {
+            // Closed by close() or a network error, either way there is nothing more to read
+        } finally {
+            open = false;
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Ignore, already closing
+            }
+        }
+    }
+
+    private void queueMessage() {
+        Message message = free.poll();
+        if (message == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        message.length = framer.getMessageLength();
+        System.arraycopy(framer.getBuffer(), framer.getMessageStart(), message.data, 0,
+                message.length);
+        ready.add(message);
+    }
+
+    /**
+     * Waits up to timeoutMs for the next message and copies it to buff, truncating it if buff is
+     * too short. Returns its length, READ_TIMEOUT or READ_CLOSED.
+     */
+    int read(byte[] buff, long timeoutMs) {
+        Message message;
+        try {
+            message = ready.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return READ_CLOSED;
+        }
+        if (message == null) {
+            return open ? READ_TIMEOUT : READ_CLOSED;
+        }
+        int length = Math.min(message.length, buff.length);
+        System.arraycopy(message.data, 0, buff, 0, length);
+        free.add(message);
+        return length;
+    }
+
+    synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (!open) throw new IOException("Connection to TCP bridge is closed");
+        while (length > 0) {
+            int chunk = Math.min(length, writeBuffer.capacity());
+            writeBuffer.clear();
+            writeBuffer.put(data, offset, chunk);
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                // Only spins if the socket send buffer is full, which WALT commands never do
+                if (channel.write(writeBuffer) == 0) Thread.yield();
+            }
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    synchronized void write(byte b) throws IOException {
+        if (!open) throw new IOException("Connection to TCP bridge is closed");
+        writeBuffer.clear();
+        writeBuffer.put(b);
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            if (channel.write(writeBuffer) == 0) Thread.yield();
+        }
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the number of messages dropped since the last call and resets it.
+     */
+    int takeDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+
+    void close() {
+        open = false;
+        selector.wakeup();
+        try {
+            readerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Tells screen transitions from the flicker of a PWM dimmed screen in the screen triggers.
+ *
+ * With PWM the photosensor sees a white screen go dark and bright again every PWM period, and
+ * WALT sends a trigger for every edge. First calibrate() is fed the triggers seen while the
+ * screen is steadily white, which gives the PWM period, if any.
+ *
+ * After that, for each blink:
+ * - to white, the first rising edge is the transition, everything after it is flicker
+ * - to black, the transition is the last falling edge, which is only known to be the last once no
+ *   rising edge followed for getConfirmDelayMs(). The caller calls onQuiet() then.
+ *
+ * Plain Java, no Android dependencies. Not thread safe.
+ */
+class PwmDebouncer {
+
+    // Intervals needed to believe in a period, and the longest period still taken for PWM
+    static final int MIN_INTERVALS = 4;
+    static final long MAX_PERIOD_US = 50000;
+
+    private final SampleBuffer intervals = new SampleBuffer();
+    private long lastRise = -1;
+    private int edges = 0;
+    private long period = 0;
+
+    private boolean expectWhite;
+    private boolean isDone = true;
+    private long pendingFall = -1;
+
+    /**
+     * Records a trigger seen while the screen is white and not changing. Value is the state after
+     * the edge, 1 for bright, count the number of edges the trigger stands for.
+     */
+    void calibrate(long t, int value, int count) {
+        edges += count;
+        if (value != 1) return;
+        // With more than one edge per trigger the time of the previous rising edge is unknown
+        if (count == 1 && lastRise >= 0) intervals.add(t - lastRise);
+        lastRise = count == 1 ? t : -1;
+    }
+
+    /**
+     * Ends calibration and returns the PWM period in us, 0 if there is no PWM.
+     */
+    long finishCalibration() {
+        period = 0;
+        if (intervals.size() >= MIN_INTERVALS) {
+            long median = (long) intervals.median();
+            if (median > 0 && median <= MAX_PERIOD_US) period = median;
+        }
+        return period;
+    }
+
+    /**
+     * Number of edges seen during calibration.
+     */
+    int getCalibrationEdges() {
+        return edges;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Sets the period instead of calibrating, e.g. from a capture.
+     */
+    void setPeriod(long period) {
+        this.period = period;
+    }
+
+    /**
+     * How long a falling edge must not be followed by a rising one to count as the transition.
+     * Two periods, plus some slack for the delivery of the triggers.
+     */
+    long getConfirmDelayMs() {
+        return 2 * period / 1000 + 10;
+    }
+
+    /**
+     * Starts waiting for the transition to white or to black.
+     */
+    void expect(boolean white) {
+        expectWhite = white;
+        isDone = false;
+        pendingFall = -1;
+    }
+
+    /**
+     * Returns the time of the transition if this trigger completes it, -1 otherwise.
+     */
+    long onTrigger(long t, int value) {
+        if (isDone) return -1;
+        if (expectWhite) {
+            if (value != 1) return -1;
+            isDone = true;
+            return t;
+        }
+        // A rising edge means the falling one before it was flicker
+        pendingFall = value == 1 ? -1 : t;
+        return -1;
+    }
+
+    /**
+     * Whether a falling edge waits for confirmation with onQuiet().
+     */
+    boolean isPending() {
+        return !isDone && pendingFall >= 0;
+    }
+
+    /**
+     * Call when no trigger came for getConfirmDelayMs() after the last one. Returns the time of
+     * the transition to black, -1 if there is none.
+     */
+    long onQuiet() {
+        if (!isPending()) return -1;
+        isDone = true;
+        return pendingFall;
+    }
+
+    void clear() {
+        intervals.clear();
+        lastRise = -1;
+        edges = 0;
+        period = 0;
+        isDone = true;
+        pendingFall = -1;
+    }
+}
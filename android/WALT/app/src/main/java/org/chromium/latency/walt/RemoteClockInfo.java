@@ -19,6 +19,7 @@ package org.chromium.latency.walt;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.Locale;
 
 /**
  * Representation of our best knowledge of the remote clock.
@@ -40,6 +41,11 @@ import java.lang.reflect.Method;
  * Immediately after synchronization or an update of the bounds (minLag, maxLag) the following holds
  * t_remote + minLag < micros() < t_rmote + maxLag
  *
+ * The two clocks run at slightly different rates. skew is how much faster the remote clock runs,
+ * e.g. 20e-6 for 20 ppm, as estimated by ClockSkewTracker. micros(), toRemote() and toLocal()
+ * correct for it, so that the above stays true long after synchronization. The lag bounds are
+ * always measured against the uncorrected clock, local time - baseTime, see skewCorrection().
+ *
  * For more details about clock synchronization refer to
  * https://github.com/google/walt/blob/master/android/WALT/app/src/main/jni/README.md
  * and sync_clock.c
@@ -49,10 +55,33 @@ public class RemoteClockInfo {
     public int minLag;
     public int maxLag;
     public long baseTime;
+    public volatile double skew;
 
 
     public long micros() {
-        return microTime() - baseTime;
+        return toRemote(microTime());
+    }
+
+    /**
+     * Converts a local time, as returned by microTime(), to the remote clock.
+     */
+    public long toRemote(long localMicros) {
+        long dt = localMicros - baseTime;
+        return dt + (long) (dt * skew);
+    }
+
+    /**
+     * Converts a remote time, e.g. of a trigger, to local time.
+     */
+    public long toLocal(long remoteMicros) {
+        return baseTime + remoteMicros - (long) (remoteMicros * skew / (1 + skew));
+    }
+
+    /**
+     * What to add to lag bounds measured at the given local time to get the lag of micros().
+     */
+    public int skewCorrection(long localMicros) {
+        return (int) ((localMicros - baseTime) * skew);
     }
 
     public static long microTime() {
@@ -112,6 +141,7 @@ public class RemoteClockInfo {
 
     public String toString(){
         return "Remote clock [us]: current time = " + micros() + " baseTime = " + baseTime +
-                " lagBounds = (" + minLag + ", " + maxLag + ")";
+                " lagBounds = (" + minLag + ", " + maxLag + ")" +
+                String.format(Locale.US, " skew = %.2f ppm", skew * 1e6);
     }
 }
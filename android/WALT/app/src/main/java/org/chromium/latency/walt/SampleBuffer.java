@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of double samples, e.g. measured latencies in ms.
+ *
+ * Stores the samples in a primitive array so that recording a sample does not allocate once the
+ * buffer has grown to size. Statistics are computed without boxing and keep the samples in the
+ * order they were added. Not thread safe.
+ */
+public class SampleBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] samples;
+    private int size = 0;
+    private double[] scratch = new double[0];  // Reused by median()
+
+    public SampleBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public SampleBuffer(int capacity) {
+        samples = new double[Math.max(capacity, 1)];
+    }
+
+    public void add(double sample) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[size++] = sample;
+    }
+
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return samples[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Forgets all samples but keeps the capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public double[] toArray() {
+        return Arrays.copyOf(samples, size);
+    }
+
+    /**
+     * Same as MathUtils.median(), NaN if there are no samples.
+     */
+    public double median() {
+        if (size == 0) return Double.NaN;
+        if (scratch.length < size) scratch = new double[samples.length];
+        System.arraycopy(samples, 0, scratch, 0, size);
+
+        int mid = size / 2;
+        double upper = select(scratch, size, mid);
+        if (size % 2 == 1) return upper;
+        // select() left everything below mid in [0, mid), the lower middle is the largest of them
+        double lower = scratch[0];
+        for (int i = 1; i < mid; i++) {
+            if (scratch[i] > lower) lower = scratch[i];
+        }
+        return 0.5 * (upper + lower);
+    }
+
+    public double mean() {
+        if (size == 0) return Double.NaN;
+        double s = 0;
+        for (int i = 0; i < size; i++) s += samples[i];
+        return s / size;
+    }
+
+    /**
+     * Population standard deviation, same as MathUtils.stdev().
+     */
+    public double stdev() {
+        if (size == 0) return Double.NaN;
+        double m = mean();
+        double sumsq = 0;
+        for (int i = 0; i < size; i++) sumsq += (samples[i] - m) * (samples[i] - m);
+        return Math.sqrt(sumsq / size);
+    }
+
+    public double min() {
+        if (size == 0) return Double.NaN;
+        double m = samples[0];
+        for (int i = 1; i < size; i++) if (samples[i] < m) m = samples[i];
+        return m;
+    }
+
+    public double max() {
+        if (size == 0) return Double.NaN;
+        double m = samples[0];
+        for (int i = 1; i < size; i++) if (samples[i] > m) m = samples[i];
+        return m;
+    }
+
+    /**
+     * Formats the samples like ArrayList.toString() so existing log output does not change.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(samples[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Quickselect, moves the k-th smallest of a[0..n) to a[k] with smaller ones before it.
+     */
+    private static double select(double[] a, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            double pivot = a[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    double t = a[i];
+                    a[i] = a[j];
+                    a[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+}
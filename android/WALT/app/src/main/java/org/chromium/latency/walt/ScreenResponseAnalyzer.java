@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Statistics of the screen response test: the time from the start of the frame that changed the
+ * color to the photosensor seeing the change, in ms.
+ *
+ * Kept separate from ScreenResponseFragment so it can run on a plain JVM, e.g. to re-analyze
+ * saved captures. Not thread safe.
+ */
+class ScreenResponseAnalyzer {
+
+    static final char MARK_FRAME = 'F';
+    // The PWM period in us measured before blinking, see PwmDebouncer
+    static final char MARK_PWM_PERIOD = 'P';
+
+    final SampleBuffer deltas = new SampleBuffer();
+    final SampleBuffer deltasB2w = new SampleBuffer();
+    final SampleBuffer deltasW2b = new SampleBuffer();
+
+    /**
+     * Records a blink and returns its latency in ms. Times are in microseconds, isWhite is the
+     * color the screen changed to.
+     */
+    double add(long frameStartTime, long detectionTime, boolean isWhite) {
+        double dt = (detectionTime - frameStartTime) / 1000.;
+        deltas.add(dt);
+        if (isWhite) {
+            deltasB2w.add(dt);
+        } else {
+            deltasW2b.add(dt);
+        }
+        return dt;
+    }
+
+    void clear() {
+        deltas.clear();
+        deltasB2w.clear();
+        deltasW2b.clear();
+    }
+
+    /**
+     * Mean of the black-to-white and white-to-black medians.
+     */
+    double averageMedian() {
+        return (deltasB2w.median() + deltasW2b.median()) / 2;
+    }
+
+    /**
+     * Replays a capture of the screen response test. Each trigger from the photosensor goes with
+     * the last frame start mark before it, triggers before the first blink are ignored like in
+     * the live test. If the capture has a PWM period, the triggers are debounced like in the live
+     * test.
+     */
+    static ScreenResponseAnalyzer analyze(CaptureFile.Reader capture) {
+        CaptureFile.Marks marks = capture.getMarks();
+        CaptureFile.Triggers triggers = capture.getTriggers();
+        for (int i = 0; i < marks.size; i++) {
+            if (marks.tag[i] == MARK_PWM_PERIOD && marks.value[i] > 0) {
+                return analyzePwm(marks, triggers, marks.value[i]);
+            }
+        }
+        ScreenResponseAnalyzer analyzer = new ScreenResponseAnalyzer();
+        int frame = -1;  // Last frame start mark so far
+        int next = 0;
+        for (int i = 0; i < triggers.size; i++) {
+            long t = triggers.t[i];
+            while (next < marks.size && marks.t[next] <= t) {
+                if (marks.tag[next] == MARK_FRAME) frame = next;
+                next++;
+            }
+            if (frame < 0) continue;
+            analyzer.add(marks.t[frame], t, marks.value[frame] == 1);
+        }
+        return analyzer;
+    }
+
+    /**
+     * Where the live test waits for a quiet time to confirm a transition to black, this looks at
+     * the time to the next trigger, or the next frame.
+     */
+    private static ScreenResponseAnalyzer analyzePwm(CaptureFile.Marks marks,
+                                                     CaptureFile.Triggers triggers, long period) {
+        ScreenResponseAnalyzer analyzer = new ScreenResponseAnalyzer();
+        PwmDebouncer debouncer = new PwmDebouncer();
+        debouncer.setPeriod(period);
+        long confirmDelay = debouncer.getConfirmDelayMs() * 1000;
+        int frame = -1;
+        int next = 0;
+        long lastTrigger = 0;
+        for (int i = 0; i < triggers.size; i++) {
+            long t = triggers.t[i];
+            if (debouncer.isPending() && t - lastTrigger > confirmDelay) {
+                analyzer.add(marks.t[frame], debouncer.onQuiet(), false);
+            }
+            while (next < marks.size && marks.t[next] <= t) {
+                if (marks.tag[next] == MARK_FRAME) {
+                    if (debouncer.isPending()) analyzer.add(marks.t[frame], debouncer.onQuiet(), false);
+                    frame = next;
+                    debouncer.expect(marks.value[frame] == 1);
+                }
+                next++;
+            }
+            lastTrigger = t;
+            if (frame < 0) continue;
+            long transition = debouncer.onTrigger(t, triggers.value[i]);
+            if (transition >= 0) analyzer.add(marks.t[frame], transition, true);
+        }
+        if (debouncer.isPending()) analyzer.add(marks.t[frame], debouncer.onQuiet(), false);
+        return analyzer;
+    }
+}
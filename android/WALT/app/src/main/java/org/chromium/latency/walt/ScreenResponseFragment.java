@@ -28,9 +28,11 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.method.ScrollingMovementMethod;
 import android.view.Choreographer;
+import android.view.FrameMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ArrayAdapter;
 import android.widget.Spinner;
@@ -57,11 +59,14 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
 
     private static final int CURVE_TIMEOUT = 1000;  // milliseconds
     private static final int CURVE_BLINK_TIME = 250;  // milliseconds
+    private static final int CURVE_LOG_LINES = 100;  // samples per log message
     private static final int W2B_INDEX = 0;
     private static final int B2W_INDEX = 1;
+    private static final int PWM_CALIBRATION_TIME = 500;  // milliseconds
     private SimpleLogger logger;
     private TraceLogger traceLogger = null;
     private WaltDevice waltDevice;
+    private EventCapture capture;
     private Handler handler = new Handler();
     private TextView blackBox;
     private View startButton;
@@ -77,17 +82,21 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
     private boolean isTestRunning = false;
     private boolean enableFullScreen = false;
     private boolean isFastPathGraphics = false;
+    private boolean isPwmAware = true;
+    private boolean isCalibrating = false;
+    private PwmDebouncer pwmDebouncer = new PwmDebouncer();
     int initiatedBlinks = 0;
     int detectedBlinks = 0;
     boolean isBoxWhite = false;
     long lastFrameStartTime;
     long lastFrameCallbackTime;
     long lastSetBackgroundTime;
-    ArrayList<Double> deltas_w2b = new ArrayList<>();
-    ArrayList<Double> deltas_b2w = new ArrayList<>();
-    ArrayList<Double> deltas = new ArrayList<>();
+    long lastFrameTimeNanos;
+    ScreenResponseAnalyzer stats = new ScreenResponseAnalyzer();
+    FrameBreakdown frameStats = new FrameBreakdown();
+    private Window frameMetricsWindow = null;
     private static final int color_gray = Color.argb(0xFF, 0xBB, 0xBB, 0xBB);
-    private StringBuilder brightnessCurveData;
+    private BrightnessCurve brightnessCurve = new BrightnessCurve();
 
     private BroadcastReceiver logReceiver = new BroadcastReceiver() {
         @Override
@@ -99,6 +108,27 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
         }
     };
 
+    // Called on the UI thread through handler, the same thread as everything else here
+    private Window.OnFrameMetricsAvailableListener frameMetricsListener =
+            new Window.OnFrameMetricsAvailableListener() {
+        @Override
+        public void onFrameMetricsAvailable(Window window, FrameMetrics metrics, int dropCount) {
+            FrameBreakdown.Frame frame = new FrameBreakdown.Frame();
+            frame.intendedVsync = metrics.getMetric(FrameMetrics.INTENDED_VSYNC_TIMESTAMP);
+            frame.vsync = metrics.getMetric(FrameMetrics.VSYNC_TIMESTAMP);
+            frame.input = metrics.getMetric(FrameMetrics.INPUT_HANDLING_DURATION);
+            frame.animation = metrics.getMetric(FrameMetrics.ANIMATION_DURATION);
+            frame.layout = metrics.getMetric(FrameMetrics.LAYOUT_MEASURE_DURATION);
+            frame.draw = metrics.getMetric(FrameMetrics.DRAW_DURATION);
+            frame.sync = metrics.getMetric(FrameMetrics.SYNC_DURATION);
+            frame.command = metrics.getMetric(FrameMetrics.COMMAND_ISSUE_DURATION);
+            frame.swap = metrics.getMetric(FrameMetrics.SWAP_BUFFERS_DURATION);
+            frame.gpu = metrics.getMetric(FrameMetrics.GPU_DURATION);
+            frame.total = metrics.getMetric(FrameMetrics.TOTAL_DURATION);
+            frameStats.addFrame(frame);
+        }
+    };
+
     public ScreenResponseFragment() {
         // Required empty public constructor
     }
@@ -109,10 +139,12 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
         timesToBlink = getIntPreference(getContext(), R.string.preference_screen_blinks, 20);
         shouldShowLatencyChart = getBooleanPreference(getContext(), R.string.preference_show_blink_histogram, true);
         enableFullScreen = getBooleanPreference(getContext(), R.string.preference_screen_fullscreen, true);
+        isPwmAware = getBooleanPreference(getContext(), R.string.preference_screen_pwm_aware, true);
         if (getBooleanPreference(getContext(), R.string.preference_systrace, true)) {
             traceLogger = TraceLogger.getInstance();
         }
         waltDevice = WaltDevice.getInstance(getContext());
+        capture = new EventCapture(getContext());
         logger = SimpleLogger.getInstance(getContext());
 
         // Inflate the layout for this fragment
@@ -156,11 +188,22 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
         super.onPause();
     }
 
+    @Override
+    public void onDestroyView() {
+        // Left in the middle of a run, keep what was captured so far
+        capture.finish(waltDevice.clock);
+        super.onDestroyView();
+    }
+
     void startBlinkLatency() {
         setFullScreen(enableFullScreen);
-        deltas.clear();
-        deltas_b2w.clear();
-        deltas_w2b.clear();
+        stats.clear();
+        frameStats.clear();
+        // The fast path draws on its own surface, which the window's frame metrics don't cover
+        if (!isFastPathGraphics && getActivity() != null) {
+            frameMetricsWindow = getActivity().getWindow();
+            frameMetricsWindow.addOnFrameMetricsAvailableListener(frameMetricsListener, handler);
+        }
         if (shouldShowLatencyChart) {
             latencyChart.clearData();
             latencyChart.setVisibility(View.VISIBLE);
@@ -192,8 +235,10 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
 
                 waltDevice.softReset();
                 waltDevice.syncClock(); // Note, sync also sends CMD_RESET (but not simpleSync).
-                waltDevice.command(WaltDevice.CMD_AUTO_SCREEN_ON);
+                capture.start("screen", waltDevice.clock);
                 waltDevice.startListener();
+                // The listener picks up the ack while the first blink is prepared
+                waltDevice.commandNoWait(WaltDevice.CMD_AUTO_SCREEN_ON);
             } catch (IOException e) {
                 logger.log("Error: " + e.getMessage());
             }
@@ -201,8 +246,41 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
             // Register a callback for triggers
             waltDevice.setTriggerHandler(triggerHandler);
 
-            // post doBlink runnable
-            handler.postDelayed(doBlinkRunnable, 100);
+            pwmDebouncer.clear();
+            if (isPwmAware) {
+                // The screen is white now, any triggers until the first blink are PWM flicker
+                isCalibrating = true;
+                handler.postDelayed(finishPwmCalibration, PWM_CALIBRATION_TIME);
+            } else {
+                // post doBlink runnable
+                handler.postDelayed(doBlinkRunnable, 100);
+            }
+        }
+    };
+
+    Runnable finishPwmCalibration = new Runnable() {
+        @Override
+        public void run() {
+            isCalibrating = false;
+            long period = pwmDebouncer.finishCalibration();
+            if (period > 0) {
+                capture.mark(ScreenResponseAnalyzer.MARK_PWM_PERIOD, waltDevice.clock.micros(),
+                        (int) period);
+                logger.log("PWM detected, period %.2f ms (%.0f Hz), ignoring flicker",
+                        period / 1000., 1e6 / period);
+            } else if (pwmDebouncer.getCalibrationEdges() > 0) {
+                logger.log("Got %d screen triggers without blinking but no steady PWM period",
+                        pwmDebouncer.getCalibrationEdges());
+            }
+            handler.post(doBlinkRunnable);
+        }
+    };
+
+    Runnable confirmPwmFall = new Runnable() {
+        @Override
+        public void run() {
+            long t = pwmDebouncer.onQuiet();
+            if (t >= 0) onScreenTransition(t);
         }
     };
 
@@ -233,9 +311,10 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
             isBoxWhite = !isBoxWhite;
             int nextColor = isBoxWhite ? Color.WHITE : Color.BLACK;
             initiatedBlinks++;
+            pwmDebouncer.expect(isBoxWhite);
             if (traceLogger != null) {
                 traceLogger.log(RemoteClockInfo.microTime(), RemoteClockInfo.microTime() + 1000,
-                        "Request-to-" + (isBoxWhite ? "white" : "black"),
+                        isBoxWhite ? "Request-to-white" : "Request-to-black",
                         "Application has called setBackgroundColor at start of bar");
             }
             if (isFastPathGraphics) {
@@ -251,8 +330,11 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
                 public void doFrame(long frameTimeNanos) {
                     // frameTimeNanos is he time in nanoseconds when the frame started being
                     // rendered, in the nanoTime() timebase.
-                    lastFrameStartTime = frameTimeNanos / 1000 - waltDevice.clock.baseTime;
-                    lastFrameCallbackTime = System.nanoTime() / 1000 - waltDevice.clock.baseTime;
+                    lastFrameTimeNanos = frameTimeNanos;
+                    lastFrameStartTime = waltDevice.clock.toRemote(frameTimeNanos / 1000);
+                    lastFrameCallbackTime = waltDevice.clock.toRemote(System.nanoTime() / 1000);
+                    // The value is the color the frame shows, 1 for white
+                    capture.mark(ScreenResponseAnalyzer.MARK_FRAME, lastFrameStartTime, isBoxWhite ? 1 : 0);
                 }
             });
 
@@ -275,57 +357,73 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
     private WaltDevice.TriggerHandler triggerHandler = new WaltDevice.TriggerHandler() {
         @Override
         public void onReceive(WaltDevice.TriggerMessage tmsg) {
-            // Remove the far away doBlink callback
-            handler.removeCallbacks(doBlinkRunnable);
-
-            detectedBlinks++;
-            logger.log("blink counts " + initiatedBlinks + " " + detectedBlinks);
-            if (initiatedBlinks == 0) {
-                if (detectedBlinks < 5) {
-                    logger.log("got incoming but initiatedBlinks = 0");
-                    return;
-                } else {
-                    logger.log("Looks like PWM is used for this screen, turn auto brightness off and set it to max brightness");
-                    showPwmDialog();
-                    return;
-                }
+            capture.trigger(tmsg);
+            if (isCalibrating) {
+                pwmDebouncer.calibrate(tmsg.t, tmsg.value, tmsg.count);
+                return;
             }
-
-            final long startTimeMicros = lastFrameStartTime + waltDevice.clock.baseTime;
-            final long finishTimeMicros = tmsg.t + waltDevice.clock.baseTime;
-            if (traceLogger != null) {
-                traceLogger.log(startTimeMicros, finishTimeMicros,
-                        isBoxWhite ? "Black-to-white" : "White-to-black",
-                        "Bar starts at beginning of frame and ends when photosensor detects blink");
+            if (pwmDebouncer.getPeriod() > 0) {
+                handler.removeCallbacks(confirmPwmFall);
+                long t = pwmDebouncer.onTrigger(tmsg.t, tmsg.value);
+                if (t >= 0) {
+                    onScreenTransition(t);
+                } else if (pwmDebouncer.isPending()) {
+                    handler.postDelayed(confirmPwmFall, pwmDebouncer.getConfirmDelayMs());
+                }
+                return;
             }
+            onScreenTransition(tmsg.t);
+        }
+    };
 
-            double dt = (tmsg.t - lastFrameStartTime) / 1000.;
-            deltas.add(dt);
-            if (isBoxWhite) {  // Current color is the color we transitioned to
-                deltas_b2w.add(dt);
+    /**
+     * Handles a change of the screen color seen by WALT at remote time t.
+     */
+    private void onScreenTransition(long t) {
+        // Remove the far away doBlink callback
+        handler.removeCallbacks(doBlinkRunnable);
+
+        detectedBlinks++;
+        logger.log("blink counts " + initiatedBlinks + " " + detectedBlinks);
+        if (initiatedBlinks == 0) {
+            if (detectedBlinks < 5) {
+                logger.log("got incoming but initiatedBlinks = 0");
+                return;
             } else {
-                deltas_w2b.add(dt);
-            }
-            if (shouldShowLatencyChart) latencyChart.addEntry(isBoxWhite ? B2W_INDEX : W2B_INDEX, dt);
-
-            // Other times can be important, logging them to allow more detailed analysis
-            logger.log(String.format(Locale.US,
-                    "Times [ms]: setBG:%.3f callback:%.3f physical:%.3f black2white:%d",
-                    (lastSetBackgroundTime - lastFrameStartTime) / 1000.0,
-                    (lastFrameCallbackTime - lastFrameStartTime) / 1000.0,
-                    dt,
-                    isBoxWhite ? 1 : 0
-            ));
-            if (traceLogger != null) {
-                traceLogger.log(lastFrameCallbackTime + waltDevice.clock.baseTime,
-                        lastFrameCallbackTime + waltDevice.clock.baseTime + 1000,
-                        isBoxWhite ? "FrameCallback Black-to-white" : "FrameCallback White-to-black",
-                        "FrameCallback was called at start of bar");
+                logger.log("Looks like PWM is used for this screen, turn auto brightness off and set it to max brightness");
+                showPwmDialog();
+                return;
             }
-            // Schedule another blink soon-ish
-            handler.postDelayed(doBlinkRunnable, 40 + (long) (Math.random()*20));
         }
-    };
+
+        final long startTimeMicros = waltDevice.clock.toLocal(lastFrameStartTime);
+        final long finishTimeMicros = waltDevice.clock.toLocal(t);
+        if (traceLogger != null) {
+            traceLogger.log(startTimeMicros, finishTimeMicros,
+                    isBoxWhite ? "Black-to-white" : "White-to-black",
+                    "Bar starts at beginning of frame and ends when photosensor detects blink");
+        }
+
+        // Current color is the color we transitioned to
+        double dt = stats.add(lastFrameStartTime, t, isBoxWhite);
+        if (shouldShowLatencyChart) latencyChart.addEntry(isBoxWhite ? B2W_INDEX : W2B_INDEX, dt);
+        frameStats.addBlink(lastFrameTimeNanos, dt);
+
+        // Other times can be important, logging them to allow more detailed analysis
+        logger.log("Times [ms]: setBG:%.3f callback:%.3f physical:%.3f black2white:%d",
+                (lastSetBackgroundTime - lastFrameStartTime) / 1000.0,
+                (lastFrameCallbackTime - lastFrameStartTime) / 1000.0,
+                dt,
+                isBoxWhite ? 1 : 0);
+        if (traceLogger != null) {
+            traceLogger.log(waltDevice.clock.toLocal(lastFrameCallbackTime),
+                    waltDevice.clock.toLocal(lastFrameCallbackTime) + 1000,
+                    isBoxWhite ? "FrameCallback Black-to-white" : "FrameCallback White-to-black",
+                    "FrameCallback was called at start of bar");
+        }
+        // Schedule another blink soon-ish
+        handler.postDelayed(doBlinkRunnable, 40 + (long) (Math.random()*20));
+    }
 
 
     void finishAndShowStats() {
@@ -335,20 +433,27 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
 
         // Unregister trigger handler
         waltDevice.clearTriggerHandler();
+        handler.removeCallbacks(confirmPwmFall);
 
         waltDevice.sendAndFlush(WaltDevice.CMD_AUTO_SCREEN_OFF);
 
         waltDevice.checkDrift();
+        capture.finish(waltDevice.clock);
+        final boolean hasFrameMetrics = frameMetricsWindow != null;
+        if (hasFrameMetrics) {
+            frameMetricsWindow.removeOnFrameMetricsAvailableListener(frameMetricsListener);
+            frameMetricsWindow = null;
+        }
 
         // Show deltas and the median
         /* // Debug printouts
-        logger.log("deltas = array(" + deltas.toString() + ")");
-        logger.log("deltas_w2b = array(" + deltas_w2b.toString() + ")");
-        logger.log("deltas_b2w = array(" + deltas_b2w.toString() + ")");
+        logger.log("deltas = array(" + stats.deltas.toString() + ")");
+        logger.log("deltas_w2b = array(" + stats.deltasW2b.toString() + ")");
+        logger.log("deltas_b2w = array(" + stats.deltasB2w.toString() + ")");
         */
 
-        double median_b2w = Utils.median(deltas_b2w);
-        double median_w2b = Utils.median(deltas_w2b);
+        double median_b2w = stats.deltasB2w.median();
+        double median_w2b = stats.deltasW2b.median();
         logger.log(String.format(Locale.US,
                 "\n-------------------------------\n" +
                         "Median screen response latencies (N=%d):\n" +
@@ -356,12 +461,14 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
                         "White to black: %.1f ms (N=%d)\n" +
                         "Average: %.1f ms\n" +
                         "-------------------------------\n",
-                deltas.size(),
-                median_b2w, deltas_b2w.size(),
-                median_w2b, deltas_w2b.size(),
-                (median_b2w + median_w2b) / 2
+                stats.deltas.size(),
+                median_b2w, stats.deltasB2w.size(),
+                median_w2b, stats.deltasW2b.size(),
+                stats.averageMedian()
         ));
 
+        if (hasFrameMetrics) logFrameBreakdown();
+
         if (traceLogger != null) traceLogger.flush(getContext());
         fastSurfaceView.setVisibility(View.GONE);
         blackBox.setVisibility(View.VISIBLE);
@@ -377,12 +484,34 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
         LogUploader.uploadIfAutoEnabled(getContext());
     }
 
+    private void logFrameBreakdown() {
+        logger.log(frameStats.getSummary());
+        if (traceLogger == null) return;
+        for (int i = 0; i < frameStats.getBlinkCount(); i++) {
+            FrameBreakdown.Frame frame = frameStats.getFrame(i);
+            if (frame == null) continue;
+            long vsync = frame.vsync / 1000;
+            long appEnd = vsync + frame.appDuration() / 1000;
+            long renderEnd = appEnd + frame.renderDuration() / 1000;
+            long trigger = vsync + (long) (frameStats.getLatency(i) * 1000);
+            traceLogger.log(vsync, appEnd, "Blink frame app",
+                    "Input, animation, layout and draw of the blink frame");
+            traceLogger.log(appEnd, renderEnd, "Blink frame render",
+                    "Sync, command issue, swap and GPU of the blink frame");
+            traceLogger.log(renderEnd, trigger, "Blink frame display",
+                    "Composition, scanout and panel response until the photosensor trigger");
+        }
+    }
+
     @Override
     public void onClick(View v) {
         if (v.getId() == R.id.button_stop_screen_response) {
             isTestRunning = false;
             handler.removeCallbacks(doBlinkRunnable);
             handler.removeCallbacks(startBlinking);
+            handler.removeCallbacks(finishPwmCalibration);
+            handler.removeCallbacks(confirmPwmFall);
+            isCalibrating = false;
             finishAndShowStats();
             return;
         }
@@ -411,6 +540,12 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
             } else if (spinnerPosition == 2) {
                 logger.log("Starting fast-path screen response measurement");
                 isFastPathGraphics = true;
+                fastSurfaceView.setUseGl(false);
+                startBlinkLatency();
+            } else if (spinnerPosition == 3) {
+                logger.log("Starting front buffer GL screen response measurement");
+                isFastPathGraphics = true;
+                fastSurfaceView.setUseGl(true);
                 startBlinkLatency();
             } else {
                 logger.log("ERROR: Spinner position is out of range");
@@ -434,8 +569,9 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
 
         @Override
         public void onReceiveRaw(String s) {
-            brightnessCurveData.append(s);
-            if (s.trim().equals("end")) {
+            boolean wasEnded = brightnessCurve.isEnded();
+            brightnessCurve.feed(s);
+            if (!wasEnded && brightnessCurve.isEnded()) {
                 // Remove the delayed callback and run it now
                 handler.removeCallbacks(finishBrightnessCurve);
                 handler.post(finishBrightnessCurve);
@@ -445,9 +581,11 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
 
     void startBrightnessCurve() {
         try {
-            brightnessCurveData = new StringBuilder();
+            brightnessCurve.clear();
             waltDevice.syncClock();
             waltDevice.startListener();
+            // The curve goes to onReceiveRaw(), keep other replies out of it
+            waltDevice.pauseSkewSampling();
         } catch (IOException e) {
             logger.log("Error starting test: " + e.getMessage());
             isTestRunning = false;
@@ -466,10 +604,12 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
             waltDevice.setTriggerHandler(brightnessTriggerHandler);
             long tStart = waltDevice.clock.micros();
 
-            try {
-                waltDevice.command(WaltDevice.CMD_BRIGHTNESS_CURVE);
-            } catch (IOException e) {
-                logger.log("Error sending command CMD_BRIGHTNESS_CURVE: " + e.getMessage());
+            // The listener is running, it hands the ack to the command instead of to
+            // brightnessTriggerHandler
+            if (waltDevice.commandNoWait(WaltDevice.CMD_BRIGHTNESS_CURVE)
+                    .isCompletedExceptionally()) {
+                waltDevice.stopListener();
+                waltDevice.clearTriggerHandler();
                 isTestRunning = false;
                 startButton.setEnabled(true);
                 return;
@@ -501,8 +641,20 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
             waltDevice.clearTriggerHandler();
 
             // TODO: Add option to save this data into a separate file rather than the main log.
-            logger.log(brightnessCurveData.toString());
+            // A few lines per message, a whole curve is too much for one log line and broadcast
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < brightnessCurve.size(); i += CURVE_LOG_LINES) {
+                text.setLength(0);
+                brightnessCurve.appendText(text, i,
+                        Math.min(brightnessCurve.size(), i + CURVE_LOG_LINES));
+                text.setLength(text.length() - 1);  // The last newline
+                logger.log(text.toString());
+            }
             logger.log("=== End of screen brightness data ===");
+            if (brightnessCurve.getBadLineCount() > 0) {
+                logger.log("Skipped " + brightnessCurve.getBadLineCount() + " malformed lines");
+            }
+            logger.log(brightnessCurve.analyze().toString());
 
             blackBox.setText(logger.getLogText());
             blackBox.setMovementMethod(new ScrollingMovementMethod());
@@ -516,21 +668,9 @@ public class ScreenResponseFragment extends Fragment implements View.OnClickList
     };
 
     private void drawBrightnessChart() {
-        final String brightnessCurveString = brightnessCurveData.toString();
-        List<Entry> entries = new ArrayList<>();
-
-        // "u" marks the start of the brightness curve data
-        int startIndex = brightnessCurveString.indexOf("u") + 1;
-        int endIndex = brightnessCurveString.indexOf("end");
-        if (endIndex == -1) endIndex = brightnessCurveString.length();
-
-        String[] brightnessStrings =
-                brightnessCurveString.substring(startIndex, endIndex).trim().split("\n");
-        for (String str : brightnessStrings) {
-            String[] arr = str.split(" ");
-            final float timestampMs = Integer.parseInt(arr[0]) / 1000f;
-            final float brightness = Integer.parseInt(arr[1]);
-            entries.add(new Entry(timestampMs, brightness));
+        List<Entry> entries = new ArrayList<>(brightnessCurve.size());
+        for (int i = 0; i < brightnessCurve.size(); i++) {
+            entries.add(new Entry(brightnessCurve.getTime(i) / 1000f, brightnessCurve.getValue(i)));
         }
         LineDataSet dataSet = new LineDataSet(entries, "Brightness");
         dataSet.setColor(Color.BLACK);
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+/**
+ * Search engine behind MathUtils.findBestShift().
+ *
+ * Gives the same answer as the original brute force search,
+ * MathUtils.findBestShiftBruteForce(), but
+ * - Does not allocate per evaluated shift. Scratch buffers are kept and reused between calls.
+ * - Each laser event keeps a cursor into the touch events. Neighbouring shifts only move the
+ *   cursors by a step or two instead of merging the whole touch trace from the start.
+ * - The fine pass covers the same +-7.5ms around the coarse minimum as the brute force one. A
+ *   narrower bracket would be faster, but with a multimodal error curve the fine minimum can be
+ *   several ms away from the coarse one.
+ *
+ * Not thread safe, use one instance per thread.
+ */
+class ShiftFinder {
+
+    static final int STEPS = 1500;
+    static final double COARSE_STEP = 0.1;  // milliseconds
+    static final double FINE_STEP = 0.01;  // milliseconds
+    // Same +-7.5ms as the brute force fine pass
+    static final int FINE_BRACKET_STEPS = STEPS / 2;
+
+    private double[] laserT;
+    private double[] touchT;
+    private double[] touchY;
+    private double[] laserY = new double[0];
+    private int[] cursors = new int[0];
+
+    double findBestShift(double[] laserT, double[] touchT, double[] touchY) {
+        this.laserT = laserT;
+        this.touchT = touchT;
+        this.touchY = touchY;
+        if (laserY.length != laserT.length) {
+            laserY = new double[laserT.length];
+            cursors = new int[laserT.length];
+        } else {
+            for (int j = 0; j < cursors.length; j++) cursors[j] = 0;
+        }
+
+        // Coarse pass over the whole range, same grid as the brute force search
+        int bestStep = 0;
+        double minError = Double.MAX_VALUE;
+        for (int i = 0; i < STEPS; i++) {
+            double error = getShiftError(COARSE_STEP * i);
+            if (error < minError) {
+                minError = error;
+                bestStep = i;
+            }
+        }
+
+        // Fine pass, only inside the bracket around the coarse minimum
+        long center = Math.round(COARSE_STEP * bestStep / FINE_STEP);
+        long bestFineStep = center;
+        minError = Double.MAX_VALUE;
+        for (long k = center - FINE_BRACKET_STEPS; k < center + FINE_BRACKET_STEPS; k++) {
+            double error = getShiftError(FINE_STEP * k);
+            if (error < minError) {
+                minError = error;
+                bestFineStep = k;
+            }
+        }
+        return FINE_STEP * bestFineStep;
+    }
+
+    /**
+     * Same as MathUtils.getShiftError() including the zeros that MathUtils.interp() returns outside
+     * of the touch data, but with the interpolation done through the per laser event cursors.
+     */
+    private double getShiftError(double shift) {
+        final int n = touchT.length;
+        for (int j = 0; j < laserT.length; j++) {
+            final double x = laserT[j] + shift;
+            // Keep the cursor at the first touch event that is not earlier than x
+            int ip = cursors[j];
+            while (ip < n && touchT[ip] < x) ip++;
+            while (ip > 0 && touchT[ip - 1] >= x) ip--;
+            cursors[j] = ip;
+
+            if (ip >= n || x < touchT[0]) {
+                laserY[j] = 0;
+            } else if (touchT[ip] == x) {
+                laserY[j] = touchY[ip];
+            } else {
+                double dy = touchY[ip] - touchY[ip - 1];
+                double dx = touchT[ip] - touchT[ip - 1];
+                laserY[j] = touchY[ip - 1] + dy / dx * (x - touchT[ip - 1]);
+            }
+        }
+        return MathUtils.stdev(laserY);
+    }
+}
@@ -23,19 +23,116 @@ import android.content.IntentFilter;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.chromium.latency.walt.Utils.getBooleanPreference;
+
 /**
- * A very simple logger that keeps its data in a StringBuilder. We need on screen log because the
- * USB port is often taken and we don't have easy access to adb log.
+ * A very simple logger that keeps the last MAX_LINES lines in memory. We need on screen log
+ * because the USB port is often taken and we don't have easy access to adb log.
+ *
+ * In background mode (a setting, on by default) log() only puts the message on a lock-free queue,
+ * so that logging from the trigger path or from audio callbacks costs next to nothing. A
+ * background thread formats the messages, passes them on to logcat, keeps them for the on
+ * screen log, appends them to LOG_FILE and sends one broadcast for each batch of lines. Batches
+ * are collected for up to BATCH_DELAY_MS. getLogText() first moves what is still queued to the on
+ * screen log, so it always includes all lines logged before it was called. Only the background
+ * thread does I/O, getLogText() never waits for it.
+ *
+ * Otherwise all that is done on the calling thread, as before, and there is no log file.
  */
 public class SimpleLogger {
     private static final String LOG_INTENT = "log-message";
     public static final String TAG = "WaltLogger";
+    static final String LOG_FILE = "log.txt";
+    static final int MAX_LINES = 10000;
+    static final int BATCH_DELAY_MS = 50;
 
     private static final Object LOCK = new Object();
     private static SimpleLogger instance;
 
-    private StringBuilder sb = new StringBuilder();
+    /**
+     * The last lines logged, oldest first.
+     */
+    static class LineRing {
+        private final String[] lines;
+        private int head = 0;
+        private int size = 0;
+
+        LineRing(int capacity) {
+            lines = new String[capacity];
+        }
+
+        synchronized void add(String line) {
+            if (size == lines.length) {
+                lines[head] = line;
+                head = (head + 1) % lines.length;
+            } else {
+                lines[(head + size) % lines.length] = line;
+                size++;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized String getText() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                sb.append(lines[(head + i) % lines.length]).append('\n');
+            }
+            return sb.toString();
+        }
+
+        synchronized void writeTo(Writer writer) throws IOException {
+            for (int i = 0; i < size; i++) {
+                writer.write(lines[(head + i) % lines.length]);
+                writer.write('\n');
+            }
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < lines.length; i++) lines[i] = null;
+            head = 0;
+            size = 0;
+        }
+    }
+
+    /**
+     * A message that is formatted by the background thread.
+     */
+    private static class LazyMessage {
+        final String format;
+        final Object[] args;
+
+        LazyMessage(String format, Object[] args) {
+            this.format = format;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, format, args);
+        }
+    }
+
+    private final LineRing lines = new LineRing(MAX_LINES);
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    // Formatted messages still to be written out by the background thread, guarded by this
+    private ArrayList<String> pending = new ArrayList<>();
     private LocalBroadcastManager broadcastManager;
+    private Thread logThread;
+    private File logFile;
 
     public static SimpleLogger getInstance(Context context) {
         synchronized (LOCK) {
@@ -48,12 +145,51 @@ public class SimpleLogger {
 
     private SimpleLogger(Context context) {
         broadcastManager = LocalBroadcastManager.getInstance(context);
+        if (getBooleanPreference(context, R.string.preference_background_log, true)) {
+            File dir = context.getExternalFilesDir(null);
+            if (dir != null) {
+                logFile = new File(dir, LOG_FILE);
+                // One file per run of the app
+                logFile.delete();
+            }
+            logThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    logLoop();
+                }
+            }, "WALT logger");
+            logThread.setDaemon(true);
+            logThread.start();
+        }
+    }
+
+    public void log(String msg) {
+        if (logThread != null) {
+            queue.add(msg);
+            LockSupport.unpark(logThread);
+            return;
+        }
+        synchronized (this) {
+            Log.i(TAG, msg);
+            lines.add(msg);
+            broadcast(msg);
+        }
     }
 
-    public synchronized void log(String msg) {
-        Log.i(TAG, msg);
-        sb.append(msg);
-        sb.append('\n');
+    /**
+     * Same as log(String.format(Locale.US, format, args)), but in background mode the formatting
+     * is done on the background thread.
+     */
+    public void log(String format, Object... args) {
+        if (logThread != null) {
+            queue.add(new LazyMessage(format, args));
+            LockSupport.unpark(logThread);
+            return;
+        }
+        log(String.format(Locale.US, format, args));
+    }
+
+    private void broadcast(String msg) {
         if (broadcastManager != null) {
             Intent intent = new Intent(LOG_INTENT);
             intent.putExtra("message", msg);
@@ -61,6 +197,66 @@ public class SimpleLogger {
         }
     }
 
+    private void logLoop() {
+        while (true) {
+            LockSupport.park(this);
+            try {
+                Thread.sleep(BATCH_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            collect();
+            output();
+        }
+    }
+
+    /**
+     * Formats the queued messages, adds them to the on screen log and sends them to the receivers
+     * as one batch. No I/O, that is left to output().
+     */
+    private synchronized void collect() {
+        StringBuilder batch = null;
+        Object entry;
+        while ((entry = queue.poll()) != null) {
+            String msg = entry.toString();
+            lines.add(msg);
+            pending.add(msg);
+            if (batch == null) {
+                batch = new StringBuilder(msg);
+            } else {
+                batch.append('\n').append(msg);
+            }
+        }
+        // The receivers append a newline to each message
+        if (batch != null) broadcast(batch.toString());
+    }
+
+    /**
+     * Passes the collected messages on to logcat and the log file. Only called by the background
+     * thread, which keeps them in order.
+     */
+    private void output() {
+        ArrayList<String> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        for (String msg : batch) Log.i(TAG, msg);
+        if (logFile != null) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(logFile, true),
+                    StandardCharsets.UTF_8)) {
+                for (String msg : batch) {
+                    writer.write(msg);
+                    writer.write('\n');
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Can't write to " + logFile + ", stopped writing the log file", e);
+                logFile = null;
+            }
+        }
+    }
+
     public void registerReceiver(BroadcastReceiver broadcastReceiver) {
         broadcastManager.registerReceiver(broadcastReceiver, new IntentFilter(LOG_INTENT));
     }
@@ -70,11 +266,21 @@ public class SimpleLogger {
     }
 
     public String getLogText() {
-        return sb.toString();
+        if (logThread != null) collect();
+        return lines.getText();
+    }
+
+    /**
+     * Same as writing getLogText(), without building the whole text as one string.
+     */
+    void writeLogText(Writer writer) throws IOException {
+        if (logThread != null) collect();
+        lines.writeTo(writer);
     }
 
     public void clear() {
-        sb = new StringBuilder();
+        if (logThread != null) collect();
+        lines.clear();
     }
 
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the tap latency test: counts of the tap events and the latencies of the good ones,
+ * in ms.
+ *
+ * With several fingers on the screen every pointer going down or up is a tap of its own, matched
+ * to the shock WALT reports for it. ACTION_POINTER_DOWN and ACTION_POINTER_UP count as down and
+ * up, and the touch to kernel latencies are also kept per pointer ID and per number of pointers
+ * on the screen, to see whether concurrent touches are slower.
+ *
+ * WALT has a single accelerometer, fingers that land or lift together cause one shock, which the
+ * first of them gets. The others are counted as sharing that shock rather than as bad taps, see
+ * classifyTap().
+ *
+ * Kept separate from TapLatencyFragment so it can run on a plain JVM, e.g. to re-analyze saved
+ * captures. Not thread safe.
+ */
+class TapLatencyAnalyzer {
+
+    // Same values as MotionEvent.ACTION_DOWN, ACTION_UP, ACTION_POINTER_DOWN and ACTION_POINTER_UP
+    static final int ACTION_DOWN = 0;
+    static final int ACTION_UP = 1;
+    static final int ACTION_POINTER_DOWN = 5;
+    static final int ACTION_POINTER_UP = 6;
+    // Pointer IDs and counts from here on share the last slot
+    static final int MAX_POINTERS = 5;
+    static final double MAX_PHYSICAL_TO_KERNEL = 200;  // milliseconds
+    static final String SHARED_SHOCK = "shared the shock of another pointer";
+
+    final SampleBuffer p2kDown = new SampleBuffer();
+    final SampleBuffer p2kUp = new SampleBuffer();
+    final SampleBuffer k2cDown = new SampleBuffer();
+    final SampleBuffer k2cUp = new SampleBuffer();
+    int moveCount = 0;
+    int allDownCount = 0;
+    int allUpCount = 0;
+    int okDownCount = 0;
+    int okUpCount = 0;
+    // Taps without a shock of their own that came together with one that had it
+    int sharedDownCount = 0;
+    int sharedUpCount = 0;
+    // Touch to kernel, indexed by pointer ID and by number of pointers on the screen minus one
+    final SampleBuffer[] p2kDownByPointer = newBuffers();
+    final SampleBuffer[] p2kUpByPointer = newBuffers();
+    final SampleBuffer[] p2kDownByCount = newBuffers();
+    final SampleBuffer[] p2kUpByCount = newBuffers();
+
+    // The last tap that got a shock, for classifyTap()
+    private long lastShockTime = 0;
+    private boolean lastShockIsDown;
+    private int lastShockPointerCount;
+
+    private static SampleBuffer[] newBuffers() {
+        SampleBuffer[] buffers = new SampleBuffer[MAX_POINTERS];
+        for (int i = 0; i < MAX_POINTERS; i++) buffers[i] = new SampleBuffer();
+        return buffers;
+    }
+
+    static boolean isDown(int action) {
+        return action == ACTION_DOWN || action == ACTION_POINTER_DOWN;
+    }
+
+    static boolean isUp(int action) {
+        return action == ACTION_UP || action == ACTION_POINTER_UP;
+    }
+
+    /**
+     * Returns why a tap with these times (in microseconds) is bogus, or null if it looks fine.
+     */
+    static String checkTapSanity(long physicalTime, long kernelTime) {
+        double dt = (kernelTime - physicalTime) / 1000.0;
+
+        if (physicalTime == 0) {
+            return "no shock found";
+        }
+
+        if (dt < 0 || dt > MAX_PHYSICAL_TO_KERNEL) {
+            return "bogus kernelTime, ignored, dt=" + dt;
+        }
+        return null;
+    }
+
+    /**
+     * Same as checkTapSanity(), except that for a tap without a shock it returns SHARED_SHOCK if
+     * several pointers were involved and it went the same way, down or up, within
+     * MAX_PHYSICAL_TO_KERNEL of the last tap that got a shock. Call it for every down and up in
+     * order, it keeps track of the last shock.
+     */
+    String classifyTap(int action, int pointerCount, long physicalTime, long kernelTime) {
+        if (physicalTime != 0) {
+            lastShockTime = physicalTime;
+            lastShockIsDown = isDown(action);
+            lastShockPointerCount = pointerCount;
+        } else if (lastShockTime != 0 && isDown(action) == lastShockIsDown
+                && (pointerCount > 1 || lastShockPointerCount > 1)) {
+            long dt = kernelTime - lastShockTime;
+            if (dt >= 0 && dt <= MAX_PHYSICAL_TO_KERNEL * 1000) return SHARED_SHOCK;
+        }
+        return checkTapSanity(physicalTime, kernelTime);
+    }
+
+    void addMove() {
+        moveCount++;
+    }
+
+    /**
+     * Counts a down or up event for which classifyTap() returned SHARED_SHOCK. It has no
+     * latencies, and is neither good nor bad.
+     */
+    void addShared(int action) {
+        if (isDown(action)) {
+            sharedDownCount++;
+        } else if (isUp(action)) {
+            sharedUpCount++;
+        }
+    }
+
+    /**
+     * Counts an ACTION_DOWN or ACTION_UP event of a single pointer and records its latencies if
+     * isOk.
+     */
+    void add(int action, double physicalToKernelTime, double kernelToCallbackTime, boolean isOk) {
+        add(action, 0, 1, physicalToKernelTime, kernelToCallbackTime, isOk);
+    }
+
+    /**
+     * Counts a down or up event of pointerId, with pointerCount pointers on the screen including
+     * it, and records its latencies if isOk.
+     */
+    void add(int action, int pointerId, int pointerCount,
+             double physicalToKernelTime, double kernelToCallbackTime, boolean isOk) {
+        int pointerSlot = Math.min(Math.max(pointerId, 0), MAX_POINTERS - 1);
+        int countSlot = Math.min(Math.max(pointerCount - 1, 0), MAX_POINTERS - 1);
+        if (isDown(action)) {
+            allDownCount++;
+            if (isOk) {
+                okDownCount++;
+                p2kDown.add(physicalToKernelTime);
+                k2cDown.add(kernelToCallbackTime);
+                p2kDownByPointer[pointerSlot].add(physicalToKernelTime);
+                p2kDownByCount[countSlot].add(physicalToKernelTime);
+            }
+        } else if (isUp(action)) {
+            allUpCount++;
+            if (isOk) {
+                okUpCount++;
+                p2kUp.add(physicalToKernelTime);
+                k2cUp.add(kernelToCallbackTime);
+                p2kUpByPointer[pointerSlot].add(physicalToKernelTime);
+                p2kUpByCount[countSlot].add(physicalToKernelTime);
+            }
+        }
+    }
+
+    /**
+     * Whether any good tap came from a second pointer or had other pointers on the screen.
+     */
+    boolean isMultiTouch() {
+        for (int i = 1; i < MAX_POINTERS; i++) {
+            if (p2kDownByPointer[i].size() + p2kUpByPointer[i].size() > 0) return true;
+            if (p2kDownByCount[i].size() + p2kUpByCount[i].size() > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Median touch to kernel times per pointer ID and per number of pointers on the screen, one
+     * line each, skipping those without taps.
+     */
+    String getPointerSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Touch to kernel medians per pointer ID:");
+        appendMedians(sb, p2kDownByPointer, p2kUpByPointer, "ID %d", 0);
+        sb.append("\nTouch to kernel medians per number of pointers on the screen:");
+        appendMedians(sb, p2kDownByCount, p2kUpByCount, "%d on screen", 1);
+        return sb.toString();
+    }
+
+    /**
+     * @param label format of the row label, taking the ID or count
+     * @param first the ID or count in slot 0
+     */
+    private static void appendMedians(StringBuilder sb, SampleBuffer[] down, SampleBuffer[] up,
+                                      String label, int first) {
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            if (down[i].size() + up[i].size() == 0) continue;
+            String row = String.format(Locale.US, label, i + first);
+            if (i == MAX_POINTERS - 1) row += " and more";
+            sb.append(String.format(Locale.US, "\n   %s: down %.1f ms (N=%d), up %.1f ms (N=%d)",
+                    row, down[i].median(), down[i].size(), up[i].median(), up[i].size()));
+        }
+    }
+
+    void clear() {
+        p2kDown.clear();
+        p2kUp.clear();
+        k2cDown.clear();
+        k2cUp.clear();
+
+        moveCount = 0;
+        allDownCount = 0;
+        allUpCount = 0;
+        okDownCount = 0;
+        okUpCount = 0;
+        sharedDownCount = 0;
+        sharedUpCount = 0;
+        lastShockTime = 0;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            p2kDownByPointer[i].clear();
+            p2kUpByPointer[i].clear();
+            p2kDownByCount[i].clear();
+            p2kUpByCount[i].clear();
+        }
+    }
+
+    /**
+     * Replays a capture of the tap test. It holds all touch events and, in the same order, one
+     * shock time trigger for each down and up of any pointer. In version 1 captures only
+     * ACTION_DOWN and ACTION_UP had one, the pointer actions there are not masked and count as moves.
+     */
+    static TapLatencyAnalyzer analyze(CaptureFile.Reader capture) {
+        CaptureFile.Touches touches = capture.getTouches();
+        CaptureFile.Triggers shocks = capture.getTriggers();
+        TapLatencyAnalyzer analyzer = new TapLatencyAnalyzer();
+        int shock = 0;
+        for (int i = 0; i < touches.size; i++) {
+            int action = touches.action[i];
+            if (!isDown(action) && !isUp(action)) {
+                analyzer.addMove();
+                continue;
+            }
+            // A shock time that is missing in a truncated file counts as no shock
+            long physicalTime = shock < shocks.size ? shocks.t[shock++] : 0;
+            long kernelTime = touches.t[i];
+            String problem = analyzer.classifyTap(action, touches.pointerCount[i],
+                    physicalTime, kernelTime);
+            if (SHARED_SHOCK.equals(problem)) {
+                analyzer.addShared(action);
+                continue;
+            }
+            analyzer.add(action, touches.pointerId[i], touches.pointerCount[i],
+                    (kernelTime - physicalTime) / 1000.,
+                    (touches.createTime[i] - kernelTime) / 1000.,
+                    problem == null);
+        }
+        return analyzer;
+    }
+}
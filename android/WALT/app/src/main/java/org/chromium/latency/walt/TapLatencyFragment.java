@@ -43,6 +43,7 @@ public class TapLatencyFragment extends Fragment
     private SimpleLogger logger;
     private TraceLogger traceLogger;
     private WaltDevice waltDevice;
+    private EventCapture capture;
     private TextView logTextView;
     private TextView tapCatcherView;
     private TextView tapCountsView;
@@ -50,18 +51,10 @@ public class TapLatencyFragment extends Fragment
     private ImageButton finishButton;
     private ImageButton restartButton;
     private HistogramChart latencyChart;
-    private int moveCount = 0;
-    private int allDownCount = 0;
-    private int allUpCount = 0;
-    private int okDownCount = 0;
-    private int okUpCount = 0;
     private boolean shouldShowLatencyChart = false;
 
     ArrayList<UsMotionEvent> eventList = new ArrayList<>();
-    ArrayList<Double> p2kDown = new ArrayList<>();
-    ArrayList<Double> p2kUp = new ArrayList<>();
-    ArrayList<Double> k2cDown = new ArrayList<>();
-    ArrayList<Double> k2cUp = new ArrayList<>();
+    TapLatencyAnalyzer stats = new TapLatencyAnalyzer();
 
     private BroadcastReceiver logReceiver = new BroadcastReceiver() {
         @Override
@@ -74,45 +67,49 @@ public class TapLatencyFragment extends Fragment
     private View.OnTouchListener touchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View v, MotionEvent event) {
-            UsMotionEvent tapEvent = new UsMotionEvent(event, waltDevice.clock.baseTime);
+            UsMotionEvent tapEvent = new UsMotionEvent(event, waltDevice.clock);
+            capture.touch(tapEvent);
 
-            if(tapEvent.action != MotionEvent.ACTION_UP && tapEvent.action != MotionEvent.ACTION_DOWN) {
-                moveCount++;
+            final boolean isDown = TapLatencyAnalyzer.isDown(tapEvent.action);
+            final boolean isUp = TapLatencyAnalyzer.isUp(tapEvent.action);
+            if (!isDown && !isUp) {
+                stats.addMove();
                 updateCountsDisplay();
                 return true;
             }
 
             // Debug: logger.log("\n"+ action + " event received: " + tapEvent.toStringLong());
+            // Each pointer is matched to the shock since the previous down or up, reading it
+            // clears it in WALT, so a finger that caused no shock of its own gets none
             tapEvent.physicalTime = waltDevice.readLastShockTime();
+            capture.trigger(WaltDevice.CMD_GSHOCK, tapEvent.physicalTime);
 
-            tapEvent.isOk = checkTapSanity(tapEvent);
+            String problem = stats.classifyTap(tapEvent.action, tapEvent.pointerCount,
+                    tapEvent.physicalTime, tapEvent.kernelTime);
+            tapEvent.isOk = problem == null;
+            if (problem != null) logger.log(tapEvent.getActionString() + " " + problem);
             // Save it in any case so we can do stats on bad events later
             eventList.add(tapEvent);
 
+            if (TapLatencyAnalyzer.SHARED_SHOCK.equals(problem)) {
+                // Landed or lifted together with another finger, there is nothing to measure
+                stats.addShared(tapEvent.action);
+                updateCountsDisplay();
+                return true;
+            }
+
             final double physicalToKernelTime = (tapEvent.kernelTime - tapEvent.physicalTime) / 1000.;
             final double kernelToCallbackTime = (tapEvent.createTime - tapEvent.kernelTime) / 1000.;
-            if (tapEvent.action == MotionEvent.ACTION_DOWN) {
-                allDownCount++;
-                if (tapEvent.isOk) {
-                    okDownCount++;
-                    p2kDown.add(physicalToKernelTime);
-                    k2cDown.add(kernelToCallbackTime);
-                    if (shouldShowLatencyChart) latencyChart.addEntry(ACTION_DOWN_INDEX, physicalToKernelTime);
-                    logger.log(String.format(Locale.US,
-                            "ACTION_DOWN:\ntouch2kernel: %.1f ms\nkernel2java: %.1f ms",
-                            physicalToKernelTime, kernelToCallbackTime));
-                }
-            } else if (tapEvent.action == MotionEvent.ACTION_UP) {
-                allUpCount++;
-                if (tapEvent.isOk) {
-                    okUpCount++;
-                    p2kUp.add(physicalToKernelTime);
-                    k2cUp.add(kernelToCallbackTime);
-                    if (shouldShowLatencyChart) latencyChart.addEntry(ACTION_UP_INDEX, physicalToKernelTime);
-                    logger.log(String.format(Locale.US,
-                            "ACTION_UP:\ntouch2kernel: %.1f ms\nkernel2java: %.1f ms",
-                            physicalToKernelTime, kernelToCallbackTime));
+            stats.add(tapEvent.action, tapEvent.pointerId, tapEvent.pointerCount,
+                    physicalToKernelTime, kernelToCallbackTime, tapEvent.isOk);
+            if (tapEvent.isOk) {
+                if (shouldShowLatencyChart) {
+                    latencyChart.addEntry(isUp ? ACTION_UP_INDEX : ACTION_DOWN_INDEX,
+                            physicalToKernelTime);
                 }
+                logger.log("%s (pointer %d of %d):\ntouch2kernel: %.1f ms\nkernel2java: %.1f ms",
+                        tapEvent.getActionString(), tapEvent.pointerId, tapEvent.pointerCount,
+                        physicalToKernelTime, kernelToCallbackTime);
             }
             traceLogEvent(tapEvent);
 
@@ -124,13 +121,15 @@ public class TapLatencyFragment extends Fragment
     private void traceLogEvent(UsMotionEvent tapEvent) {
         if (!tapEvent.isOk) return;
         if (traceLogger == null) return;
-        if (tapEvent.action != MotionEvent.ACTION_DOWN && tapEvent.action != MotionEvent.ACTION_UP) return;
-        final String title = tapEvent.action == MotionEvent.ACTION_UP ? "Tap-Up" : "Tap-Down";
-        traceLogger.log(tapEvent.physicalTime + waltDevice.clock.baseTime,
-                tapEvent.kernelTime + waltDevice.clock.baseTime, title + " Physical",
+        if (!TapLatencyAnalyzer.isDown(tapEvent.action) && !TapLatencyAnalyzer.isUp(tapEvent.action)) return;
+        final boolean isUp = TapLatencyAnalyzer.isUp(tapEvent.action);
+        traceLogger.log(waltDevice.clock.toLocal(tapEvent.physicalTime),
+                waltDevice.clock.toLocal(tapEvent.kernelTime),
+                isUp ? "Tap-Up Physical" : "Tap-Down Physical",
                 "Bar starts at accelerometer shock and ends at kernel time of tap event");
-        traceLogger.log(tapEvent.kernelTime + waltDevice.clock.baseTime,
-                tapEvent.createTime + waltDevice.clock.baseTime, title + " App Callback",
+        traceLogger.log(waltDevice.clock.toLocal(tapEvent.kernelTime),
+                waltDevice.clock.toLocal(tapEvent.createTime),
+                isUp ? "Tap-Up App Callback" : "Tap-Down App Callback",
                 "Bar starts at kernel time of tap event and ends at app callback time");
     }
 
@@ -146,6 +145,7 @@ public class TapLatencyFragment extends Fragment
             traceLogger = TraceLogger.getInstance();
         }
         waltDevice = WaltDevice.getInstance(getContext());
+        capture = new EventCapture(getContext());
         logger = SimpleLogger.getInstance(getContext());
         // Inflate the layout for this fragment
         final View view = inflater.inflate(R.layout.fragment_tap_latency, container, false);
@@ -179,37 +179,28 @@ public class TapLatencyFragment extends Fragment
         super.onPause();
     }
 
-    public void appendLogText(String msg) {
-        logTextView.append(msg + "\n");
+    @Override
+    public void onDestroyView() {
+        // Left in the middle of a run, keep what was captured so far
+        capture.finish(waltDevice.clock);
+        super.onDestroyView();
     }
 
-    public boolean checkTapSanity(UsMotionEvent e) {
-        String action = e.getActionString();
-        double dt = (e.kernelTime - e.physicalTime) / 1000.0;
-
-        if (e.physicalTime == 0) {
-            logger.log(action + " no shock found");
-            return false;
-        }
-
-        if (dt < 0 || dt > 200) {
-            logger.log(action + " bogus kernelTime, ignored, dt=" + dt);
-            return  false;
-        }
-        return true;
+    public void appendLogText(String msg) {
+        logTextView.append(msg + "\n");
     }
 
     void updateCountsDisplay() {
         String tpl = "N ↓%d (%d)  ↑%d (%d)";
         tapCountsView.setText(String.format(Locale.US,
                 tpl,
-                okDownCount,
-                allDownCount,
-                okUpCount,
-                allUpCount
+                stats.okDownCount,
+                stats.allDownCount,
+                stats.okUpCount,
+                stats.allUpCount
                 ));
 
-        moveCountsView.setText(String.format(Locale.US, "⇄ %d", moveCount));
+        moveCountsView.setText(String.format(Locale.US, "⇄ %d", stats.moveCount));
     }
 
     void restartMeasurement() {
@@ -226,16 +217,8 @@ public class TapLatencyFragment extends Fragment
         }
 
         eventList.clear();
-        p2kDown.clear();
-        p2kUp.clear();
-        k2cDown.clear();
-        k2cUp.clear();
-
-        moveCount = 0;
-        allDownCount = 0;
-        allUpCount = 0;
-        okDownCount = 0;
-        okUpCount = 0;
+        capture.start("tap", waltDevice.clock);
+        stats.clear();
 
         updateCountsDisplay();
         tapCatcherView.setOnTouchListener(touchListener);
@@ -244,38 +227,42 @@ public class TapLatencyFragment extends Fragment
     void finishAndShowStats() {
         tapCatcherView.setOnTouchListener(null);
         waltDevice.checkDrift();
+        capture.finish(waltDevice.clock);
         logger.log("\n-------------------------------");
         logger.log(String.format(Locale.US,
                 "Tap latency results:\n" +
                         "Number of events recorded:\n" +
-                        "   ACTION_DOWN %d (bad %d)\n" +
-                        "   ACTION_UP %d (bad %d)\n" +
+                        "   ACTION_DOWN %d (bad %d, shared shock %d)\n" +
+                        "   ACTION_UP %d (bad %d, shared shock %d)\n" +
                         "   ACTION_MOVE %d",
-                okDownCount,
-                allDownCount - okDownCount,
-                okUpCount,
-                allUpCount - okUpCount,
-                moveCount
+                stats.okDownCount,
+                stats.allDownCount - stats.okDownCount,
+                stats.sharedDownCount,
+                stats.okUpCount,
+                stats.allUpCount - stats.okUpCount,
+                stats.sharedUpCount,
+                stats.moveCount
         ));
 
         logger.log("ACTION_DOWN median times:");
         logger.log(String.format(Locale.US,
                 "   Touch to kernel: %.1f ms\n   Kernel to Java: %.1f ms",
-                Utils.median(p2kDown),
-                Utils.median(k2cDown)
+                stats.p2kDown.median(),
+                stats.k2cDown.median()
         ));
         logger.log("ACTION_UP median times:");
         logger.log(String.format(Locale.US,
                 "   Touch to kernel: %.1f ms\n   Kernel to Java: %.1f ms",
-                Utils.median(p2kUp),
-                Utils.median(k2cUp)
+                stats.p2kUp.median(),
+                stats.k2cUp.median()
         ));
+        if (stats.isMultiTouch()) logger.log(stats.getPointerSummary());
         logger.log("-------------------------------");
         if (traceLogger != null) traceLogger.flush(getContext());
 
         if (shouldShowLatencyChart) {
-            latencyChart.setLabel(ACTION_DOWN_INDEX, String.format(Locale.US, "ACTION_DOWN median=%.1f ms", Utils.median(p2kDown)));
-            latencyChart.setLabel(ACTION_UP_INDEX, String.format(Locale.US, "ACTION_UP median=%.1f ms", Utils.median(p2kUp)));
+            latencyChart.setLabel(ACTION_DOWN_INDEX, String.format(Locale.US, "ACTION_DOWN median=%.1f ms", stats.p2kDown.median()));
+            latencyChart.setLabel(ACTION_UP_INDEX, String.format(Locale.US, "ACTION_UP median=%.1f ms", stats.p2kUp.median()));
         }
         LogUploader.uploadIfAutoEnabled(getContext());
     }
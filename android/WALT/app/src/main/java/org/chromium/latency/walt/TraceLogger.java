@@ -23,18 +23,98 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.text.DecimalFormat;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Used to log events for Android systrace
+ *
+ * log() is called from the measurement paths, so it only stores two timestamps and the ids of the
+ * title and description strings in a ring of CAPACITY events. Nothing is allocated there once a
+ * string has been seen. If more events than that are logged between two flushes, the oldest ones
+ * are overwritten and counted as dropped.
+ *
+ * flush() appends the pending events to two files in the app's external files dir:
+ * - trace.txt in systrace text format, which is what systrace --walt pulls from the phone
+ * - trace.json in the Chrome JSON trace format, for chrome://tracing and the Perfetto UI
  */
 class TraceLogger {
 
+    static final int CAPACITY = 4096;
+    static final int MAX_STRINGS = 1024;
+    static final String SYSTRACE_FILE = "trace.txt";
+    static final String JSON_FILE = "trace.json";
+    private static final String TOO_MANY_STRINGS = "(too many trace strings)";
+
     private static final Object LOCK = new Object();
     private static TraceLogger instance;
 
-    private ArrayList<TraceEvent> traceEvents;
+    /**
+     * Events as parallel primitive arrays, oldest at head.
+     */
+    static class EventRing {
+        final long[] startTimeMicros;
+        final long[] finishTimeMicros;
+        final int[] titleId;
+        final int[] descriptionId;
+        int head = 0;
+        int size = 0;
+        int dropped = 0;
+
+        EventRing(int capacity) {
+            startTimeMicros = new long[capacity];
+            finishTimeMicros = new long[capacity];
+            titleId = new int[capacity];
+            descriptionId = new int[capacity];
+        }
+
+        void add(long start, long finish, int title, int description) {
+            int i;
+            if (size == startTimeMicros.length) {
+                i = head;
+                head = (head + 1) % startTimeMicros.length;
+                dropped++;
+            } else {
+                i = (head + size) % startTimeMicros.length;
+                size++;
+            }
+            startTimeMicros[i] = start;
+            finishTimeMicros[i] = finish;
+            titleId[i] = title;
+            descriptionId[i] = description;
+        }
+
+        /**
+         * Copies all events to dst, oldest first at index 0, replacing what was there.
+         */
+        void copyTo(EventRing dst) {
+            for (int n = 0; n < size; n++) {
+                int i = (head + n) % startTimeMicros.length;
+                dst.startTimeMicros[n] = startTimeMicros[i];
+                dst.finishTimeMicros[n] = finishTimeMicros[i];
+                dst.titleId[n] = titleId[i];
+                dst.descriptionId[n] = descriptionId[i];
+            }
+            dst.head = 0;
+            dst.size = size;
+            dst.dropped = dropped;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+            dropped = 0;
+        }
+    }
+
+    private final EventRing events = new EventRing(CAPACITY);
+    // Only used while holding outputLock, so that formatting does not block log()
+    private final EventRing pending = new EventRing(CAPACITY);
+    private final Object outputLock = new Object();
+    private final HashMap<String, Integer> stringIds = new HashMap<>();
+    private final ArrayList<String> strings = new ArrayList<>();
 
     public static TraceLogger getInstance() {
         synchronized (LOCK) {
@@ -46,26 +126,99 @@ class TraceLogger {
     }
 
     private TraceLogger() {
-        traceEvents = new ArrayList<>();
+        intern(TOO_MANY_STRINGS);
+    }
+
+    private int intern(String s) {
+        Integer id = stringIds.get(s);
+        if (id != null) return id;
+        if (strings.size() >= MAX_STRINGS) return 0;
+        strings.add(s);
+        stringIds.put(s, strings.size() - 1);
+        return strings.size() - 1;
     }
 
     public synchronized void log(long startTimeMicros, long finishTimeMicros, String title, String description) {
-        traceEvents.add(new TraceEvent(startTimeMicros, finishTimeMicros, title, description));
+        events.add(startTimeMicros, finishTimeMicros, intern(title), intern(description));
+    }
+
+    private synchronized void snapshot(EventRing dst, boolean clear) {
+        events.copyTo(dst);
+        if (clear) events.clear();
+    }
+
+    private synchronized String getString(int id) {
+        return strings.get(id);
+    }
+
+    private static void appendSeconds(StringBuilder sb, long micros) {
+        sb.append(micros / 1000000).append('.');
+        String frac = Long.toString(micros % 1000000);
+        for (int i = frac.length(); i < 6; i++) sb.append('0');
+        sb.append(frac);
+    }
+
+    private void appendSystrace(StringBuilder sb, EventRing e, int pid) {
+        for (int i = 0; i < e.size; i++) {
+            String title = getString(e.titleId[i]);
+            sb.append("WALTThread-1234 (").append(pid).append(") [000] ...1 ");
+            appendSeconds(sb, e.startTimeMicros[i]);
+            sb.append(": tracing_mark_write: B|").append(pid).append('|').append(title)
+                    .append("|description=").append(getString(e.descriptionId[i])).append("|WALT\n");
+            sb.append("WALTThread-1234 (").append(pid).append(") [000] ...1 ");
+            appendSeconds(sb, e.finishTimeMicros[i]);
+            sb.append(": tracing_mark_write: E|").append(pid).append('|').append(title)
+                    .append("||WALT\n");
+        }
+    }
+
+    static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * One complete ("X") event per line, each followed by a comma. The trace viewers accept an
+     * array that is not closed, which is what lets flush() keep appending to the same file.
+     */
+    private void appendJson(StringBuilder sb, EventRing e, int pid) {
+        for (int i = 0; i < e.size; i++) {
+            sb.append("{\"name\":");
+            appendJsonString(sb, getString(e.titleId[i]));
+            sb.append(",\"cat\":\"WALT\",\"ph\":\"X\",\"ts\":").append(e.startTimeMicros[i])
+                    .append(",\"dur\":").append(e.finishTimeMicros[i] - e.startTimeMicros[i])
+                    .append(",\"pid\":").append(pid).append(",\"tid\":1234,\"args\":{\"description\":");
+            appendJsonString(sb, getString(e.descriptionId[i]));
+            sb.append("}},\n");
+        }
     }
 
     public String getLogText() {
-        DecimalFormat df = new DecimalFormat(".000000");
-        StringBuilder sb = new StringBuilder();
-        int pid = android.os.Process.myPid();
-        for (TraceEvent e : traceEvents) {
-            sb.append(String.format(
-                    "WALTThread-1234 (%d) [000] ...1 %s: tracing_mark_write: B|%d|%s|description=%s|WALT\n",
-                    pid, df.format(e.startTimeMicros / 1e6), pid, e.title, e.description));
-            sb.append(String.format(
-                    "WALTThread-1234 (%d) [000] ...1 %s: tracing_mark_write: E|%d|%s||WALT\n",
-                    pid, df.format(e.finishTimeMicros / 1e6), pid, e.title));
+        synchronized (outputLock) {
+            snapshot(pending, false);
+            StringBuilder sb = new StringBuilder();
+            appendSystrace(sb, pending, android.os.Process.myPid());
+            return sb.toString();
+        }
+    }
+
+    String getJsonText() {
+        synchronized (outputLock) {
+            snapshot(pending, false);
+            StringBuilder sb = new StringBuilder();
+            appendJson(sb, pending, android.os.Process.myPid());
+            return sb.toString();
         }
-        return sb.toString();
     }
 
     void flush(Context context) {
@@ -74,22 +227,44 @@ class TraceLogger {
             logger.log("ERROR: could not write systrace logs to file");
             return;
         }
-        writeSystraceLogs(context);
-        traceEvents.clear();
+        synchronized (outputLock) {
+            snapshot(pending, true);
+            writeSystraceLogs(context);
+        }
     }
 
     private void writeSystraceLogs(Context context) {
-        File file = new File(context.getExternalFilesDir(null), "trace.txt");
         SimpleLogger logger = SimpleLogger.getInstance(context);
-        try {
-            OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(file, true));
-            writer.write(getLogText());
-            writer.close();
-            logger.log(String.format("TraceLogger wrote %d events to %s",
-                    traceEvents.size(), file.getAbsolutePath()));
+        int pid = android.os.Process.myPid();
+        StringBuilder sb = new StringBuilder();
+        File file = new File(context.getExternalFilesDir(null), SYSTRACE_FILE);
+        appendSystrace(sb, pending, pid);
+        if (!append(file, "", sb, logger)) return;
+
+        sb.setLength(0);
+        File jsonFile = new File(context.getExternalFilesDir(null), JSON_FILE);
+        appendJson(sb, pending, pid);
+        if (!append(jsonFile, "[\n", sb, logger)) return;
+
+        logger.log(String.format("TraceLogger wrote %d events to %s",
+                pending.size, file.getAbsolutePath()));
+        if (pending.dropped > 0) {
+            logger.log(String.format("TraceLogger dropped %d events, more than %d between flushes",
+                    pending.dropped, CAPACITY));
+        }
+    }
+
+    private boolean append(File file, String start, StringBuilder text, SimpleLogger logger) {
+        boolean isNew = !file.exists() || file.length() == 0;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8)) {
+            if (isNew) writer.write(start);
+            writer.append(text);
+            return true;
         } catch (IOException e) {
-            logger.log("ERROR: IOException writing to trace.txt");
+            logger.log("ERROR: IOException writing to " + file.getName());
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -97,17 +272,4 @@ class TraceLogger {
         String state = Environment.getExternalStorageState();
         return Environment.MEDIA_MOUNTED.equals(state);
     }
-
-    private class TraceEvent {
-        long startTimeMicros;
-        long finishTimeMicros;
-        String title;
-        String description;
-        TraceEvent(long startTimeMicros, long finishTimeMicros, String title, String description) {
-            this.startTimeMicros = startTimeMicros;
-            this.finishTimeMicros = finishTimeMicros;
-            this.title = title;
-            this.description = description;
-        }
-    }
 }
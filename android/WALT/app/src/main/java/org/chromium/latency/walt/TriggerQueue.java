@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of preallocated trigger messages.
+ *
+ * The producer (the trigger listener thread) claims a slot, fills it in place and publishes it.
+ * The consumer (the UI thread) peeks at the oldest published slot and releases it when done.
+ * Nothing is allocated per message; when the consumer falls behind, new messages are dropped
+ * and counted instead.
+ */
+class TriggerQueue {
+    // Several seconds of triggers even from a PWM dimmed screen, see PwmDebouncer
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final WaltDevice.TriggerMessage[] slots;
+    private final int mask;
+    // Only the producer writes tail and only the consumer writes head
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    TriggerQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of slots, must be a power of two
+     */
+    TriggerQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        slots = new WaltDevice.TriggerMessage[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new WaltDevice.TriggerMessage();
+        mask = capacity - 1;
+    }
+
+    /**
+     * Producer side. Returns the next free slot to fill, or null if the queue is full.
+     * The slot becomes visible to the consumer after publish().
+     */
+    WaltDevice.TriggerMessage claim() {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * Producer side. Makes the slot returned by the last claim() available to the consumer.
+     */
+    void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Consumer side. Returns the oldest published message without removing it, or null if the
+     * queue is empty. The message stays valid until release().
+     */
+    WaltDevice.TriggerMessage peek() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Consumer side. Hands the slot returned by peek() back to the producer.
+     */
+    void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Returns the number of messages dropped since the last call and resets it.
+     */
+    int takeDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+}
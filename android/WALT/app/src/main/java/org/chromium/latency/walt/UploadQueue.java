@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads that have not reached the server yet, one gzip file each in a directory, and the code
+ * that sends them.
+ *
+ * An upload is sent as a POST with chunked transfer encoding straight from its file, so neither
+ * side needs to hold it in memory. The X-Upload-* headers name the upload and say where the body
+ * starts in the file. If the connection drops, the next attempt asks the server how much it got
+ * and sends only the rest. A server that doesn't know these headers just stores each request,
+ * see server/main.py for one that does.
+ *
+ * The upload id is a random id of this install followed by the file name, so uploads from
+ * different devices that were queued in the same millisecond don't get mixed up on the server.
+ * The install id is kept in the directory next to the uploads.
+ *
+ * An upload the server refuses for good, see isFinal(), is moved to the FAILED_DIRECTORY
+ * subdirectory so it doesn't hold up the ones after it. It is kept there for inspection, up to
+ * MAX_ENTRIES of them.
+ *
+ * Plain Java, no Android dependencies.
+ */
+class UploadQueue {
+    static final String EXTENSION = ".gz";
+    private static final String PARTIAL_EXTENSION = ".part";
+    static final String FAILED_DIRECTORY = "failed";
+    static final String INSTALL_ID_FILE = "install_id";
+    static final int CHUNK_SIZE = 16 * 1024;
+    static final int MAX_ENTRIES = 100;
+    static final int TIMEOUT_MS = 30000;
+
+    static final String HEADER_ID = "X-Upload-Id";
+    static final String HEADER_OFFSET = "X-Upload-Offset";
+    static final String HEADER_LENGTH = "X-Upload-Length";
+
+    private final File dir;
+    private long lastId = 0;
+    private String installId;
+
+    UploadQueue(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns a stream for the content of a new upload, which is compressed as it is written and
+     * queued when the stream is closed. If there are more than MAX_ENTRIES then, the oldest ones
+     * are dropped.
+     */
+    synchronized OutputStream add() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        // Names sort by age, and stay unique if two are added in the same millisecond
+        long id = Math.max(System.currentTimeMillis(), lastId + 1);
+        lastId = id;
+        final File partial = new File(dir, id + EXTENSION + PARTIAL_EXTENSION);
+        final File entry = new File(dir, id + EXTENSION);
+        return new FilterOutputStream(new GZIPOutputStream(new FileOutputStream(partial), CHUNK_SIZE)) {
+            private boolean closed = false;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                super.close();
+                if (!partial.renameTo(entry)) throw new IOException("Can't rename " + partial);
+                trim(MAX_ENTRIES);
+            }
+        };
+    }
+
+    /**
+     * Complete uploads that have not been sent yet, oldest first.
+     */
+    synchronized List<File> getPending() {
+        List<File> entries = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return entries;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) entries.add(file);
+        }
+        return entries;
+    }
+
+    synchronized void trim(int maxEntries) {
+        trim(getPending(), maxEntries);
+    }
+
+    private static void trim(List<File> entries, int maxEntries) {
+        for (int i = 0; i < entries.size() - maxEntries; i++) {
+            entries.get(i).delete();
+        }
+    }
+
+    /**
+     * Moves entry out of the queue into the FAILED_DIRECTORY, dropping the oldest ones there
+     * beyond MAX_ENTRIES.
+     */
+    synchronized void reject(File entry) throws IOException {
+        File failedDir = getFailedDir();
+        if (!failedDir.isDirectory() && !failedDir.mkdirs()) {
+            throw new IOException("Can't create " + failedDir);
+        }
+        if (!entry.renameTo(new File(failedDir, entry.getName()))) {
+            throw new IOException("Can't move " + entry);
+        }
+        trim(getFailed(), MAX_ENTRIES);
+    }
+
+    File getFailedDir() {
+        return new File(dir, FAILED_DIRECTORY);
+    }
+
+    /**
+     * Rejected uploads, oldest first.
+     */
+    synchronized List<File> getFailed() {
+        List<File> entries = new ArrayList<>();
+        File[] files = getFailedDir().listFiles();
+        if (files == null) return entries;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) entries.add(file);
+        }
+        return entries;
+    }
+
+    /**
+     * Whether the server refused an upload in a way that sending it again won't change, i.e. a 4xx
+     * other than 408 Request Timeout, 409 Conflict (wrong offset) and 429 Too Many Requests. 5xx
+     * are taken as a problem of the server that may go away.
+     */
+    static boolean isFinal(int responseCode) {
+        return responseCode / 100 == 4
+                && responseCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                && responseCode != HttpURLConnection.HTTP_CONFLICT
+                && responseCode != 429;
+    }
+
+    /**
+     * The id the server knows entry by.
+     */
+    String getUploadId(File entry) throws IOException {
+        return getInstallId() + "-" + entry.getName();
+    }
+
+    private synchronized String getInstallId() throws IOException {
+        if (installId != null) return installId;
+        File file = new File(dir, INSTALL_ID_FILE);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[64];
+                int n = in.read(buffer);
+                if (n > 0) installId = new String(buffer, 0, n, StandardCharsets.US_ASCII).trim();
+            }
+        }
+        if (installId == null || installId.isEmpty()) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            installId = UUID.randomUUID().toString();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(installId.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return installId;
+    }
+
+    /**
+     * Sends entry to url starting at the given offset in the file. Returns the HTTP status code.
+     * On 409 Conflict the server wants a different offset, see getServerOffset().
+     */
+    int send(URL url, File entry, long offset) throws IOException {
+        String uploadId = getUploadId(entry);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+            connection.setRequestProperty("Content-Type", "text/plain");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty(HEADER_ID, uploadId);
+            connection.setRequestProperty(HEADER_OFFSET, Long.toString(offset));
+            connection.setRequestProperty(HEADER_LENGTH, Long.toString(entry.length()));
+            try (InputStream in = new FileInputStream(entry);
+                 OutputStream out = connection.getOutputStream()) {
+                long skipped = 0;
+                while (skipped < offset) {
+                    long n = in.skip(offset - skipped);
+                    if (n <= 0) throw new IOException("Offset beyond the end of " + entry);
+                    skipped += n;
+                }
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Asks the server how many bytes of entry it already has, 0 if it doesn't know.
+     */
+    long getServerOffset(URL url, File entry) throws IOException {
+        URL statusUrl = new URL(url, url.getPath() + "?" + HEADER_ID + "="
+                + URLEncoder.encode(getUploadId(entry), "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) statusUrl.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (connection.getResponseCode() / 100 != 2) return 0;
+            return parseOffset(connection.getHeaderField(HEADER_OFFSET), entry.length());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    static long parseOffset(String header, long length) {
+        if (header == null) return 0;
+        try {
+            long offset = Long.parseLong(header.trim());
+            return offset >= 0 && offset <= length ? offset : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
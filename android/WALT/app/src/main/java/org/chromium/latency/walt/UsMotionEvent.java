@@ -32,7 +32,9 @@ public class UsMotionEvent {
     public long physicalTime, kernelTime, createTime;
     public float x, y;
     public int slot;
-    public int action;
+    public int action;  // Masked, the pointer is in pointerId
+    public int pointerId;
+    public int pointerCount;
     public int num;
     public String metadata;
     public long baseTime;
@@ -42,25 +44,31 @@ public class UsMotionEvent {
     /**
      *
      * @param event - MotionEvent as received by the handler.
-     * @param baseTime - base time of the last clock sync.
+     * @param clock - the remote clock, event times are converted to it.
      */
-    public UsMotionEvent(MotionEvent event, long baseTime) {
-        createTime = RemoteClockInfo.microTime() - baseTime;
-        this.baseTime = baseTime;
+    public UsMotionEvent(MotionEvent event, RemoteClockInfo clock) {
+        createTime = clock.micros();
+        this.baseTime = clock.baseTime;
         slot = -1;
-        kernelTime = event.getEventTimeNanos() / 1000 - baseTime;
-        x = event.getX();
-        y = event.getY();
-        action = event.getAction();
+        kernelTime = clock.toRemote(event.getEventTimeNanos() / 1000);
+        // For ACTION_POINTER_DOWN and ACTION_POINTER_UP the pointer that changed, else the first
+        int index = event.getActionIndex();
+        pointerId = event.getPointerId(index);
+        pointerCount = event.getPointerCount();
+        x = event.getX(index);
+        y = event.getY(index);
+        action = event.getActionMasked();
     }
 
-    public UsMotionEvent(MotionEvent event, long baseTime, int pos) {
-        createTime = RemoteClockInfo.microTime() - baseTime;
-        this.baseTime = baseTime;
+    public UsMotionEvent(MotionEvent event, RemoteClockInfo clock, int pos) {
+        createTime = clock.micros();
+        this.baseTime = clock.baseTime;
         slot = pos;
         action = MotionEvent.ACTION_MOVE; // Only MOVE events get bundled with history
+        pointerId = event.getPointerId(0);
+        pointerCount = event.getPointerCount();
 
-        kernelTime = event.getHistoricalEventTimeNanos(pos) / 1000 - baseTime;
+        kernelTime = clock.toRemote(event.getHistoricalEventTimeNanos(pos) / 1000);
         x = event.getHistoricalX(pos);
         y = event.getHistoricalY(pos);
     }
@@ -77,8 +85,8 @@ public class UsMotionEvent {
     }
 
     public String toStringLong() {
-        return String.format("Event: t=%d x=%.1f y=%.1f slot=%d num=%d %s",
-                kernelTime, x, y, slot, num, actionToString(action));
+        return String.format("Event: t=%d x=%.1f y=%.1f slot=%d num=%d pointer=%d/%d %s",
+                kernelTime, x, y, slot, num, pointerId, pointerCount, actionToString(action));
 
     }
 
@@ -95,6 +103,10 @@ public class UsMotionEvent {
                 return "ACTION_OUTSIDE";
             case MotionEvent.ACTION_MOVE:
                 return "ACTION_MOVE";
+            case MotionEvent.ACTION_POINTER_DOWN:
+                return "ACTION_POINTER_DOWN";
+            case MotionEvent.ACTION_POINTER_UP:
+                return "ACTION_POINTER_UP";
             case MotionEvent.ACTION_HOVER_MOVE:
                 return "ACTION_HOVER_MOVE";
             case MotionEvent.ACTION_SCROLL:
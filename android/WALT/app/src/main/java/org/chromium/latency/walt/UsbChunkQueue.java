@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Preallocated chunks of data read from USB, handed from the thread that reaps the transfers to
+ * the one that reads them. When all chunks are in use new data is dropped and counted.
+ */
+class UsbChunkQueue {
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+        long receiveMicros;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> free;
+    private final ArrayBlockingQueue<Chunk> ready;
+    private final AtomicInteger dropped = new AtomicInteger();
+    // Reader side only
+    private long lastReceiveMicros = 0;
+
+    UsbChunkQueue(int chunks, int chunkSize) {
+        free = new ArrayBlockingQueue<>(chunks);
+        ready = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) free.add(new Chunk(chunkSize));
+    }
+
+    /**
+     * Copies length bytes from the start of buffer into a free chunk, or counts them as dropped if
+     * there is none. The buffer is flipped in the process. receiveMicros is when the transfer
+     * completed, see getLastReceiveMicros().
+     */
+    void offer(ByteBuffer buffer, int length, long receiveMicros) {
+        Chunk chunk = free.poll();
+        if (chunk == null) {
+            dropped.incrementAndGet();
+            return;
+        }
+        length = Math.min(length, chunk.data.length);
+        buffer.flip();
+        buffer.get(chunk.data, 0, length);
+        chunk.length = length;
+        chunk.receiveMicros = receiveMicros;
+        ready.add(chunk);
+    }
+
+    /**
+     * Waits up to timeoutMs for the next chunk and copies it to buff.
+     * Returns its length, or -1 if nothing arrived in time.
+     */
+    int poll(byte[] buff, long timeoutMs) {
+        Chunk chunk;
+        try {
+            chunk = ready.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        if (chunk == null) return -1;
+        int length = Math.min(chunk.length, buff.length);
+        System.arraycopy(chunk.data, 0, buff, 0, length);
+        lastReceiveMicros = chunk.receiveMicros;
+        free.add(chunk);
+        return length;
+    }
+
+    /**
+     * The receive time of the chunk last returned by poll().
+     */
+    long getLastReceiveMicros() {
+        return lastReceiveMicros;
+    }
+
+    /**
+     * Discards the data that was not read yet.
+     */
+    void clear() {
+        Chunk chunk;
+        while ((chunk = ready.poll()) != null) free.add(chunk);
+    }
+
+    /**
+     * Returns the number of transfers dropped since the last call and resets it.
+     */
+    int takeDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+}
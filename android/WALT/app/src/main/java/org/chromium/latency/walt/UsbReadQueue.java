@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Keeps several IN transfers queued on a bulk endpoint, so that there is always one pending when
+ * WALT sends something.
+ *
+ * With one synchronous bulkTransfer() at a time, data that arrives between two transfers waits
+ * until the reader gets around to the next one. Here a reaper thread waits for the requests to
+ * complete, notes the local time, copies the data into a preallocated chunk and queues the request
+ * again right away. read() hands out the chunks in order. When read() falls behind and all chunks
+ * are in use, new data is dropped and counted.
+ *
+ * Nothing else may reap requests on the same connection while this is running, that includes the
+ * native clock sync, which submits its own URBs. Stop it for that and start it again after.
+ */
+class UsbReadQueue {
+    static final int TRANSFER_SIZE = 1024;
+    static final int DEFAULT_REQUESTS = 4;
+    static final int DEFAULT_CHUNKS = 64;
+    private static final int REAP_TIMEOUT_MS = 100;
+    private static final String TAG = "UsbReadQueue";
+
+    private static class Transfer {
+        final UsbRequest request = new UsbRequest();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+    }
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private final Transfer[] transfers;
+    private final UsbChunkQueue chunks;
+    private Thread reaperThread;
+    private volatile boolean running = false;
+
+    UsbReadQueue(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        this(connection, endpoint, DEFAULT_REQUESTS, DEFAULT_CHUNKS);
+    }
+
+    UsbReadQueue(UsbDeviceConnection connection, UsbEndpoint endpoint, int requests, int chunks) {
+        this.connection = connection;
+        this.endpoint = endpoint;
+        transfers = new Transfer[requests];
+        this.chunks = new UsbChunkQueue(chunks, TRANSFER_SIZE);
+    }
+
+    /**
+     * Queues all requests and starts the reaper thread.
+     */
+    synchronized void start() throws IOException {
+        if (running) return;
+        for (int i = 0; i < transfers.length; i++) {
+            Transfer transfer = new Transfer();
+            if (!transfer.request.initialize(connection, endpoint)) {
+                closeRequests(i);
+                throw new IOException("Can't initialize USB request");
+            }
+            transfer.request.setClientData(transfer);
+            transfers[i] = transfer;
+        }
+        int queued = 0;
+        while (queued < transfers.length && queue(transfers[queued])) queued++;
+        final int pending = queued;
+        running = true;
+        reaperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reapLoop(pending);
+            }
+        }, "WALT USB reader");
+        reaperThread.start();
+        if (queued < transfers.length) {
+            // Let the reaper collect the ones already queued
+            stop();
+            throw new IOException("Can't queue USB request");
+        }
+    }
+
+    /**
+     * Cancels the pending requests and waits for the reaper thread to collect them. Data that
+     * read() did not get to yet is discarded, so that it can't show up after whatever the caller
+     * reads from the endpoint directly in the meantime, e.g. the replies of a clock sync.
+     */
+    synchronized void stop() {
+        running = false;
+        cancelAll();
+        if (reaperThread != null) {
+            try {
+                reaperThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reaperThread = null;
+        }
+        closeRequests(transfers.length);
+        chunks.clear();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    private boolean queue(Transfer transfer) {
+        transfer.buffer.clear();
+        return transfer.request.queue(transfer.buffer);
+    }
+
+    private void cancelAll() {
+        for (Transfer transfer : transfers) {
+            if (transfer != null) transfer.request.cancel();
+        }
+    }
+
+    private void closeRequests(int count) {
+        for (int i = 0; i < count; i++) {
+            if (transfers[i] != null) {
+                transfers[i].request.close();
+                transfers[i] = null;
+            }
+        }
+    }
+
+    private void reapLoop(int pending) {
+        while (pending > 0) {
+            UsbRequest request;
+            try {
+                request = connection.requestWait(REAP_TIMEOUT_MS);
+            } catch (TimeoutException e) {
+                // A request queued again just as stop() cancelled the others
+                if (!running) cancelAll();
+                continue;
+            }
+            if (request == null) {
+                // The device is gone, the remaining requests are never coming back
+                Log.w(TAG, "requestWait() failed");
+                running = false;
+                break;
+            }
+            long now = RemoteClockInfo.microTime();
+            Transfer transfer = (Transfer) request.getClientData();
+            pending--;
+            if (!running) continue;
+            int length = transfer.buffer.position();
+            if (length > 0) chunks.offer(transfer.buffer, length, now);
+            if (queue(transfer)) {
+                pending++;
+            } else {
+                Log.w(TAG, "Can't queue USB request again");
+            }
+        }
+    }
+
+    /**
+     * Waits up to timeoutMs for the next chunk of data and copies it to buff, which should have
+     * room for TRANSFER_SIZE bytes. Returns its length, or -1 if nothing arrived in time.
+     */
+    int read(byte[] buff, long timeoutMs) {
+        return chunks.poll(buff, timeoutMs);
+    }
+
+    /**
+     * Local time in microseconds when the data last returned by read() was reaped.
+     */
+    long getLastReceiveMicros() {
+        return chunks.getLastReceiveMicros();
+    }
+
+    /**
+     * Returns the number of transfers dropped since the last call and resets it.
+     */
+    int takeDroppedCount() {
+        return chunks.takeDroppedCount();
+    }
+}
@@ -30,6 +30,13 @@ public interface WaltConnection {
 
     int blockingRead(byte[] buffer);
 
+    /**
+     * Local time in microseconds, see RemoteClockInfo.microTime(), when the data last returned by
+     * blockingRead() arrived. Another thread that saw the result of a read gets the time of that
+     * read or a later one.
+     */
+    long getLastReadMicros();
+
     RemoteClockInfo syncClock() throws IOException;
 
     void updateLag();
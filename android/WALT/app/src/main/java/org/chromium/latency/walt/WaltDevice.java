@@ -23,13 +23,25 @@ import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+import static org.chromium.latency.walt.Utils.getBooleanPreference;
 
 /**
- * A singleton used as an interface for the physical WALT device.
+ * An interface for one physical WALT device. There may be several, see WaltDeviceRegistry.
  */
 public class WaltDevice implements WaltConnection.ConnectionStateListener {
 
     private static final int DEFAULT_DRIFT_LIMIT_US = 1500;
+    private static final long COMMAND_TIMEOUT_NS = 1000 * 1000 * 1000L;
+    // How long the listener keeps reading after stopListener() for commands still in flight
+    private static final long STOP_GRACE_NS = 50 * 1000 * 1000L;
+    private static final int SKEW_SAMPLE_INTERVAL_MS = 2000;
     private static final String TAG = "WaltDevice";
     public static final String PROTOCOL_VERSION = "6";
 
@@ -57,32 +69,69 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
     static final char CMD_MIDI             = 'M'; // Start listening for a MIDI message
     static final char CMD_NOTE             = 'N'; // Generate a MIDI NoteOn message
     static final char CMD_ACCELEROMETER    = 'O'; // Generate a MIDI NoteOn message
+    static final char CMD_BINARY_TRIGGERS_ON  = 'Y'; // Send auto triggers as binary frames
+    static final char CMD_BINARY_TRIGGERS_OFF = 'y';
+    static final char CMD_CAPABILITIES     = 'K'; // List optional features
+
+    // Capabilities listed in the reply to CMD_CAPABILITIES
+    static final String CAPABILITY_BINARY_TRIGGERS = "B";
 
     private static final int BYTE_BUFFER_SIZE = 1024 * 4;
     private byte[] buffer = new byte[BYTE_BUFFER_SIZE];
+    // Shared by readOne(), the command reader and the TriggerListener. Whoever reads a message
+    // holds its lock while doing so.
+    private final MessageFramer framer = new MessageFramer(BYTE_BUFFER_SIZE);
+    // Commands sent with commandAsync() that WALT has not answered yet
+    private final CommandQueue pendingCommands = new CommandQueue();
+    private final AtomicBoolean commandReaderRunning = new AtomicBoolean();
 
     private Context context;
     protected SimpleLogger logger;
+    private final String name;
     private WaltConnection connection;
+    // Created on first use, each device needs its own
+    private WaltUsbConnection usbConnection;
+    private WaltSimulator simulator;
     public RemoteClockInfo clock;
+    private final ClockSkewTracker skewTracker = new ClockSkewTracker();
+    private Handler skewHandler;
+    private volatile boolean skewSamplingPaused = false;
     private WaltConnection.ConnectionStateListener connectionStateListener;
+    private boolean binaryTriggersSupported = false;
 
-    private static final Object LOCK = new Object();
-    private static WaltDevice instance;
-
+    /**
+     * Returns the default device of WaltDeviceRegistry, the one the UI works with.
+     */
     public static WaltDevice getInstance(Context context) {
-        synchronized (LOCK) {
-            if (instance == null) {
-                instance = new WaltDevice(context.getApplicationContext());
-            }
-            return instance;
-        }
+        return WaltDeviceRegistry.getInstance(context).getDefaultDevice();
     }
 
-    private WaltDevice(Context context) {
+    WaltDevice(Context context, String name) {
         this.context = context;
+        this.name = name;
         triggerListener = new TriggerListener();
         logger = SimpleLogger.getInstance(context);
+        skewHandler = new Handler();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private WaltUsbConnection getUsbConnection() {
+        if (usbConnection == null) {
+            usbConnection = new WaltUsbConnection(context);
+        }
+        return usbConnection;
+    }
+
+    private WaltSimulator getSimulator() {
+        if (simulator == null) {
+            // The default one is reachable through WaltSimulator.getInstance() to drive it
+            simulator = WaltDeviceRegistry.DEFAULT_DEVICE.equals(name) ?
+                    WaltSimulator.getInstance() : new WaltSimulator(System.nanoTime());
+        }
+        return simulator;
     }
 
     public void onConnect() {
@@ -90,6 +139,13 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             // TODO: restore
             softReset();
             checkVersion();
+            // Not over the TCP bridge, it forwards whole lines only
+            if (binaryTriggersSupported && (connection instanceof WaltUsbConnection ||
+                    connection instanceof WaltSimulator) &&
+                    getBooleanPreference(context, R.string.preference_binary_triggers, true)) {
+                command(CMD_BINARY_TRIGGERS_ON);
+                logger.log("Using binary trigger messages");
+            }
             syncClock();
         } catch (IOException e) {
             logger.log("Unable to communicate with WALT: " + e.getMessage());
@@ -113,13 +169,27 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
     }
 
     public void connect() {
-        if (WaltTcpConnection.probe()) {
+        if (getBooleanPreference(context, R.string.preference_simulator, false)) {
+            logger.log("Using simulated WALT");
+            connection = getSimulator();
+        } else if (WaltTcpConnection.probe()) {
+            // There is only one bridge, with a single WALT behind it. Its connection is shared, so
+            // it can only belong to one device.
+            if (!WaltDeviceRegistry.DEFAULT_DEVICE.equals(name)) {
+                logger.log("Not connecting " + name + ", the TCP bridge only serves the default "
+                        + "device");
+                return;
+            }
             logger.log("Using TCP bridge for ChromeOS");
-            connection = WaltTcpConnection.getInstance(context);
+            if (getBooleanPreference(context, R.string.preference_nio_bridge, false)) {
+                connection = WaltNioConnection.getInstance(context);
+            } else {
+                connection = WaltTcpConnection.getInstance(context);
+            }
         } else {
             // USB connection
             logger.log("No TCP bridge detected, using direct USB connection");
-            connection = WaltUsbConnection.getInstance(context);
+            connection = getUsbConnection();
         }
         connection.setConnectionStateListener(this);
         connection.connect();
@@ -128,14 +198,14 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
     public void connect(UsbDevice usbDevice) {
         // This happens when apps starts as a result of plugging WALT into USB. In this case we
         // receive an intent with a usbDevice
-        WaltUsbConnection usbConnection = WaltUsbConnection.getInstance(context);
-        connection = usbConnection;
+        connection = getUsbConnection();
         connection.setConnectionStateListener(this);
-        usbConnection.connect(usbDevice);
+        getUsbConnection().connect(usbDevice);
     }
 
     public boolean isConnected() {
-        return connection.isConnected();
+        // A device that was never connected has no connection yet
+        return connection != null && connection.isConnected();
     }
 
 
@@ -144,17 +214,36 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             throw new IOException("Can't do blocking read while listener is running");
         }
 
-        byte[] buff = new byte[64];
-        int ret = connection.blockingRead(buff);
+        String s;
+        synchronized (framer) {
+            int ret = readMessage(buffer);
 
-        if (ret < 0) {
-            throw new IOException("Timed out reading from WALT");
+            if (ret < 0) {
+                throw new IOException("Timed out reading from WALT");
+            }
+            s = new String(framer.getBuffer(), framer.getMessageStart(), ret);
         }
-        String s = new String(buff, 0, ret);
         Log.i(TAG, "readOne() received data: " + s);
         return s;
     }
 
+    /**
+     * Reads from the connection into readBuffer until the framer has a complete message.
+     * Returns its length, or the return value of the read that failed or timed out.
+     */
+    private int readMessage(byte[] readBuffer) {
+        while (!framer.next()) {
+            int ret = connection.blockingRead(readBuffer);
+            if (ret <= 0) return ret;
+            framer.append(readBuffer, 0, ret);
+            int dropped = framer.takeDroppedCount();
+            if (dropped > 0) {
+                Log.w(TAG, "Dropped " + dropped + " bytes of data without a message boundary");
+            }
+        }
+        return framer.getMessageLength();
+    }
+
 
     private String sendReceive(char c) throws IOException {
         connection.sendByte(c);
@@ -168,6 +257,7 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             while(connection.blockingRead(buffer) > 0) {
                 // flushing all incoming data
             }
+            framer.clear();
         } catch (Exception e) {
             logger.log("Exception in sendAndFlush: " + e.getMessage());
             e.printStackTrace();
@@ -180,7 +270,7 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
 
     String command(char cmd, char ack) throws IOException {
         if (!isListenerStopped()) {
-            connection.sendByte(cmd); // TODO: check response even if the listener is running
+            connection.sendByte(cmd); // Use commandAsync() to check the response
             return "";
         }
         String response = sendReceive(cmd);
@@ -195,6 +285,86 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
         return command(cmd, flipCase(cmd));
     }
 
+    /**
+     * Sends a command without waiting for the response. The returned future completes with the
+     * response, as returned by command(), or fails with an IOException if WALT does not answer
+     * within COMMAND_TIMEOUT_NS. Several commands may be outstanding at once, each response is
+     * matched to the oldest pending command with the same ack.
+     *
+     * Works whether the listener is running or not. Futures complete on the thread reading from
+     * WALT, so anything touching the UI has to be posted to the UI thread. Blocking calls such as
+     * command(), readOne() and syncClock() must not be used while commands are pending.
+     */
+    CompletableFuture<String> commandAsync(char cmd, char ack) {
+        CompletableFuture<String> future =
+                pendingCommands.add(cmd, ack, System.nanoTime() + COMMAND_TIMEOUT_NS);
+        try {
+            connection.sendByte(cmd);
+        } catch (IOException e) {
+            // Nothing more will arrive on a broken connection
+            pendingCommands.failAll(e);
+            return future;
+        }
+        if (isListenerStopped()) startCommandReader();
+        return future;
+    }
+
+    CompletableFuture<String> commandAsync(char cmd) {
+        return commandAsync(cmd, flipCase(cmd));
+    }
+
+    /**
+     * Sends a command without waiting for the response, logs an error if WALT does not
+     * acknowledge it. The returned future has already failed if the command could not be sent.
+     */
+    CompletableFuture<String> commandNoWait(final char cmd) {
+        return commandAsync(cmd).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String response, Throwable e) {
+                if (e != null) {
+                    logger.log("Error sending command " + cmd + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads responses to pending async commands while the listener is not running.
+     */
+    private void startCommandReader() {
+        if (!commandReaderRunning.compareAndSet(false, true)) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    while (!pendingCommands.isEmpty() && isListenerStopped()) {
+                        readCommandResponse();
+                    }
+                    commandReaderRunning.set(false);
+                    // A command may have been added after the loop ended but before the flag was
+                    // cleared, in which case its caller did not start a new reader
+                } while (!pendingCommands.isEmpty() && isListenerStopped() &&
+                        commandReaderRunning.compareAndSet(false, true));
+            }
+        }, "WALT command reader").start();
+    }
+
+    /**
+     * Reads one message and hands it to the pending async commands, while the listener is not
+     * running.
+     */
+    private void readCommandResponse() {
+        synchronized (framer) {
+            int ret = readMessage(buffer);
+            if (ret > 0 && !pendingCommands.offer(framer.getBuffer(),
+                    framer.getMessageStart(), ret)) {
+                Log.i(TAG, "Received unexpected data while waiting for a command response: " +
+                        new String(framer.getBuffer(), framer.getMessageStart(), ret));
+            }
+        }
+        pendingCommands.expire(System.nanoTime());
+    }
+
     private char flipCase(char c) {
         if (Character.isUpperCase(c)) {
             return Character.toLowerCase(c);
@@ -215,16 +385,32 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             throw new IOException(String.format(res.getString(R.string.protocol_version_mismatch),
                     s, PROTOCOL_VERSION));
         }
+        binaryTriggersSupported = false;
+        String capabilities;
+        try {
+            capabilities = command(CMD_CAPABILITIES);
+        } catch (IOException e) {
+            // Older firmware doesn't know the command, it has none of them
+            Log.i(TAG, "No capabilities from WALT: " + e.getMessage());
+            return;
+        }
+        for (String capability : capabilities.split("\\s+")) {
+            if (CAPABILITY_BINARY_TRIGGERS.equals(capability)) binaryTriggersSupported = true;
+        }
     }
 
     public void syncClock() throws IOException {
         clock = connection.syncClock();
+        // The remote clock was zeroed, but still runs at the same rate
+        clock.skew = skewTracker.getSkew();
+        skewTracker.restart();
     }
 
     // Simple way of syncing clocks. Used for diagnostics. Accuracy of several ms.
     public void simpleSyncClock() throws IOException {
         byte[] buffer = new byte[1024];
         clock = new RemoteClockInfo();
+        skewTracker.restart();
         clock.baseTime = RemoteClockInfo.microTime();
         String reply = sendReceive(CMD_SYNC_ZERO);
         logger.log("Simple sync reply: " + reply);
@@ -238,9 +424,14 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             return;
         }
         connection.updateLag();
-        int drift = Math.abs(clock.getMeanLag());
-        String msg = String.format("Remote clock delayed between %d and %d us",
-                clock.minLag, clock.maxLag);
+        long now = RemoteClockInfo.microTime();
+        addSkewSample(now, now - clock.baseTime - clock.getMeanLag(),
+                clock.maxLag - clock.minLag);
+        int correction = clock.skewCorrection(now);
+        int drift = Math.abs(clock.getMeanLag() + correction);
+        String msg = String.format(Locale.US,
+                "Remote clock delayed between %d and %d us, skew %.1f ppm",
+                clock.minLag + correction, clock.maxLag + correction, clock.skew * 1e6);
         // TODO: Convert the limit to user editable preference
         if (drift > DEFAULT_DRIFT_LIMIT_US) {
             msg = "WARNING: High clock drift. " + msg;
@@ -248,6 +439,48 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
         logger.log(msg);
     }
 
+    private void addSkewSample(long localMicros, long remoteMicros, int uncertaintyMicros) {
+        skewTracker.addSample(localMicros, remoteMicros, uncertaintyMicros);
+        if (skewTracker.fit() && clock != null) {
+            clock.skew = skewTracker.getSkew();
+        }
+    }
+
+    /**
+     * Stops reading the remote clock until the listener is started again. For tests that have
+     * WALT stream raw data, which must not be interrupted by other commands.
+     */
+    void pauseSkewSampling() {
+        skewSamplingPaused = true;
+    }
+
+    // Reads the remote clock every SKEW_SAMPLE_INTERVAL_MS while the listener is running, to
+    // keep the skew estimate current during long tests. The blocking calls can't be used then.
+    private final Runnable skewSampler = new Runnable() {
+        @Override
+        public void run() {
+            if (!isListenerStopped() && clock != null && !skewSamplingPaused) {
+                final long t0 = RemoteClockInfo.microTime();
+                commandAsync(CMD_TIME_NOW).whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String response, Throwable e) {
+                        if (e != null) return;
+                        // When the reply arrived, or a later read if this runs late. On USB
+                        // that is when the transfer completed, not when the listener got to it.
+                        long t1 = connection.getLastReadMicros();
+                        try {
+                            addSkewSample((t0 + t1) / 2, Long.parseLong(response),
+                                    (int) (t1 - t0));
+                        } catch (NumberFormatException nfe) {
+                            Log.w(TAG, "Bad reply for time now: " + response);
+                        }
+                    }
+                });
+            }
+            skewHandler.postDelayed(this, SKEW_SAMPLE_INTERVAL_MS);
+        }
+    };
+
     public long readLastShockTime_mock() {
         return clock.micros() - 15000;
     }
@@ -272,21 +505,102 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
     }
 
     static class TriggerMessage {
+        // Binary frame, see CMD_BINARY_TRIGGERS_ON: magic, tag, t (int32), value (int16),
+        // count (int16), all little endian
+        static final byte FRAME_MAGIC = (byte) 0xA5;
+        static final int FRAME_SIZE = 10;
+
+        private static final Pattern TRIGGER_PATTERN =
+                Pattern.compile("G\\s+[A-Z]\\s+\\d+\\s+\\d+.*");
+
         public char tag;
         public long t;
         public int value;
         public int count;
+        // Local time when the message reached the app, see WaltConnection.getLastReadMicros()
+        public long receiveMicros;
+
+        TriggerMessage() {
+        }
+
+        TriggerMessage(TriggerMessage other) {
+            set(other);
+        }
+
         // TODO: verify the format of the message while parsing it
         TriggerMessage(String s) {
             String[] parts = s.trim().split("\\s+");
             tag = parts[0].charAt(0);
-            t = Integer.parseInt(parts[1]);
+            t = Long.parseLong(parts[1]);
             value = Integer.parseInt(parts[2]);
             count = Integer.parseInt(parts[3]);
         }
 
+        TriggerMessage(byte[] buff, int offset) {
+            setFromFrame(buff, offset);
+        }
+
+        void set(TriggerMessage other) {
+            tag = other.tag;
+            t = other.t;
+            value = other.value;
+            count = other.count;
+            receiveMicros = other.receiveMicros;
+        }
+
+        void setFromFrame(byte[] buff, int offset) {
+            tag = (char) buff[offset + 1];
+            // Unsigned, the WALT clock passes 2^31 us after about 36 minutes
+            t = ((buff[offset + 2] & 0xFF) | (buff[offset + 3] & 0xFF) << 8 |
+                    (buff[offset + 4] & 0xFF) << 16 | (buff[offset + 5] & 0xFF) << 24) & 0xFFFFFFFFL;
+            value = (short) ((buff[offset + 6] & 0xFF) | buff[offset + 7] << 8);
+            count = (short) ((buff[offset + 8] & 0xFF) | buff[offset + 9] << 8);
+        }
+
+        /**
+         * Parses a text trigger message such as "G L 123456 1 1\n" straight from the bytes,
+         * without creating a String. Returns false if buff[offset, end) holds anything else,
+         * the fields are undefined in that case.
+         */
+        boolean parse(byte[] buff, int offset, int end) {
+            int i = skipSpace(buff, offset, end);
+            if (i >= end || buff[i] != 'G') return false;
+            int j = skipSpace(buff, i + 1, end);
+            if (j == i + 1 || j >= end || buff[j] < 'A' || buff[j] > 'Z') return false;
+            tag = (char) buff[j];
+            i = j + 1;
+            for (int field = 0; field < 3; field++) {
+                j = skipSpace(buff, i, end);
+                if (j == i || j >= end || buff[j] < '0' || buff[j] > '9') return false;
+                long v = 0;
+                for (i = j; i < end && buff[i] >= '0' && buff[i] <= '9'; i++) {
+                    v = v * 10 + (buff[i] - '0');
+                }
+                if (field == 0) {
+                    t = v;
+                } else if (field == 1) {
+                    value = (int) v;
+                } else {
+                    count = (int) v;
+                }
+            }
+            return skipSpace(buff, i, end) == end;
+        }
+
+        private static int skipSpace(byte[] buff, int i, int end) {
+            while (i < end && (buff[i] == ' ' || buff[i] == '\t' || buff[i] == '\n' ||
+                    buff[i] == '\r')) {
+                i++;
+            }
+            return i;
+        }
+
         static boolean isTriggerString(String s) {
-            return s.trim().matches("G\\s+[A-Z]\\s+\\d+\\s+\\d+.*");
+            return TRIGGER_PATTERN.matcher(s.trim()).matches();
+        }
+
+        static boolean isTriggerFrame(byte[] buff, int offset, int length) {
+            return length - offset >= FRAME_SIZE && buff[offset] == FRAME_MAGIC;
         }
     }
 
@@ -307,6 +621,35 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
 
     abstract static class TriggerHandler {
         private Handler handler;
+        private final TriggerQueue queue = new TriggerQueue();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final AtomicInteger droppedTotal = new AtomicInteger();
+
+        // Posted at most once at a time, delivers everything in the queue
+        private final Runnable drainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drainScheduled.set(false);
+                TriggerMessage tmsg;
+                while ((tmsg = queue.peek()) != null) {
+                    onReceive(tmsg);
+                    queue.release();
+                }
+                int dropped = queue.takeDroppedCount();
+                if (dropped > 0) {
+                    droppedTotal.addAndGet(dropped);
+                    Log.w(TAG, "Dropped " + dropped + " trigger messages, UI thread too slow");
+                }
+            }
+        };
+
+        /**
+         * Returns the number of triggers dropped since the last call because the queue was full,
+         * and resets it.
+         */
+        int takeDroppedCount() {
+            return droppedTotal.getAndSet(0) + queue.takeDroppedCount();
+        }
 
         TriggerHandler() {
             handler = new Handler();
@@ -321,6 +664,24 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             });
         }
 
+        /**
+         * Listener thread side. Returns a pooled message to fill, or null if the queue is full.
+         */
+        private TriggerMessage claim() {
+            return queue.claim();
+        }
+
+        /**
+         * Listener thread side. Queues the message returned by claim() for delivery on the UI
+         * thread.
+         */
+        private void publish() {
+            queue.publish();
+            if (drainScheduled.compareAndSet(false, true)) {
+                handler.post(drainRunnable);
+            }
+        }
+
         void onReceiveRaw(String s) {
             if (TriggerMessage.isTriggerString(s)) {
                 TriggerMessage tmsg = new TriggerMessage(s.substring(1).trim());
@@ -330,40 +691,90 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             }
         }
 
+        /**
+         * Called on the UI thread for each trigger. The message object is reused once this
+         * returns, copy it to keep it around.
+         */
         abstract void onReceive(TriggerMessage tmsg);
     }
 
     private TriggerHandler triggerHandler;
 
     void setTriggerHandler(TriggerHandler triggerHandler) {
+        // Handlers are reused between runs, only count the drops of this one
+        triggerHandler.takeDroppedCount();
         this.triggerHandler = triggerHandler;
     }
 
-    void clearTriggerHandler() {
+    /**
+     * Stops delivering triggers. If any were dropped since setTriggerHandler() the events the test
+     * worked with are incomplete, this is logged and the number returned.
+     */
+    int clearTriggerHandler() {
+        int dropped = triggerHandler == null ? 0 : triggerHandler.takeDroppedCount();
         triggerHandler = null;
+        if (dropped > 0) {
+            logger.log("WARNING: " + dropped + " triggers from WALT were dropped because the app "
+                    + "fell behind, the results of this run are incomplete");
+        }
+        return dropped;
     }
 
     private class TriggerListener implements Runnable {
         static final int BUFF_SIZE = 1024 * 4;
         public Utils.ListenerState state = Utils.ListenerState.STOPPED;
+        private long stopDeadlineNanos;
         private byte[] buffer = new byte[BUFF_SIZE];
+        private final TriggerMessage parsed = new TriggerMessage();
 
         @Override
         public void run() {
             state = Utils.ListenerState.RUNNING;
-            while(isRunning()) {
-                int ret = connection.blockingRead(buffer);
-                if (ret > 0 && triggerHandler != null) {
-                    String s = new String(buffer, 0, ret);
-                    Log.i(TAG, "Listener received data: " + s);
-                    if (s.length() > 0) {
-                        triggerHandler.go(s);
-                    }
+            while (isRunning() || isFinishingCommands()) {
+                synchronized (framer) {
+                    readAndDispatch();
                 }
+                pendingCommands.expire(System.nanoTime());
             }
             state = Utils.ListenerState.STOPPED;
         }
 
+        private void readAndDispatch() {
+            int ret = readMessage(buffer);
+            if (ret <= 0) return;
+            final byte[] message = framer.getBuffer();
+            final int start = framer.getMessageStart();
+            if (pendingCommands.offer(message, start, ret)) return;
+            if (message[start] == Character.toLowerCase(CMD_TIME_NOW)) {
+                // A skew sample that came after its command expired, not for the handler
+                Log.i(TAG, "Dropped late reply: " + new String(message, start, ret));
+                return;
+            }
+
+            final TriggerHandler handler = triggerHandler;
+            if (handler == null) return;
+            if (TriggerMessage.isTriggerFrame(message, start, start + ret)) {
+                TriggerMessage tmsg = handler.claim();
+                if (tmsg != null) {
+                    tmsg.setFromFrame(message, start);
+                    tmsg.receiveMicros = connection.getLastReadMicros();
+                    handler.publish();
+                }
+            } else if (parsed.parse(message, start, start + ret)) {
+                TriggerMessage tmsg = handler.claim();
+                if (tmsg != null) {
+                    tmsg.set(parsed);
+                    tmsg.receiveMicros = connection.getLastReadMicros();
+                    handler.publish();
+                }
+            } else {
+                // Not a trigger, e.g. a line of a brightness curve
+                String s = new String(message, start, ret);
+                Log.i(TAG, "Listener received data: " + s);
+                handler.go(s);
+            }
+        }
+
         public synchronized boolean isRunning() {
             return state == Utils.ListenerState.RUNNING;
         }
@@ -374,6 +785,15 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
 
         public synchronized void stop() {
             state = Utils.ListenerState.STOPPING;
+            stopDeadlineNanos = System.nanoTime() + STOP_GRACE_NS;
+        }
+
+        /**
+         * Whether the listener is stopping but still collects responses to pending commands.
+         */
+        private synchronized boolean isFinishingCommands() {
+            return state == Utils.ListenerState.STOPPING && !pendingCommands.isEmpty()
+                    && System.nanoTime() - stopDeadlineNanos < 0;
         }
     }
 
@@ -389,10 +809,14 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
         logger.log("Starting Listener");
         triggerListener.state = Utils.ListenerState.STARTING;
         triggerListenerThread.start();
+        skewSamplingPaused = false;
+        skewHandler.removeCallbacks(skewSampler);
+        skewHandler.postDelayed(skewSampler, SKEW_SAMPLE_INTERVAL_MS);
     }
 
     public void stopListener() {
         logger.log("Stopping Listener");
+        skewHandler.removeCallbacks(skewSampler);
         triggerListener.stop();
         try {
             triggerListenerThread.join();
@@ -400,6 +824,12 @@ public class WaltDevice implements WaltConnection.ConnectionStateListener {
             logger.log("Error while stopping Listener: " + e.getMessage());
         }
         logger.log("Listener stopped");
+        // The listener collected the responses that came within STOP_GRACE_NS. Don't wait for
+        // the rest here, this usually runs on the UI thread, and the caller is free to use the
+        // blocking calls right away.
+        if (!pendingCommands.isEmpty()) {
+            pendingCommands.failAll(new IOException("Listener stopped before WALT answered"));
+        }
     }
 
     public void setConnectionStateListener(WaltConnection.ConnectionStateListener connectionStateListener) {
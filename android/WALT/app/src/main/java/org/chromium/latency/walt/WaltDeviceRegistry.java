@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import android.content.Context;
+
+import java.util.HashMap;
+
+/**
+ * All the WALTs the app talks to, by name.
+ *
+ * Each WaltDevice has its own connection, clock and listener thread, so measurements on
+ * different devices can run at the same time. Over USB every device claims the next Teensy that
+ * is not in use yet. The UI works with the default device, which is what
+ * WaltDevice.getInstance() returns.
+ */
+public class WaltDeviceRegistry {
+
+    static final String DEFAULT_DEVICE = "WALT";
+
+    private final Context context;
+    private final HashMap<String, WaltDevice> devices = new HashMap<>();
+
+    private static final Object LOCK = new Object();
+    private static WaltDeviceRegistry instance;
+
+    public static WaltDeviceRegistry getInstance(Context context) {
+        synchronized (LOCK) {
+            if (instance == null) {
+                instance = new WaltDeviceRegistry(context.getApplicationContext());
+            }
+            return instance;
+        }
+    }
+
+    private WaltDeviceRegistry(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the device with the given name, creating it if there is none yet. A new device
+     * is not connected.
+     */
+    public synchronized WaltDevice getDevice(String name) {
+        WaltDevice device = devices.get(name);
+        if (device == null) {
+            device = new WaltDevice(context, name);
+            devices.put(name, device);
+        }
+        return device;
+    }
+
+    public WaltDevice getDefaultDevice() {
+        return getDevice(DEFAULT_DEVICE);
+    }
+}
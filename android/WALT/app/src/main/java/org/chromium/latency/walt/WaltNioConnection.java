@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Connection to WALT through the TCP bridge, an alternative to WaltTcpConnection.
+ *
+ * Instead of posting every read to a network thread, a dedicated reader thread (see
+ * NioMessageChannel) pushes complete messages into a queue, and blockingRead() takes them from
+ * there. Each call returns exactly one message.
+ */
+public class WaltNioConnection implements WaltConnection {
+
+    private static final String TAG = "WaltNioConnection";
+    // The local ip on ARC++ to connect to underlying ChromeOS
+    private static final String SERVER_IP = "192.168.254.1";
+    private static final int SERVER_PORT = 50007;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int TCP_READ_TIMEOUT_MS = 200;
+
+    private final SimpleLogger logger;
+    private final Handler mainHandler = new Handler();
+    private RemoteClockInfo remoteClock = new RemoteClockInfo();
+    private final ClockSync clockSync = new ClockSync(this);
+    private volatile NioMessageChannel channel;
+    private volatile long lastReadMicros = 0;
+
+    private WaltConnection.ConnectionStateListener connectionStateListener;
+
+    // Singleton stuff
+    private static WaltNioConnection instance;
+    private static final Object LOCK = new Object();
+
+    public static WaltNioConnection getInstance(Context context) {
+        synchronized (LOCK) {
+            if (instance == null) {
+                instance = new WaltNioConnection(context.getApplicationContext());
+            }
+            return instance;
+        }
+    }
+
+    private WaltNioConnection(Context context) {
+        logger = SimpleLogger.getInstance(context);
+    }
+
+    public void connect() {
+        if (isConnected()) {
+            onConnect();
+            return;
+        }
+        // No network on the main thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel = new NioMessageChannel(
+                            new InetSocketAddress(SERVER_IP, SERVER_PORT), CONNECT_TIMEOUT_MS);
+                    logger.log("TCP connection established (NIO)");
+                } catch (IOException e) {
+                    logger.log("Can't connect to TCP bridge: " + e.getMessage());
+                    return;
+                }
+
+                // Run the onConnect callback, but on main thread.
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        WaltNioConnection.this.onConnect();
+                    }
+                });
+            }
+        }, "NetworkThread").start();
+    }
+
+    public void onConnect() {
+        if (connectionStateListener != null) {
+            connectionStateListener.onConnect();
+        }
+    }
+
+    public boolean isConnected() {
+        NioMessageChannel c = channel;
+        return c != null && c.isOpen();
+    }
+
+    public void sendByte(char c) throws IOException {
+        getChannel().write((byte) c);
+    }
+
+    public void sendString(String s) throws IOException {
+        byte[] data = s.getBytes("UTF-8");
+        getChannel().write(data, 0, data.length);
+    }
+
+    /**
+     * Returns the next message from WALT, -2 if there was none within TCP_READ_TIMEOUT_MS or -1
+     * if the connection is closed.
+     */
+    public int blockingRead(byte[] buff) {
+        NioMessageChannel c = channel;
+        if (c == null) return NioMessageChannel.READ_CLOSED;
+        int ret = c.read(buff, TCP_READ_TIMEOUT_MS);
+        if (ret > 0) lastReadMicros = RemoteClockInfo.microTime();
+        int dropped = c.takeDroppedCount();
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " messages, reader too slow");
+        }
+        return ret;
+    }
+
+    public long getLastReadMicros() {
+        return lastReadMicros;
+    }
+
+    private NioMessageChannel getChannel() throws IOException {
+        NioMessageChannel c = channel;
+        if (c == null) throw new IOException("Not connected to TCP bridge");
+        return c;
+    }
+
+    /**
+     * Syncs with WALT through the bridge like with a directly attached one. The bridge's own
+     * "bridge sync" reply is in ChromeOS time and can't be converted without uptimeZero().
+     */
+    public RemoteClockInfo syncClock() throws IOException {
+        clockSync.sync(remoteClock);
+        logger.log("Synced clocks via TCP bridge:\n" + remoteClock);
+        return remoteClock;
+    }
+
+    public void updateLag() {
+        try {
+            clockSync.updateBounds(remoteClock);
+        } catch (IOException e) {
+            logger.log("Failed to update clock lag: " + e.getMessage());
+        }
+    }
+
+    public void setConnectionStateListener(ConnectionStateListener connectionStateListener) {
+        this.connectionStateListener = connectionStateListener;
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A software WALT, emulating the command set of walt.ino over the WaltConnection interface.
+ *
+ * Every byte sent either way is delayed by the configured latency plus a random jitter, while
+ * preserving the order like USB does. The remote clock runs at a configurable drift relative to
+ * the local clock. Sensors are driven from the outside through the stimulus methods, e.g.
+ * setScreenLevel() or laserChange(), which record a trigger at the current time just like the
+ * firmware's probes and interrupt handlers do.
+ *
+ * Plain Java, so it can run end to end tests and benchmarks on a regular JVM. The MIDI transport
+ * is not emulated, CMD_NOTE only sends the reply.
+ */
+public class WaltSimulator implements WaltConnection {
+
+    static final String VERSION = "6";
+    static final int DEFAULT_LATENCY_US = 150;
+    static final int DEFAULT_JITTER_US = 50;
+
+    private static final int READ_TIMEOUT_MS = 200;
+    // Same as in walt.ino
+    private static final int SCREEN_THRESH_HIGH = 110;
+    private static final int SCREEN_THRESH_LOW = 90;
+    private static final int CLOCK_SYNC_N = 9;
+    private static final int SYNC_SEND_INTERVAL_US = 737;
+    private static final int CURVE_SAMPLE_INTERVAL_US = 450;
+    private static final int NOTE_DELAY_US = 10000;
+    private static final int PING_DELAY_US = 10000;
+
+    private static class Chunk {
+        final byte[] data;
+        final long deliverAtNanos;
+
+        Chunk(byte[] data, long deliverAtNanos) {
+            this.data = data;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private static class Trigger {
+        final char tag;
+        long t;
+        int value;
+        int count;
+        boolean probe;
+        boolean autosend;
+
+        Trigger(char tag) {
+            this.tag = tag;
+        }
+
+        void reset() {
+            t = 0;
+            value = 0;
+            count = 0;
+            probe = false;
+            autosend = false;
+        }
+    }
+
+    private final Random random;
+    private volatile int latencyUs = DEFAULT_LATENCY_US;
+    private volatile int jitterUs = DEFAULT_JITTER_US;
+    private volatile double driftPpm = 0;
+
+    private final LinkedBlockingQueue<Chunk> toWalt = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Chunk> toHost = new LinkedBlockingQueue<>();
+    private long lastToWaltNanos = 0;
+    private long lastToHostNanos = 0;
+    // Reader side, the chunk being delivered by blockingRead()
+    private Chunk reading;
+    private int readingOffset;
+    private volatile long lastReadMicros = 0;
+
+    private volatile boolean connected = false;
+    private Thread firmwareThread;
+    private WaltConnection.ConnectionStateListener connectionStateListener;
+    private RemoteClockInfo remoteClock = new RemoteClockInfo();
+    private final ClockSync clockSync = new ClockSync(this);
+
+    // Firmware state, guarded by firmwareLock
+    private final Object firmwareLock = new Object();
+    private long zeroNanos = System.nanoTime();
+    private long busyUntilNanos = 0;
+    private boolean binaryTriggers = false;
+    private final long[] syncTimes = new long[CLOCK_SYNC_N];
+    private int lastSent = -1;
+    private final Trigger laser = new Trigger('L');
+    private final Trigger screen = new Trigger('S');
+    private final Trigger sound = new Trigger('A');
+    private final Trigger midi = new Trigger('M');
+    private final Trigger gshock = new Trigger('G');
+    private final Trigger[] triggers = {laser, screen, sound, midi, gshock};
+    private int screenLevel = 0;
+    private int accelerometerLevel = 512;
+
+    private static final Object LOCK = new Object();
+    private static WaltSimulator instance;
+
+    public static WaltSimulator getInstance() {
+        synchronized (LOCK) {
+            if (instance == null) {
+                instance = new WaltSimulator(System.nanoTime());
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @param seed for the jitter, so that runs can be repeated exactly
+     */
+    WaltSimulator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * One way latency of the link, in each direction.
+     */
+    public void setLatencyMicros(int latencyUs) {
+        this.latencyUs = latencyUs;
+    }
+
+    /**
+     * Maximum extra delay added to each transfer, uniformly distributed.
+     */
+    public void setJitterMicros(int jitterUs) {
+        this.jitterUs = jitterUs;
+    }
+
+    /**
+     * How much faster the remote clock runs than the local one, in parts per million.
+     */
+    public void setDriftPpm(double driftPpm) {
+        this.driftPpm = driftPpm;
+    }
+
+    @Override
+    public void connect() {
+        if (!connected) {
+            synchronized (firmwareLock) {
+                // Like a power on: setup() and init_vars()
+                toWalt.clear();
+                toHost.clear();
+                reading = null;
+                initVars();
+            }
+            connected = true;
+            firmwareThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runFirmware();
+                }
+            }, "WALT simulator");
+            firmwareThread.setDaemon(true);
+            firmwareThread.start();
+        }
+        if (connectionStateListener != null) {
+            connectionStateListener.onConnect();
+        }
+    }
+
+    public void disconnect() {
+        if (!connected) return;
+        connected = false;
+        firmwareThread.interrupt();
+        try {
+            firmwareThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (connectionStateListener != null) {
+            connectionStateListener.onDisconnect();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void sendByte(char c) throws IOException {
+        if (!connected) throw new IOException("Simulated WALT is not connected");
+        synchronized (toWalt) {
+            lastToWaltNanos = deliveryTime(System.nanoTime(), lastToWaltNanos);
+            toWalt.add(new Chunk(new byte[]{(byte) c}, lastToWaltNanos));
+        }
+    }
+
+    /**
+     * Returns the data of the next transfer from WALT, or -1 if there was none within
+     * READ_TIMEOUT_MS, like a bulk transfer on USB.
+     */
+    @Override
+    public int blockingRead(byte[] buffer) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS);
+        if (reading == null) {
+            try {
+                reading = toHost.poll(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            if (reading == null) return -1;
+            readingOffset = 0;
+        }
+        if (reading.deliverAtNanos - deadline > 0) {
+            sleepUntil(deadline);
+            return -1;
+        }
+        sleepUntil(reading.deliverAtNanos);
+        int length = Math.min(buffer.length, reading.data.length - readingOffset);
+        System.arraycopy(reading.data, readingOffset, buffer, 0, length);
+        readingOffset += length;
+        if (readingOffset == reading.data.length) reading = null;
+        lastReadMicros = RemoteClockInfo.microTime();
+        return length;
+    }
+
+    @Override
+    public long getLastReadMicros() {
+        return lastReadMicros;
+    }
+
+    /**
+     * Synchronizes through the simulated link with ClockSync, like over any other connection.
+     */
+    @Override
+    public RemoteClockInfo syncClock() throws IOException {
+        return clockSync.sync(remoteClock);
+    }
+
+    @Override
+    public void updateLag() {
+        try {
+            clockSync.updateBounds(remoteClock);
+        } catch (IOException e) {
+            // Leave the previous bounds
+        }
+    }
+
+    @Override
+    public void setConnectionStateListener(ConnectionStateListener connectionStateListener) {
+        this.connectionStateListener = connectionStateListener;
+    }
+
+    /*******************************************************************************************
+     Stimuli, the physical events WALT's sensors pick up
+     */
+
+    /**
+     * The laser beam got blocked or unblocked, value is what the photodiode interrupt reads.
+     */
+    public void laserChange(int value) {
+        synchronized (firmwareLock) {
+            long nanos = System.nanoTime();
+            laser.t = remoteMicros(nanos);
+            laser.value = value;
+            laser.count++;
+            sendTriggers(nanos);
+        }
+    }
+
+    /**
+     * Analog reading of the screen photodiode, 0 to 1023.
+     */
+    public void setScreenLevel(int level) {
+        synchronized (firmwareLock) {
+            long nanos = System.nanoTime();
+            screenLevel = level;
+            if (screen.probe && ((screen.value == 0 && level > SCREEN_THRESH_HIGH) ||
+                    (screen.value != 0 && level < SCREEN_THRESH_LOW))) {
+                screen.t = remoteMicros(nanos);
+                screen.count++;
+                screen.value = screen.value == 0 ? 1 : 0;
+            }
+            sendTriggers(nanos);
+        }
+    }
+
+    /**
+     * Analog reading of the accelerometer, 0 to 1023.
+     */
+    public void setAccelerometerLevel(int level) {
+        synchronized (firmwareLock) {
+            accelerometerLevel = level;
+        }
+    }
+
+    /**
+     * Sound on the audio out line of the phone.
+     */
+    public void audioSignal() {
+        fireProbe(sound);
+    }
+
+    /**
+     * A MIDI NoteOn message from the phone.
+     */
+    public void midiNoteOn() {
+        fireProbe(midi);
+    }
+
+    /**
+     * A shock on the accelerometer, e.g. the finger hitting the screen.
+     */
+    public void shock() {
+        fireProbe(gshock);
+    }
+
+    private void fireProbe(Trigger trigger) {
+        synchronized (firmwareLock) {
+            if (!trigger.probe) return;
+            long nanos = System.nanoTime();
+            trigger.t = remoteMicros(nanos);
+            trigger.count++;
+            trigger.probe = false;
+            sendTriggers(nanos);
+        }
+    }
+
+    /*******************************************************************************************
+     Firmware
+     */
+
+    /**
+     * Reading of the remote clock at the given local time.
+     */
+    long remoteMicros(long nanos) {
+        synchronized (firmwareLock) {
+            return (long) ((nanos - zeroNanos) / 1000.0 * (1 + driftPpm * 1e-6));
+        }
+    }
+
+    private long localNanos(long remoteMicros) {
+        return zeroNanos + (long) (remoteMicros * 1000.0 / (1 + driftPpm * 1e-6));
+    }
+
+    private void runFirmware() {
+        while (connected) {
+            Chunk command;
+            try {
+                command = toWalt.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long busyUntil;
+            synchronized (firmwareLock) {
+                busyUntil = busyUntilNanos;
+            }
+            sleepUntil(Math.max(command.deliverAtNanos, busyUntil));
+            synchronized (firmwareLock) {
+                for (byte b : command.data) {
+                    processCommand((char) b, System.nanoTime());
+                }
+            }
+        }
+    }
+
+    private void initVars() {
+        zeroNanos = System.nanoTime();
+        busyUntilNanos = 0;
+        initClock();
+        binaryTriggers = false;
+        for (Trigger trigger : triggers) trigger.reset();
+    }
+
+    private void initClock() {
+        for (int i = 0; i < CLOCK_SYNC_N; i++) syncTimes[i] = 0;
+        lastSent = -1;
+    }
+
+    private void processCommand(char cmd, long nanos) {
+        if (cmd == WaltDevice.CMD_SYNC_ZERO) {
+            zeroNanos = nanos;
+            initClock();
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_TIME_NOW) {
+            sendLine("t " + remoteMicros(nanos), nanos);
+        } else if (cmd == WaltDevice.CMD_PING) {
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_PING_DELAYED) {
+            busyUntilNanos = nanos + PING_DELAY_US * 1000L;
+            sendAck(cmd, busyUntilNanos);
+        } else if (cmd >= '1' && cmd <= '9') {
+            syncTimes[cmd - '1'] = remoteMicros(nanos);
+            lastSent = -1;
+        } else if (cmd == WaltDevice.CMD_SYNC_READOUT) {
+            lastSent++;
+            long t = lastSent < CLOCK_SYNC_N ? syncTimes[lastSent] : 0;
+            sendLine((lastSent + 1) + ":" + t, nanos);
+        } else if (cmd == WaltDevice.CMD_SYNC_SEND) {
+            lastSent = -1;
+            long t = nanos;
+            for (int i = 0; i < CLOCK_SYNC_N; i++) {
+                t += SYNC_SEND_INTERVAL_US * 1000L;
+                syncTimes[i] = remoteMicros(t);
+                sendLine(String.valueOf((char) ('1' + i)), t);
+            }
+            busyUntilNanos = t;
+        } else if (cmd == WaltDevice.CMD_RESET) {
+            // Unlike init_vars() this keeps the clock, like the firmware does
+            long zero = zeroNanos;
+            initVars();
+            zeroNanos = zero;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_VERSION) {
+            sendLine("v " + VERSION, nanos);
+        } else if (cmd == WaltDevice.CMD_CAPABILITIES) {
+            sendLine("k " + WaltDevice.CAPABILITY_BINARY_TRIGGERS, nanos);
+        } else if (cmd == WaltDevice.CMD_GSHOCK) {
+            sendLine(String.valueOf(gshock.t), nanos);
+            gshock.t = 0;
+            gshock.count = 0;
+            gshock.probe = true;
+        } else if (cmd == WaltDevice.CMD_AUDIO) {
+            armProbe(sound);
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_BEEP) {
+            sendLine("b " + remoteMicros(nanos), nanos);
+        } else if (cmd == WaltDevice.CMD_BEEP_STOP) {
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_MIDI) {
+            armProbe(midi);
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_NOTE) {
+            sendLine("n " + (remoteMicros(nanos) + NOTE_DELAY_US), nanos);
+            busyUntilNanos = nanos + NOTE_DELAY_US * 1000L;
+        } else if (cmd == WaltDevice.CMD_AUTO_SCREEN_ON) {
+            screen.value = screenLevel > SCREEN_THRESH_HIGH ? 1 : 0;
+            screen.autosend = true;
+            screen.probe = true;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_AUTO_SCREEN_OFF) {
+            screen.autosend = false;
+            screen.probe = false;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_SEND_LAST_SCREEN) {
+            sendLine(triggerString(screen), nanos);
+            screen.count = 0;
+        } else if (cmd == WaltDevice.CMD_AUTO_LASER_ON) {
+            laser.autosend = true;
+            laser.count = 0;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_AUTO_LASER_OFF) {
+            laser.autosend = false;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_SEND_LAST_LASER) {
+            sendLine(triggerString(laser), nanos);
+            laser.count = 0;
+        } else if (cmd == WaltDevice.CMD_BRIGHTNESS_CURVE) {
+            sendAck(cmd, nanos);
+            runCurve(1000, screenLevel, nanos);
+        } else if (cmd == WaltDevice.CMD_ACCELEROMETER) {
+            sendAck(cmd, nanos);
+            runCurve(4000, accelerometerLevel, nanos);
+        } else if (cmd == WaltDevice.CMD_BINARY_TRIGGERS_ON) {
+            binaryTriggers = true;
+            sendAck(cmd, nanos);
+        } else if (cmd == WaltDevice.CMD_BINARY_TRIGGERS_OFF) {
+            binaryTriggers = false;
+            sendAck(cmd, nanos);
+        } else if (cmd == 'Q') {
+            sendLine("q G:" + accelerometerLevel + " PD_screen:" + screenLevel +
+                    " PD_laser:" + laser.value, nanos);
+        } else {
+            sendLine("Unknown command: " + cmd, nanos);
+        }
+    }
+
+    private static void armProbe(Trigger trigger) {
+        trigger.t = 0;
+        trigger.count = 0;
+        trigger.probe = true;
+        trigger.autosend = true;
+    }
+
+    /**
+     * Samples a sensor every CURVE_SAMPLE_INTERVAL_US like run_brightness_curve(), blocking
+     * other commands meanwhile. The level is constant, set it before sending the command.
+     */
+    private void runCurve(int samples, int level, long nanos) {
+        long remote = remoteMicros(nanos);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < samples; i++) {
+            line.setLength(0);
+            line.append(remote).append(' ').append(level);
+            sendLine(line.toString(), localNanos(remote));
+            remote += CURVE_SAMPLE_INTERVAL_US;
+        }
+        busyUntilNanos = localNanos(remote);
+        sendLine("end", busyUntilNanos);
+    }
+
+    /**
+     * Sends all pending triggers with autosend in one transfer, like the end of loop().
+     */
+    private void sendTriggers(long nanos) {
+        StringBuilder text = null;
+        byte[] frames = null;
+        int frameCount = 0;
+        for (Trigger trigger : triggers) {
+            if (!trigger.autosend || trigger.count == 0) continue;
+            if (binaryTriggers) {
+                if (frames == null) {
+                    frames = new byte[triggers.length * WaltDevice.TriggerMessage.FRAME_SIZE];
+                }
+                writeFrame(trigger, frames, frameCount++ * WaltDevice.TriggerMessage.FRAME_SIZE);
+            } else {
+                if (text == null) text = new StringBuilder();
+                text.append(triggerString(trigger)).append('\n');
+            }
+            trigger.count = 0;
+        }
+        if (frames != null) {
+            byte[] data = new byte[frameCount * WaltDevice.TriggerMessage.FRAME_SIZE];
+            System.arraycopy(frames, 0, data, 0, data.length);
+            send(data, nanos);
+        }
+        if (text != null) send(text.toString().getBytes(), nanos);
+    }
+
+    private static String triggerString(Trigger trigger) {
+        // The firmware prints 32 bit longs
+        return "G " + trigger.tag + " " + (int) trigger.t + " " + trigger.value + " " +
+                trigger.count;
+    }
+
+    private static void writeFrame(Trigger trigger, byte[] buff, int offset) {
+        buff[offset] = WaltDevice.TriggerMessage.FRAME_MAGIC;
+        buff[offset + 1] = (byte) trigger.tag;
+        buff[offset + 2] = (byte) trigger.t;
+        buff[offset + 3] = (byte) (trigger.t >> 8);
+        buff[offset + 4] = (byte) (trigger.t >> 16);
+        buff[offset + 5] = (byte) (trigger.t >> 24);
+        buff[offset + 6] = (byte) trigger.value;
+        buff[offset + 7] = (byte) (trigger.value >> 8);
+        buff[offset + 8] = (byte) trigger.count;
+        buff[offset + 9] = (byte) (trigger.count >> 8);
+    }
+
+    private void sendAck(char cmd, long nanos) {
+        char ack = Character.isUpperCase(cmd) ? Character.toLowerCase(cmd) :
+                Character.toUpperCase(cmd);
+        sendLine(String.valueOf(ack), nanos);
+    }
+
+    private void sendLine(String s, long nanos) {
+        send((s + "\n").getBytes(), nanos);
+    }
+
+    private void send(byte[] data, long nanos) {
+        lastToHostNanos = deliveryTime(nanos, lastToHostNanos);
+        toHost.add(new Chunk(data, lastToHostNanos));
+    }
+
+    /**
+     * When data sent at the given time arrives, never before data sent earlier.
+     */
+    private long deliveryTime(long nanos, long previous) {
+        int jitter = jitterUs;
+        long delay = latencyUs * 1000L;
+        if (jitter > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * jitter * 1000);
+            }
+        }
+        return Math.max(nanos + delay, previous);
+    }
+
+    private static void sleepUntil(long nanos) {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -44,11 +44,13 @@ public class WaltTcpConnection implements WaltConnection {
     private boolean messageReceived = false;
     private Utils.ListenerState connectionState = Utils.ListenerState.STOPPED;
     private int lastRetVal;
+    private volatile long lastReadMicros = 0;
     static final int BUFF_SIZE = 1024 * 4;
     private byte[] buffer = new byte[BUFF_SIZE];
 
     private final Handler mainHandler = new Handler();
     private RemoteClockInfo remoteClock = new RemoteClockInfo();
+    private final ClockSync clockSync = new ClockSync(this);
 
     private Socket socket;
     private OutputStream outputStream = null;
@@ -166,36 +168,30 @@ public class WaltTcpConnection implements WaltConnection {
 
         if (lastRetVal > 0) {
             System.arraycopy(buffer, 0, buff, 0, lastRetVal);
+            lastReadMicros = RemoteClockInfo.microTime();
         }
 
         return lastRetVal;
     }
 
-
-    private void updateClock(String cmd) throws IOException {
-        sendString(cmd);
-        int retval = blockingRead(buffer);
-        if (retval <= 0) {
-            throw new IOException("WaltTcpConnection, can't sync clocks");
-        }
-        String s = new String(buffer, 0, retval);
-        String[] parts = s.trim().split("\\s+");
-        // TODO: make sure reply starts with "clock"
-        long wallBaseTime = Long.parseLong(parts[1]);
-        remoteClock.baseTime = wallBaseTime - RemoteClockInfo.uptimeZero();
-        remoteClock.minLag = Integer.parseInt(parts[2]);
-        remoteClock.maxLag = Integer.parseInt(parts[3]);
+    public long getLastReadMicros() {
+        return lastReadMicros;
     }
 
+
+    /**
+     * Syncs with WALT through the bridge like with a directly attached one. The bridge's own
+     * "bridge sync" reply is in ChromeOS time and can't be converted without uptimeZero().
+     */
     public RemoteClockInfo syncClock() throws IOException {
-        updateClock("bridge sync");
+        clockSync.sync(remoteClock);
         logger.log("Synced clocks via TCP bridge:\n" + remoteClock);
         return remoteClock;
     }
 
     public void updateLag() {
         try {
-            updateClock("bridge update");
+            clockSync.updateBounds(remoteClock);
         } catch (IOException e) {
             logger.log("Failed to update clock lag: " + e.getMessage());
         }
@@ -25,7 +25,7 @@ import android.util.Log;
 import java.io.IOException;
 
 /**
- * A singleton used as an interface for the physical WALT device.
+ * USB connection to one WALT. Each WaltDevice has its own.
  */
 public class WaltUsbConnection extends BaseUsbConnection implements WaltConnection {
 
@@ -38,26 +38,15 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
 
     private UsbEndpoint endpointIn = null;
     private UsbEndpoint endpointOut = null;
+    private UsbReadQueue readQueue = null;
+    private volatile long lastReadMicros = 0;
 
     private RemoteClockInfo remoteClock = new RemoteClockInfo();
 
-    private static final Object LOCK = new Object();
-
-    private static WaltUsbConnection instance;
-
-    private WaltUsbConnection(Context context) {
+    WaltUsbConnection(Context context) {
         super(context);
     }
 
-    public static WaltUsbConnection getInstance(Context context) {
-        synchronized (LOCK) {
-            if (instance == null) {
-                instance = new WaltUsbConnection(context.getApplicationContext());
-            }
-            return instance;
-        }
-    }
-
     @Override
     public int getPid() {
         return TEENSY_PID;
@@ -80,6 +69,8 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
     // Called when WALT is physically unplugged from USB
     @Override
     public void onDisconnect() {
+        stopReadQueue();
+        readQueue = null;
         endpointIn = null;
         endpointOut = null;
         super.onDisconnect();
@@ -106,6 +97,8 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
 
         endpointIn = iface.getEndpoint(epInIdx);
         endpointOut = iface.getEndpoint(epOutIdx);
+        readQueue = new UsbReadQueue(usbConnection, endpointIn);
+        startReadQueue();
 
         super.onConnect();
     }
@@ -127,7 +120,42 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
 
     @Override
     public int blockingRead(byte[] buffer) {
-        return usbConnection.bulkTransfer(endpointIn, buffer, buffer.length, USB_READ_TIMEOUT_MS);
+        UsbReadQueue queue = readQueue;
+        if (queue != null && queue.isRunning()) {
+            int ret = queue.read(buffer, USB_READ_TIMEOUT_MS);
+            int dropped = queue.takeDroppedCount();
+            if (dropped > 0) {
+                Log.w(TAG, "Dropped " + dropped + " USB transfers, reader too slow");
+            }
+            if (ret > 0) lastReadMicros = queue.getLastReceiveMicros();
+            return ret;
+        }
+        int ret = usbConnection.bulkTransfer(endpointIn, buffer, buffer.length,
+                USB_READ_TIMEOUT_MS);
+        if (ret > 0) lastReadMicros = RemoteClockInfo.microTime();
+        return ret;
+    }
+
+    /**
+     * With the read queue this is when the transfer completed, not when blockingRead() got to it.
+     */
+    @Override
+    public long getLastReadMicros() {
+        return lastReadMicros;
+    }
+
+    private void startReadQueue() {
+        if (readQueue == null) return;
+        try {
+            readQueue.start();
+        } catch (IOException e) {
+            // Reading still works with synchronous transfers, just not as promptly
+            logger.log("Can't queue USB reads: " + e.getMessage());
+        }
+    }
+
+    private void stopReadQueue() {
+        if (readQueue != null) readQueue.stop();
     }
 
 
@@ -137,6 +165,8 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
             throw new IOException("Not connected to WALT");
         }
 
+        // The native code reads and reaps on the same file descriptor
+        stopReadQueue();
         try {
             int fd = usbConnection.getFileDescriptor();
             int ep_out = endpointOut.getAddress();
@@ -147,6 +177,8 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
             remoteClock.maxLag = getMaxE();
         } catch (Exception e) {
             logger.log("Exception while syncing clocks: " + e.getStackTrace());
+        } finally {
+            startReadQueue();
         }
         logger.log("Synced clocks, maxE=" + remoteClock.maxLag + "us");
         Log.i(TAG, remoteClock.toString());
@@ -159,7 +191,12 @@ public class WaltUsbConnection extends BaseUsbConnection implements WaltConnecti
             logger.log("ERROR: Not connected, aborting checkDrift()");
             return;
         }
-        updateBounds();
+        stopReadQueue();
+        try {
+            updateBounds();
+        } finally {
+            startReadQueue();
+        }
         remoteClock.minLag = getMinE();
         remoteClock.maxLag = getMaxE();
     }
@@ -28,3 +28,14 @@ LOCAL_SHARED_LIBRARIES := libcutils
 LOCAL_LDLIBS := -lOpenSLES -llog
 
 include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE    := front_buffer_jni
+LOCAL_SRC_FILES := front_buffer_jni.c
+
+LOCAL_CFLAGS := -g -Werror
+
+LOCAL_LDLIBS := -landroid -lEGL -lGLESv2 -llog
+
+include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// GLES rendering for FastPathSurfaceView. Where the driver supports
+// EGL_KHR_mutable_render_buffer the surface is switched to EGL_SINGLE_BUFFER,
+// so glClear writes straight into the buffer that is being scanned out.
+// Everything here runs on the UI thread, which owns the EGL context.
+
+#include <android/log.h>
+#include <android/native_window_jni.h>
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <GLES2/gl2.h>
+#include <jni.h>
+#include <string.h>
+
+#define APPNAME "FrontBufferGL"
+
+#ifndef EGL_MUTABLE_RENDER_BUFFER_BIT_KHR
+#define EGL_MUTABLE_RENDER_BUFFER_BIT_KHR 0x1000
+#endif
+#ifndef EGL_FRONT_BUFFER_AUTO_REFRESH_ANDROID
+#define EGL_FRONT_BUFFER_AUTO_REFRESH_ANDROID 0x314C
+#endif
+
+// Same rectangle as the Canvas path in FastPathSurfaceView.setRectColor()
+#define RECT_LEFT 10
+#define RECT_TOP 10
+#define RECT_SIZE 300
+
+static ANativeWindow* window = NULL;
+static EGLDisplay display = EGL_NO_DISPLAY;
+static EGLContext context = EGL_NO_CONTEXT;
+static EGLSurface surface = EGL_NO_SURFACE;
+static EGLint surface_height = 0;
+
+static int has_extension(const char* extensions, const char* name) {
+    size_t len = strlen(name);
+    const char* p = extensions;
+    while (p != NULL && (p = strstr(p, name)) != NULL) {
+        if ((p == extensions || p[-1] == ' ') && (p[len] == ' ' || p[len] == '\0')) return 1;
+        p += len;
+    }
+    return 0;
+}
+
+void Java_org_chromium_latency_walt_FastPathSurfaceView_releaseGl(JNIEnv* env, jclass clazz) {
+    if (display != EGL_NO_DISPLAY) {
+        eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+        if (surface != EGL_NO_SURFACE) eglDestroySurface(display, surface);
+        if (context != EGL_NO_CONTEXT) eglDestroyContext(display, context);
+        eglTerminate(display);
+    }
+    display = EGL_NO_DISPLAY;
+    context = EGL_NO_CONTEXT;
+    surface = EGL_NO_SURFACE;
+    if (window != NULL) {
+        ANativeWindow_release(window);
+        window = NULL;
+    }
+}
+
+static jint fail(JNIEnv* env, const char* what) {
+    __android_log_print(ANDROID_LOG_ERROR, APPNAME, "%s failed, EGL error 0x%x", what, eglGetError());
+    Java_org_chromium_latency_walt_FastPathSurfaceView_releaseGl(env, NULL);
+    return -1;
+}
+
+/**
+ * Sets up GLES on the surface and fills it with gray. Returns 1 if rendering goes to the front
+ * buffer, 0 if the surface stays double buffered and -1 on errors.
+ */
+jint Java_org_chromium_latency_walt_FastPathSurfaceView_initGl(JNIEnv* env, jclass clazz,
+                                                               jobject java_surface) {
+    Java_org_chromium_latency_walt_FastPathSurfaceView_releaseGl(env, clazz);
+    window = ANativeWindow_fromSurface(env, java_surface);
+    if (window == NULL) return fail(env, "ANativeWindow_fromSurface");
+
+    display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+    if (display == EGL_NO_DISPLAY || !eglInitialize(display, NULL, NULL)) {
+        return fail(env, "eglInitialize");
+    }
+    const char* extensions = eglQueryString(display, EGL_EXTENSIONS);
+    int can_mutate = has_extension(extensions, "EGL_KHR_mutable_render_buffer");
+
+    EGLint config_attribs[] = {
+        EGL_SURFACE_TYPE, EGL_WINDOW_BIT | (can_mutate ? EGL_MUTABLE_RENDER_BUFFER_BIT_KHR : 0),
+        EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+        EGL_RED_SIZE, 8,
+        EGL_GREEN_SIZE, 8,
+        EGL_BLUE_SIZE, 8,
+        EGL_NONE
+    };
+    EGLConfig config;
+    EGLint num_configs = 0;
+    if (!eglChooseConfig(display, config_attribs, &config, 1, &num_configs) || num_configs < 1) {
+        if (!can_mutate) return fail(env, "eglChooseConfig");
+        // The extension is there but no config can use it
+        can_mutate = 0;
+        config_attribs[1] = EGL_WINDOW_BIT;
+        if (!eglChooseConfig(display, config_attribs, &config, 1, &num_configs) || num_configs < 1) {
+            return fail(env, "eglChooseConfig");
+        }
+    }
+
+    const EGLint context_attribs[] = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL_NONE};
+    context = eglCreateContext(display, config, EGL_NO_CONTEXT, context_attribs);
+    if (context == EGL_NO_CONTEXT) return fail(env, "eglCreateContext");
+    surface = eglCreateWindowSurface(display, config, window, NULL);
+    if (surface == EGL_NO_SURFACE) return fail(env, "eglCreateWindowSurface");
+    if (!eglMakeCurrent(display, surface, surface, context)) return fail(env, "eglMakeCurrent");
+    eglQuerySurface(display, surface, EGL_HEIGHT, &surface_height);
+
+    int single_buffer = 0;
+    if (can_mutate && eglSurfaceAttrib(display, surface, EGL_RENDER_BUFFER, EGL_SINGLE_BUFFER)) {
+        single_buffer = 1;
+        // Otherwise the compositor may not pick up changes to the front buffer until the next
+        // swap, which in single buffer mode is only a flush
+        if (has_extension(extensions, "EGL_ANDROID_front_buffer_auto_refresh")) {
+            eglSurfaceAttrib(display, surface, EGL_FRONT_BUFFER_AUTO_REFRESH_ANDROID, EGL_TRUE);
+        }
+    }
+
+    // The switch to single buffer mode takes effect with this swap
+    glClearColor(0x88 / 255.f, 0x88 / 255.f, 0x88 / 255.f, 1.f);
+    glClear(GL_COLOR_BUFFER_BIT);
+    if (!eglSwapBuffers(display, surface)) return fail(env, "eglSwapBuffers");
+
+    __android_log_print(ANDROID_LOG_VERBOSE, APPNAME, "GL set up, single buffer: %d", single_buffer);
+    return single_buffer;
+}
+
+jboolean Java_org_chromium_latency_walt_FastPathSurfaceView_drawRectGl(JNIEnv* env, jclass clazz,
+                                                                       jfloat r, jfloat g, jfloat b) {
+    if (surface == EGL_NO_SURFACE) return JNI_FALSE;
+    glEnable(GL_SCISSOR_TEST);
+    // GL counts rows from the bottom
+    glScissor(RECT_LEFT, surface_height - RECT_TOP - RECT_SIZE, RECT_SIZE, RECT_SIZE);
+    glClearColor(r, g, b, 1.f);
+    glClear(GL_COLOR_BUFFER_BIT);
+    glDisable(GL_SCISSOR_TEST);
+    return eglSwapBuffers(display, surface) ? JNI_TRUE : JNI_FALSE;
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class BrightnessCurveTest {
+
+    private static final int SAMPLE_INTERVAL_US = 500;
+    private static final long START_US = 1000000;
+
+    /**
+     * 1000 samples: black, a linear 10 ms ramp to white at 20 ms, white with a 20% overshoot
+     * right after the ramp, and a linear 20 ms ramp back to black at 300 ms. Times from START_US.
+     */
+    private static int level(long t, int pwmPeriodUs) {
+        t -= START_US;
+        double ms = t / 1000.;
+        double v;
+        if (ms < 20) {
+            v = 0;
+        } else if (ms < 30) {
+            v = (ms - 20) / 10;
+        } else if (ms < 32) {
+            v = 1.2;
+        } else if (ms < 300) {
+            v = 1;
+            if (pwmPeriodUs > 0 && (t % pwmPeriodUs) >= pwmPeriodUs / 2) v = 0.5;
+        } else if (ms < 320) {
+            v = 1 - (ms - 300) / 20;
+        } else {
+            v = 0;
+        }
+        return (int) Math.round(100 + 800 * v);
+    }
+
+    private static String curveText(int pwmPeriodUs) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            long t = START_US + i * SAMPLE_INTERVAL_US;
+            sb.append(t).append(' ').append(level(t, pwmPeriodUs)).append('\n');
+        }
+        sb.append("end\n");
+        return sb.toString();
+    }
+
+    @Test
+    public void testFeedInPieces() {
+        String text = curveText(0);
+        BrightnessCurve curve = new BrightnessCurve();
+        curve.feed("u\n");
+        // Odd chunk size so that lines get split
+        for (int i = 0; i < text.length(); i += 7) {
+            assertThat(curve.isEnded(), is(false));
+            curve.feed(text.substring(i, Math.min(text.length(), i + 7)));
+        }
+        assertThat(curve.isEnded(), is(true));
+        assertEquals(1000, curve.size());
+        assertEquals(1, curve.getBadLineCount());
+        assertEquals(START_US + 999 * SAMPLE_INTERVAL_US, curve.getTime(999));
+        assertEquals(level(curve.getTime(50), 0), curve.getValue(50));
+
+        // Ignored after the end
+        curve.feed("1 2\n");
+        assertEquals(1000, curve.size());
+
+        StringBuilder sb = new StringBuilder();
+        curve.appendText(sb);
+        assertEquals(text, sb.toString() + "end\n");
+
+        // In pieces, the way the fragment logs it
+        StringBuilder pieces = new StringBuilder();
+        for (int i = 0; i < curve.size(); i += 300) {
+            curve.appendText(pieces, i, Math.min(curve.size(), i + 300));
+        }
+        assertEquals(sb.toString(), pieces.toString());
+
+        curve.clear();
+        assertEquals(0, curve.size());
+        assertThat(curve.isEnded(), is(false));
+    }
+
+    @Test
+    public void testAnalyze() {
+        BrightnessCurve curve = new BrightnessCurve();
+        curve.feed(curveText(0));
+        BrightnessCurve.Result result = curve.analyze();
+        assertEquals(100, result.low);
+        assertEquals(900, result.high);
+        // 10-90% of a linear ramp is 80% of its length
+        assertEquals(8., result.riseTime, 0.01);
+        assertEquals(16., result.fallTime, 0.01);
+        assertEquals(20., result.overshoot, 0.2);
+        assertEquals(0., result.pwmFrequency, 0.);
+    }
+
+    @Test
+    public void testPwm() {
+        BrightnessCurve curve = new BrightnessCurve();
+        // 200 Hz, sampled every 0.5 ms
+        curve.feed(curveText(5000));
+        BrightnessCurve.Result result = curve.analyze();
+        assertEquals(200., result.pwmFrequency, 1.);
+        assertEquals(20., result.overshoot, 0.2);
+        assertEquals(16., result.fallTime, 0.01);
+    }
+
+    @Test
+    public void testFlat() {
+        BrightnessCurve curve = new BrightnessCurve();
+        curve.feed("1000 500\n1500 500\n2000 500\nend\n");
+        BrightnessCurve.Result result = curve.analyze();
+        assertEquals(500, result.low);
+        assertThat(Double.isNaN(result.riseTime), is(true));
+        assertThat(Double.isNaN(result.fallTime), is(true));
+    }
+}
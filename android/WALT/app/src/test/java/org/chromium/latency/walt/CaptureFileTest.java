@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CaptureFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("capture", ".wcap");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        CaptureFile.Writer writer = new CaptureFile.Writer(file, "drag");
+        writer.writeClock(123456789L, 0, 250, 12e-6);
+        writer.writeTrigger(1000, 'L', 1, 1);
+        writer.writeTrigger(900, 'L', 0, 2);  // Out of order works too
+        writer.writeMark(1500, 'F', -1);
+        writer.writeTouch(2000, 2500, 10.5f, -3.25f, 2);
+        writer.writeWave(3000, 48000, new short[]{0, 100, -32768, 32767});
+        writer.writeClock(223456789L, 0, 180, 11e-6);
+        writer.writeTrigger(10, 'S', 0, 3);
+        writer.close();
+
+        CaptureFile.Reader reader = new CaptureFile.Reader(file);
+        assertEquals("drag", reader.getTestName());
+        assertEquals(CaptureFile.VERSION, reader.getVersion());
+        assertThat(reader.isComplete(), is(true));
+        assertEquals(223456789L, reader.getClock().baseTime);
+        assertEquals(180, reader.getClock().maxLag);
+        assertEquals(11e-6, reader.getClock().skew, 0);
+
+        List<CaptureFile.Clock> clocks = reader.getClocks();
+        assertEquals(2, clocks.size());
+        assertEquals(123456789L, clocks.get(0).baseTime);
+
+        CaptureFile.Triggers triggers = reader.getTriggers();
+        assertEquals(3, triggers.size);
+        assertEquals(1000, triggers.t[0]);
+        assertEquals(900, triggers.t[1]);
+        assertEquals(10, triggers.t[2]);
+        assertEquals('S', triggers.tag[2]);
+        assertEquals(0, triggers.value[1]);
+        assertEquals(3, triggers.count[2]);
+
+        CaptureFile.Marks marks = reader.getMarks();
+        assertEquals(1, marks.size);
+        assertEquals('F', marks.tag[0]);
+        assertEquals(-1, marks.value[0]);
+
+        CaptureFile.Touches touches = reader.getTouches();
+        assertEquals(1, touches.size);
+        assertEquals(2000, touches.t[0]);
+        assertEquals(2500, touches.createTime[0]);
+        assertEquals(10.5f, touches.x[0], 0);
+        assertEquals(-3.25f, touches.y[0], 0);
+        assertEquals(2, touches.action[0]);
+
+        List<CaptureFile.Wave> waves = reader.getWaves();
+        assertEquals(1, waves.size());
+        assertEquals(3000, waves.get(0).t);
+        assertEquals(48000, waves.get(0).sampleRate);
+        assertEquals(-32768, waves.get(0).samples[2]);
+        assertEquals(32767, waves.get(0).samples[3]);
+    }
+
+    @Test
+    public void testPointers() throws Exception {
+        CaptureFile.Writer writer = new CaptureFile.Writer(file, "tap");
+        writer.writeTouch(1000, 1500, 1, 2, 0);
+        writer.writeTouch(2000, 2500, 3, 4, 5, 3, 4);
+        writer.close();
+
+        CaptureFile.Touches touches = new CaptureFile.Reader(file).getTouches();
+        assertEquals(0, touches.action[0]);
+        assertEquals(0, touches.pointerId[0]);
+        assertEquals(1, touches.pointerCount[0]);
+        assertEquals(5, touches.action[1]);
+        assertEquals(3, touches.pointerId[1]);
+        assertEquals(4, touches.pointerCount[1]);
+    }
+
+    @Test
+    public void testManyBlocks() throws Exception {
+        int n = CaptureFile.BLOCK_EVENTS * 3 + 7;
+        CaptureFile.Writer writer = new CaptureFile.Writer(file, "tap");
+        long t = 1L << 40;
+        for (int i = 0; i < n; i++) {
+            writer.writeTouch(t + i * 8000L, t + i * 8000L + 4000, i, i * 0.5f, i % 3);
+        }
+        writer.close();
+
+        CaptureFile.Touches touches = new CaptureFile.Reader(file).getTouches();
+        assertEquals(n, touches.size);
+        for (int i = 0; i < n; i++) {
+            assertEquals(t + i * 8000L, touches.t[i]);
+            assertEquals(i * 0.5f, touches.y[i], 0);
+        }
+        // Delta encoding keeps it well below the 28 bytes of the raw fields
+        assertThat(file.length() < n * 16L, is(true));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        CaptureFile.Writer writer = new CaptureFile.Writer(file, "screen");
+        for (int i = 0; i < CaptureFile.BLOCK_EVENTS + 10; i++) writer.writeTrigger(i, 'S', 1, i);
+        writer.close();
+        // Cut into the second block, as if the app had died while writing it
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        CaptureFile.Reader reader = new CaptureFile.Reader(file);
+        assertThat(reader.isComplete(), is(false));
+        assertEquals(CaptureFile.BLOCK_EVENTS, reader.getTriggers().size);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotACapture() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("G L 1234 1 1\n".getBytes());
+        out.close();
+        new CaptureFile.Reader(file);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ClockSkewTrackerTest {
+
+    private static final long LOCAL_BASE = 123456789000L;
+
+    // Remote clock zeroed at LOCAL_BASE + 300, read every 2 s with a round trip of up to 1 ms
+    private static void addSamples(ClockSkewTracker tracker, double skew, int n, Random random) {
+        for (int i = 0; i < n; i++) {
+            long t = LOCAL_BASE + i * 2000000L;
+            long remote = (long) ((t - LOCAL_BASE - 300) * (1 + skew));
+            int rtt = 200 + random.nextInt(800);
+            long offset = (long) ((random.nextDouble() - 0.5) * rtt);
+            tracker.addSample(t + offset, remote, rtt);
+        }
+    }
+
+    @Test
+    public void testFit() {
+        ClockSkewTracker tracker = new ClockSkewTracker();
+        addSamples(tracker, 40e-6, 100, new Random(1));
+        assertThat(tracker.fit(), is(true));
+        assertEquals(40e-6, tracker.getSkew(), 1e-6);
+    }
+
+    @Test
+    public void testNeedsLongSpan() {
+        ClockSkewTracker tracker = new ClockSkewTracker();
+        addSamples(tracker, 40e-6, 10, new Random(1));
+        assertThat(tracker.fit(), is(false));
+        assertEquals(0., tracker.getSkew());
+    }
+
+    @Test
+    public void testRejectsImplausibleSkew() {
+        ClockSkewTracker tracker = new ClockSkewTracker();
+        addSamples(tracker, 0.01, 100, new Random(1));
+        assertThat(tracker.fit(), is(false));
+        assertEquals(0., tracker.getSkew());
+    }
+
+    @Test
+    public void testRestartKeepsSkew() {
+        ClockSkewTracker tracker = new ClockSkewTracker();
+        addSamples(tracker, -25e-6, 100, new Random(2));
+        assertThat(tracker.fit(), is(true));
+        tracker.restart();
+        assertThat(tracker.fit(), is(false));
+        assertEquals(-25e-6, tracker.getSkew(), 1e-6);
+    }
+
+    @Test
+    public void testRemoteClockWraps() {
+        ClockSkewTracker tracker = new ClockSkewTracker();
+        for (int i = 0; i < 60; i++) {
+            long t = LOCAL_BASE + i * 2000000L;
+            long remote = (long) ((4294000000L + i * 2000000L) * (1 + 10e-6));
+            tracker.addSample(t, remote & 0xFFFFFFFFL, 500);
+        }
+        assertThat(tracker.fit(), is(true));
+        assertEquals(10e-6, tracker.getSkew(), 1e-6);
+    }
+
+    @Test
+    public void testRemoteClockInfoConversion() {
+        RemoteClockInfo clock = new RemoteClockInfo();
+        clock.baseTime = LOCAL_BASE;
+        assertEquals(1000000, clock.toRemote(LOCAL_BASE + 1000000));
+        clock.skew = 50e-6;
+        assertEquals(3600180000L, clock.toRemote(LOCAL_BASE + 3600000000L));
+        assertEquals(LOCAL_BASE + 3600000000L, clock.toLocal(3600180000L), 1);
+        assertEquals(180000, clock.skewCorrection(LOCAL_BASE + 3600000000L));
+    }
+}
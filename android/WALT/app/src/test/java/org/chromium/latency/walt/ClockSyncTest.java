@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs ClockSync against the simulator, which knows the true lag.
+ */
+public class ClockSyncTest {
+
+    private WaltSimulator walt;
+    private ClockSync clockSync;
+
+    @Before
+    public void setUp() {
+        walt = new WaltSimulator(1);
+        walt.connect();
+        clockSync = new ClockSync(walt);
+    }
+
+    @After
+    public void tearDown() {
+        walt.disconnect();
+    }
+
+    private void assertLagWithinBounds(RemoteClockInfo clock) {
+        long lag = clock.micros() - walt.remoteMicros(System.nanoTime());
+        // Allow for rounding to whole microseconds
+        assertThat(clock.toString(), clock.minLag - 2 <= lag && lag <= clock.maxLag + 2, is(true));
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        walt.setLatencyMicros(300);
+        walt.setJitterMicros(1000);
+        RemoteClockInfo clock = clockSync.sync(new RemoteClockInfo());
+        assertEquals(0, clock.minLag);
+        assertLagWithinBounds(clock);
+        // The bounds can't beat the round trip, but the best rounds filter out most jitter
+        assertThat(clock.toString(), clock.maxLag < 2 * 300 + 1000, is(true));
+    }
+
+    @Test
+    public void testUpdateBounds() throws Exception {
+        walt.setJitterMicros(100);
+        RemoteClockInfo clock = clockSync.sync(new RemoteClockInfo());
+        long baseTime = clock.baseTime;
+        clockSync.updateBounds(clock);
+        assertEquals(baseTime, clock.baseTime);
+        assertLagWithinBounds(clock);
+    }
+
+    @Test
+    public void testTargetWidth() throws Exception {
+        walt.setLatencyMicros(100);
+        walt.setJitterMicros(1000);
+        clockSync.setPatience(0);
+        clockSync.setTargetWidthMicros(100000);
+        clockSync.sync(new RemoteClockInfo());
+        assertEquals(1, clockSync.getRounds());
+
+        clockSync.setTargetWidthMicros(0);
+        clockSync.setMaxRounds(3);
+        RemoteClockInfo clock = clockSync.sync(new RemoteClockInfo());
+        assertEquals(3, clockSync.getRounds());
+        assertLagWithinBounds(clock);
+    }
+
+    @Test
+    public void testSkipsTriggers() throws Exception {
+        walt.sendByte(WaltDevice.CMD_AUTO_LASER_ON);
+        walt.laserChange(1);
+        walt.laserChange(0);
+        RemoteClockInfo clock = clockSync.sync(new RemoteClockInfo());
+        assertLagWithinBounds(clock);
+    }
+
+    @Test
+    public void testGivesUpWithoutDigits() throws Exception {
+        // A WALT that answers CMD_SYNC_SEND with nothing but other output
+        walt.disconnect();
+        walt = new WaltSimulator(1) {
+            private boolean flooding = false;
+
+            @Override
+            public void sendByte(char c) throws IOException {
+                if (c == WaltDevice.CMD_SYNC_SEND) {
+                    flooding = true;
+                } else {
+                    super.sendByte(c);
+                }
+            }
+
+            @Override
+            public int blockingRead(byte[] buffer) {
+                if (!flooding) return super.blockingRead(buffer);
+                byte[] line = "G L 123 1 1\n".getBytes();
+                System.arraycopy(line, 0, buffer, 0, line.length);
+                return line.length;
+            }
+        };
+        walt.connect();
+        clockSync = new ClockSync(walt);
+        try {
+            clockSync.sync(new RemoteClockInfo());
+            fail("Sync should have failed");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("sync digits"));
+        }
+    }
+}
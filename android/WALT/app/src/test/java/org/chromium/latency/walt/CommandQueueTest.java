@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CommandQueueTest {
+
+    private static boolean offer(CommandQueue queue, String message) {
+        byte[] buff = ("xx" + message).getBytes();
+        return queue.offer(buff, 2, buff.length - 2);
+    }
+
+    @Test
+    public void testMatchesByAck() throws Exception {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<String> version = queue.add('V', 'v', Long.MAX_VALUE);
+        CompletableFuture<String> ping = queue.add('P', 'p', Long.MAX_VALUE);
+
+        assertThat(offer(queue, "p\n"), is(true));
+        assertThat(ping.isDone(), is(true));
+        assertThat(version.isDone(), is(false));
+        assertThat(offer(queue, "G L 123 1 1\n"), is(false));
+        assertThat(offer(queue, "v 6 B\n"), is(true));
+
+        assertEquals("", ping.get());
+        assertEquals("6 B", version.get());
+        assertThat(queue.isEmpty(), is(true));
+        assertThat(offer(queue, "v 6\n"), is(false));
+    }
+
+    @Test
+    public void testSameAckInOrder() throws Exception {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<String> first = queue.add('T', 't', Long.MAX_VALUE);
+        CompletableFuture<String> second = queue.add('T', 't', Long.MAX_VALUE);
+        offer(queue, "t 100\n");
+        offer(queue, "t 200\n");
+        assertEquals("100", first.get());
+        assertEquals("200", second.get());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<String> early = queue.add('P', 'p', 100);
+        CompletableFuture<String> late = queue.add('P', 'p', 200);
+
+        queue.expire(100);
+        assertThat(early.isDone(), is(false));
+        queue.expire(150);
+        assertThat(early.isCompletedExceptionally(), is(true));
+        assertThat(late.isDone(), is(false));
+
+        try {
+            early.get();
+            fail("Expected the command to time out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IOException, is(true));
+        }
+
+        // The response goes to the command still waiting for it
+        offer(queue, "p\n");
+        assertEquals("", late.get());
+    }
+
+    @Test
+    public void testExpireOutOfOrder() {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<String> slow = queue.add('V', 'v', 300);
+        CompletableFuture<String> fast = queue.add('P', 'p', 100);
+        offer(queue, "p\n");
+        assertThat(fast.isDone(), is(true));
+        queue.expire(200);
+        assertThat(slow.isDone(), is(false));
+        CompletableFuture<String> fastest = queue.add('T', 't', 50);
+        queue.expire(60);
+        assertThat(fastest.isCompletedExceptionally(), is(true));
+        assertThat(slow.isDone(), is(false));
+        queue.expire(350);
+        assertThat(slow.isCompletedExceptionally(), is(true));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFailAll() {
+        CommandQueue queue = new CommandQueue();
+        CompletableFuture<String> a = queue.add('P', 'p', Long.MAX_VALUE);
+        CompletableFuture<String> b = queue.add('V', 'v', Long.MAX_VALUE);
+        queue.failAll(new IOException("Disconnected"));
+        assertThat(a.isCompletedExceptionally(), is(true));
+        assertThat(b.isCompletedExceptionally(), is(true));
+        assertThat(queue.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CrossCorrelatorTest {
+
+    @Test
+    public void testFft() {
+        Random rand = new Random(42);
+        int n = 64;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int i = 0; i < n; i++) {
+            re[i] = rand.nextDouble() - 0.5;
+            im[i] = rand.nextDouble() - 0.5;
+        }
+        double[] expectedRe = new double[n];
+        double[] expectedIm = new double[n];
+        for (int k = 0; k < n; k++) {
+            for (int i = 0; i < n; i++) {
+                double angle = -2 * Math.PI * i * k / n;
+                expectedRe[k] += re[i] * Math.cos(angle) - im[i] * Math.sin(angle);
+                expectedIm[k] += re[i] * Math.sin(angle) + im[i] * Math.cos(angle);
+            }
+        }
+        CrossCorrelator.fft(re, im);
+        for (int k = 0; k < n; k++) {
+            assertEquals(expectedRe[k], re[k], 1e-9);
+            assertEquals(expectedIm[k], im[k], 1e-9);
+        }
+    }
+
+    @Test
+    public void testFindBestShift() {
+        // Unevenly sampled a, delayed by 7.77 against densely sampled b
+        Random rand = new Random(1234);
+        double[] aTimes = new double[300];
+        double[] aValues = new double[aTimes.length];
+        for (int i = 0; i < aTimes.length; i++) {
+            aTimes[i] = 3 * i + rand.nextDouble();
+            aValues[i] = Math.sin((aTimes[i] - 7.77) * Math.PI / 80);
+        }
+        double[] bTimes = new double[1000];
+        double[] bValues = new double[bTimes.length];
+        for (int i = 0; i < bTimes.length; i++) {
+            bTimes[i] = i;
+            bValues[i] = Math.sin(i * Math.PI / 80);
+        }
+        CrossCorrelator correlator = new CrossCorrelator(0.1, 30);
+        assertEquals(7.77, correlator.findBestShift(aTimes, aValues, bTimes, bValues), 0.05);
+    }
+
+    @Test
+    public void testFindBestShift_noData() {
+        CrossCorrelator correlator = new CrossCorrelator(0.1, 30);
+        double[] empty = new double[0];
+        double[] one = new double[]{1};
+        double[] two = new double[]{1, 2};
+        assertThat(Double.isNaN(correlator.findBestShift(empty, empty, two, two)), is(true));
+        assertThat(Double.isNaN(correlator.findBestShift(two, two, empty, empty)), is(true));
+        assertThat(Double.isNaN(correlator.findBestShift(two, two, one, one)), is(true));
+    }
+}
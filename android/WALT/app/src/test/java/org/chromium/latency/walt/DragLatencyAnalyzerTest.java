@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+
+public class DragLatencyAnalyzerTest {
+
+    private static final long T0 = 5000000000L;  // microseconds
+    private static final double PERIOD = 600;  // milliseconds
+    private static final double LATENCY = 42.5;  // milliseconds
+    private static final int TOUCH_COUNT = 3000;
+
+    private long[] touchT = new long[TOUCH_COUNT];
+    private float[] touchY = new float[TOUCH_COUNT];
+    private long[] laserT;
+    private int[] laserValue;
+
+    /**
+     * Finger moving up and down through the laser beam at y = 0 every 1 ms, with the touch events
+     * lagging behind by LATENCY. The laser sees a crossing into the beam and out of it on each
+     * pass, starting with one out of the beam before the first touch.
+     */
+    private void makeDrag() {
+        for (int i = 0; i < TOUCH_COUNT; i++) {
+            touchT[i] = T0 + i * 1000L;
+            touchY[i] = (float) (1000 * Math.cos((i - LATENCY) * 2 * Math.PI / PERIOD));
+        }
+        int passes = (int) (TOUCH_COUNT / PERIOD * 2);
+        laserT = new long[2 * passes + 1];
+        laserValue = new int[laserT.length];
+        laserT[0] = T0 - 5000;
+        laserValue[0] = 1;
+        for (int i = 0; i < passes; i++) {
+            double crossing = (i + 0.5) * PERIOD / 2;
+            laserT[1 + 2 * i] = T0 + (long) ((crossing - 10) * 1000);
+            laserValue[1 + 2 * i] = 0;
+            laserT[2 + 2 * i] = T0 + (long) ((crossing + 10) * 1000);
+            laserValue[2 + 2 * i] = 1;
+        }
+    }
+
+    @Test
+    public void testLatency() {
+        makeDrag();
+        DragLatencyAnalyzer.Result result = DragLatencyAnalyzer.analyze(
+                touchT, touchY, TOUCH_COUNT, laserT, laserValue, laserT.length);
+        assertEquals(LATENCY, result.latency, 0.5);
+        assertEquals(2, result.sideShifts.length);
+        assertEquals(0, result.ft[0], 0);
+        // The crossing before the first touch and the first one out of the beam are skipped
+        assertEquals(laserT.length - 1, result.lt.length);
+    }
+
+    @Test
+    public void testFromCapture() throws Exception {
+        makeDrag();
+        File file = File.createTempFile("drag", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "drag");
+            for (int i = 0; i < TOUCH_COUNT; i++) writer.writeTouch(touchT[i], touchT[i], 0, touchY[i], 2);
+            for (int i = 0; i < laserT.length; i++) writer.writeTrigger(laserT[i], 'L', laserValue[i], i);
+            writer.close();
+            DragLatencyAnalyzer.Result result =
+                    DragLatencyAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(LATENCY, result.latency, 0.5);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewTouches() {
+        makeDrag();
+        DragLatencyAnalyzer.analyze(touchT, touchY, DragLatencyAnalyzer.MIN_TOUCH_EVENTS - 1,
+                laserT, laserValue, laserT.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoLaserOverlap() {
+        makeDrag();
+        // Only the touches before the second crossing into the beam
+        DragLatencyAnalyzer.analyze(touchT, touchY, (int) (PERIOD / 2) + 100,
+                laserT, laserValue, laserT.length);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+
+public class FrameBreakdownTest {
+
+    private static final long MS = 1000000;
+
+    private static FrameBreakdown.Frame makeFrame(long vsync) {
+        FrameBreakdown.Frame frame = new FrameBreakdown.Frame();
+        frame.intendedVsync = vsync - MS;  // Started 1 ms late
+        frame.vsync = vsync;
+        frame.input = MS / 2;
+        frame.animation = MS / 2;
+        frame.layout = MS;
+        frame.draw = 2 * MS;
+        frame.sync = MS;
+        frame.command = 2 * MS;
+        frame.swap = MS;
+        frame.gpu = 3 * MS;
+        frame.total = 12 * MS;
+        return frame;
+    }
+
+    @Test
+    public void testSegments() {
+        FrameBreakdown breakdown = new FrameBreakdown();
+        breakdown.addFrame(makeFrame(100 * MS));
+        breakdown.addBlink(100 * MS, 40.);
+        assertEquals(1, breakdown.calculate());
+        assertEquals(4., breakdown.app.median(), 1e-9);
+        // Frame done at 99 + 12 ms, 11 ms after vsync
+        assertEquals(7., breakdown.render.median(), 1e-9);
+        assertEquals(29., breakdown.display.median(), 1e-9);
+        assertEquals(3., breakdown.gpu.median(), 1e-9);
+    }
+
+    @Test
+    public void testMatching() {
+        FrameBreakdown breakdown = new FrameBreakdown();
+        // Metrics of a frame that is not a blink, and of one that arrives after its trigger
+        breakdown.addFrame(makeFrame(50 * MS));
+        breakdown.addBlink(100 * MS, 40.);
+        breakdown.addBlink(200 * MS, 50.);
+        breakdown.addFrame(makeFrame(200 * MS));
+        assertNull(breakdown.getFrame(0));
+        assertEquals(200 * MS, breakdown.getFrame(1).vsync);
+        assertEquals(1, breakdown.calculate());
+        assertEquals(39., breakdown.display.median(), 1e-9);
+        assertThat(breakdown.getSummary(), containsString("N=1 of 2 blinks"));
+
+        breakdown.clear();
+        assertEquals(0, breakdown.getBlinkCount());
+        assertEquals(0, breakdown.calculate());
+    }
+
+    @Test
+    public void testLongRun() {
+        FrameBreakdown breakdown = new FrameBreakdown();
+        // Many more frames than are kept, every 100th one a blink. Every other blink's metrics
+        // arrive before its trigger, the rest after.
+        int blinks = 0;
+        for (int i = 0; i < 20 * FrameBreakdown.MAX_RECENT_FRAMES; i++) {
+            long vsync = i * 8 * MS;
+            boolean isBlink = i % 100 == 0;
+            if (isBlink && blinks % 2 == 1) breakdown.addBlink(vsync, 40.);
+            breakdown.addFrame(makeFrame(vsync));
+            if (isBlink && blinks % 2 == 0) breakdown.addBlink(vsync, 40.);
+            if (isBlink) blinks++;
+        }
+        assertEquals(blinks, breakdown.getBlinkCount());
+        assertEquals(blinks, breakdown.calculate());
+
+        // A blink that is too old to still be in the recent frames
+        breakdown.addBlink(8 * MS, 40.);
+        assertNull(breakdown.getFrame(blinks));
+    }
+}
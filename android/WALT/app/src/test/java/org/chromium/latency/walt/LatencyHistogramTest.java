@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.lang.Double.NaN;
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertThat(histogram.getPercentile(50), is(NaN));
+        assertThat(histogram.getMean(), is(NaN));
+        assertThat(histogram.getMax(), is(NaN));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Random rand = new Random(42);
+        LatencyHistogram histogram = new LatencyHistogram();
+        double[] samples = new double[100000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 20 * Math.exp(rand.nextGaussian() / 2);
+            histogram.record(samples[i]);
+        }
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        for (double p : new double[]{1, 50, 90, 99, 99.9}) {
+            double expected = sorted[(int) Math.ceil(p / 100 * sorted.length) - 1];
+            assertEquals(expected, histogram.getPercentile(p), expected * LatencyHistogram.PRECISION);
+        }
+        assertEquals(sorted[sorted.length - 1], histogram.getMax());
+        assertEquals(sorted[0], histogram.getMin());
+        assertEquals(Utils.mean(samples), histogram.getMean(), 1e-9);
+        assertEquals(Utils.stdev(samples), histogram.getStdev(), 1e-9);
+    }
+
+    @Test
+    public void testOutOfRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-3);
+        histogram.record(0);
+        histogram.record(5);
+        histogram.record(2e6);
+        assertEquals(-3., histogram.getPercentile(25));
+        assertEquals(-3., histogram.getPercentile(50));
+        assertEquals(5., histogram.getPercentile(75), 0.05);
+        assertEquals(2e6, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testClear() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.clear();
+        histogram.record(7);
+        assertEquals(1, histogram.getCount());
+        assertEquals(7., histogram.getPercentile(99));
+        assertEquals(7., histogram.getMean());
+        assertEquals(0., histogram.getStdev());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class MessageFramerTest {
+
+    private static List<String> drain(MessageFramer framer) {
+        List<String> messages = new ArrayList<>();
+        while (framer.next()) {
+            messages.add(new String(framer.getBuffer(), framer.getMessageStart(),
+                    framer.getMessageLength()));
+        }
+        return messages;
+    }
+
+    private static void append(MessageFramer framer, String s) {
+        byte[] bytes = s.getBytes();
+        framer.append(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testCoalesced() {
+        MessageFramer framer = new MessageFramer(64);
+        append(framer, "G L 1 1 1\nG L 2 0 1\n");
+        List<String> messages = drain(framer);
+        assertEquals(2, messages.size());
+        assertThat(messages.get(0), is("G L 1 1 1\n"));
+        assertThat(messages.get(1), is("G L 2 0 1\n"));
+        assertEquals(0, framer.getPendingLength());
+    }
+
+    @Test
+    public void testSplit() {
+        MessageFramer framer = new MessageFramer(64);
+        append(framer, "G L 12");
+        assertThat(framer.next(), is(false));
+        append(framer, "34 1 1\nG S");
+        assertThat(drain(framer).toString(), is("[G L 1234 1 1\n]"));
+        assertEquals(3, framer.getPendingLength());
+        append(framer, " 5 0 1\n");
+        assertThat(drain(framer).toString(), is("[G S 5 0 1\n]"));
+    }
+
+    @Test
+    public void testBinaryFrames() {
+        MessageFramer framer = new MessageFramer(64);
+        // The time contains a newline byte, which must not end the frame
+        byte[] frames = new byte[] {
+                (byte) 0xA5, 'L', '\n', 0, 0, 0, 1, 0, 1, 0,
+                (byte) 0xA5, 'L', 11, 0, 0, 0, 0, 0, 1, 0,
+                'v', ' ', '6', '\n',
+        };
+        framer.append(frames, 0, 15);
+        assertThat(framer.next(), is(true));
+        assertEquals(0, framer.getMessageStart());
+        assertEquals(10, framer.getMessageLength());
+        assertThat(framer.next(), is(false));
+        framer.append(frames, 15, frames.length - 15);
+        assertThat(framer.next(), is(true));
+        WaltDevice.TriggerMessage tmsg =
+                new WaltDevice.TriggerMessage(framer.getBuffer(), framer.getMessageStart());
+        assertEquals(11, tmsg.t);
+        assertThat(drain(framer).toString(), is("[v 6\n]"));
+    }
+
+    @Test
+    public void testOverflow() {
+        MessageFramer framer = new MessageFramer(16);
+        for (int i = 0; i < 10; i++) {
+            append(framer, "0123456789");
+            drain(framer);
+        }
+        assertThat(framer.takeDroppedCount() > 0, is(true));
+        framer.clear();
+        append(framer, "end\n");
+        assertThat(drain(framer).toString(), is("[end\n]"));
+    }
+
+    @Test
+    public void testCompacts() {
+        MessageFramer framer = new MessageFramer(16);
+        for (int i = 0; i < 100; i++) {
+            append(framer, "1234 56");
+            assertThat(framer.next(), is(false));
+            append(framer, "7\n");
+            assertThat(drain(framer).toString(), is("[1234 567\n]"));
+            append(framer, "ab");
+            append(framer, "c\n");
+            assertThat(drain(framer).toString(), is("[abc\n]"));
+        }
+        assertEquals(0, framer.takeDroppedCount());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs NioMessageChannel against a local stand-in for the TCP bridge.
+ */
+public class NioMessageChannelTest {
+
+    private ServerSocket server;
+    private Socket bridge;
+    private NioMessageChannel channel;
+    private final byte[] buff = new byte[NioMessageChannel.MESSAGE_SIZE];
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        channel = new NioMessageChannel(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getLocalPort()), 1000, 4);
+        bridge = server.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        bridge.close();
+        server.close();
+    }
+
+    private String read() {
+        int ret = channel.read(buff, 1000);
+        return ret > 0 ? new String(buff, 0, ret) : String.valueOf(ret);
+    }
+
+    @Test
+    public void testSplitAndCoalescedMessages() throws Exception {
+        OutputStream out = bridge.getOutputStream();
+        out.write("G L 1234".getBytes());
+        out.flush();
+        assertEquals(NioMessageChannel.READ_TIMEOUT, channel.read(buff, 50));
+        out.write(" 1 1\nv 6\nclock 1 2 3\n".getBytes());
+        out.flush();
+        assertEquals("G L 1234 1 1\n", read());
+        assertEquals("v 6\n", read());
+        assertEquals("clock 1 2 3\n", read());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        channel.write((byte) 'V');
+        byte[] data = "bridge sync".getBytes();
+        channel.write(data, 0, data.length);
+        InputStream in = bridge.getInputStream();
+        byte[] received = new byte[12];
+        int n = 0;
+        while (n < received.length) n += in.read(received, n, received.length - n);
+        assertEquals("Vbridge sync", new String(received));
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        OutputStream out = bridge.getOutputStream();
+        for (int i = 0; i < 6; i++) out.write(("p " + i + "\n").getBytes());
+        out.write("end\n".getBytes());
+        out.flush();
+        // 4 slots for 7 messages, wait until the reader thread got to all of them
+        long deadline = System.currentTimeMillis() + 1000;
+        int dropped = 0;
+        while (dropped < 3 && System.currentTimeMillis() < deadline) {
+            dropped += channel.takeDroppedCount();
+            Thread.sleep(1);
+        }
+        assertEquals(3, dropped);
+        for (int i = 0; i < 4; i++) assertEquals("p " + i + "\n", read());
+        assertEquals(NioMessageChannel.READ_TIMEOUT, channel.read(buff, 50));
+    }
+
+    @Test
+    public void testClosedByBridge() throws Exception {
+        bridge.getOutputStream().write("p\n".getBytes());
+        bridge.close();
+        assertEquals("p\n", read());
+        assertEquals(NioMessageChannel.READ_CLOSED, channel.read(buff, 1000));
+        assertThat(channel.isOpen(), is(false));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class PwmDebouncerTest {
+
+    private static final long PERIOD = 4000;
+
+    @Test
+    public void testCalibrate() {
+        PwmDebouncer debouncer = new PwmDebouncer();
+        assertEquals(0, debouncer.finishCalibration());
+
+        for (int i = 0; i < 10; i++) {
+            debouncer.calibrate(i * PERIOD + PERIOD / 2, 0, 1);
+            // Some jitter
+            debouncer.calibrate((i + 1) * PERIOD + (i % 3) * 10, 1, 1);
+        }
+        // Two edges in one trigger, the interval to the rising edge before is unknown
+        debouncer.calibrate(100000, 1, 2);
+        debouncer.calibrate(200000, 1, 1);
+        assertEquals(PERIOD + 10, debouncer.finishCalibration());
+        assertEquals(23, debouncer.getCalibrationEdges());
+
+        debouncer.clear();
+        for (int i = 0; i < 10; i++) debouncer.calibrate(i * 100000, 1, 1);
+        assertEquals(0, debouncer.finishCalibration());
+    }
+
+    @Test
+    public void testDebounce() {
+        PwmDebouncer debouncer = new PwmDebouncer();
+        debouncer.setPeriod(PERIOD);
+        assertEquals(18, debouncer.getConfirmDelayMs());
+
+        debouncer.expect(true);
+        assertEquals(-1, debouncer.onTrigger(1000, 0));
+        assertEquals(2000, debouncer.onTrigger(2000, 1));
+        // Flicker
+        assertEquals(-1, debouncer.onTrigger(4000, 0));
+        assertEquals(-1, debouncer.onTrigger(6000, 1));
+        assertThat(debouncer.isPending(), is(false));
+
+        debouncer.expect(false);
+        assertEquals(-1, debouncer.onTrigger(8000, 0));
+        assertThat(debouncer.isPending(), is(true));
+        assertEquals(-1, debouncer.onTrigger(10000, 1));
+        assertThat(debouncer.isPending(), is(false));
+        assertEquals(-1, debouncer.onQuiet());
+        assertEquals(-1, debouncer.onTrigger(12000, 0));
+        assertEquals(12000, debouncer.onQuiet());
+        assertThat(debouncer.isPending(), is(false));
+        assertEquals(-1, debouncer.onTrigger(14000, 1));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static java.lang.Double.NaN;
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SampleBufferTest {
+
+    @Test
+    public void testEmpty() {
+        SampleBuffer buffer = new SampleBuffer();
+        assertThat(buffer.isEmpty(), is(true));
+        assertThat(buffer.median(), is(NaN));
+        assertThat(buffer.mean(), is(NaN));
+        assertThat(buffer.toString(), is("[]"));
+    }
+
+    @Test
+    public void testGrowAndClear() {
+        SampleBuffer buffer = new SampleBuffer(2);
+        for (int i = 0; i < 100; i++) buffer.add(i);
+        assertEquals(100, buffer.size());
+        assertEquals(99., buffer.get(99));
+        assertEquals(49.5, buffer.median());
+        buffer.clear();
+        assertThat(buffer.isEmpty(), is(true));
+        buffer.add(3);
+        assertEquals(3., buffer.median());
+    }
+
+    @Test
+    public void testSameAsArrayList() {
+        Random rand = new Random(42);
+        for (int n = 1; n < 50; n++) {
+            SampleBuffer buffer = new SampleBuffer();
+            ArrayList<Double> list = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                double d = rand.nextInt(20) + rand.nextDouble();
+                buffer.add(d);
+                list.add(d);
+            }
+            assertEquals(Utils.median(list), buffer.median());
+            assertThat(buffer.toString(), is(list.toString()));
+        }
+    }
+
+    @Test
+    public void testMedianKeepsOrder() {
+        SampleBuffer buffer = new SampleBuffer();
+        buffer.add(3);
+        buffer.add(1);
+        buffer.add(2);
+        assertEquals(2., buffer.median());
+        assertThat(buffer.toString(), is("[3.0, 1.0, 2.0]"));
+    }
+
+    @Test
+    public void testMeanAndStdev() {
+        SampleBuffer buffer = new SampleBuffer();
+        buffer.add(1);
+        buffer.add(2);
+        buffer.add(3);
+        buffer.add(6);
+        assertEquals(3., buffer.mean(), 1e-9);
+        assertEquals(Utils.stdev(new double[]{1, 2, 3, 6}), buffer.stdev(), 1e-9);
+        assertEquals(1., buffer.min());
+        assertEquals(6., buffer.max());
+    }
+}
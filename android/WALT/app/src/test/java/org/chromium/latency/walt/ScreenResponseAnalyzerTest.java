@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+
+public class ScreenResponseAnalyzerTest {
+
+    @Test
+    public void testAdd() {
+        ScreenResponseAnalyzer stats = new ScreenResponseAnalyzer();
+        assertEquals(25.5, stats.add(1000000, 1025500, true), 1e-9);
+        stats.add(2000000, 2010000, false);
+        stats.add(3000000, 3012000, false);
+        assertEquals(3, stats.deltas.size());
+        assertEquals(1, stats.deltasB2w.size());
+        assertEquals(11, stats.deltasW2b.median(), 1e-9);
+        assertEquals((25.5 + 11) / 2, stats.averageMedian(), 1e-9);
+    }
+
+    @Test
+    public void testFromCapture() throws Exception {
+        File file = File.createTempFile("screen", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "screen");
+            // Stray trigger before the first blink
+            writer.writeTrigger(500000, 'S', 1, 1);
+            long t = 1000000;
+            for (int i = 0; i < 20; i++) {
+                boolean white = i % 2 == 0;
+                writer.writeMark(t, ScreenResponseAnalyzer.MARK_FRAME, white ? 1 : 0);
+                writer.writeTrigger(t + (white ? 30000 : 15000), 'S', white ? 1 : 0, i + 2);
+                t += 100000;
+            }
+            writer.close();
+
+            ScreenResponseAnalyzer stats = ScreenResponseAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(20, stats.deltas.size());
+            assertEquals(30, stats.deltasB2w.median(), 1e-9);
+            assertEquals(15, stats.deltasW2b.median(), 1e-9);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFromPwmCapture() throws Exception {
+        final long period = 4000;
+        File file = File.createTempFile("screen", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "screen");
+            writer.writeMark(900000, ScreenResponseAnalyzer.MARK_PWM_PERIOD, (int) period);
+            long t = 1000000;
+            for (int i = 0; i < 20; i++) {
+                boolean white = i % 2 == 0;
+                writer.writeMark(t, ScreenResponseAnalyzer.MARK_FRAME, white ? 1 : 0);
+                if (white) {
+                    long rise = t + 30000;
+                    writer.writeTrigger(rise, 'S', 1, 1);
+                    // Flicker until the screen goes black after the next frame
+                    for (long e = rise + period / 2; e + period / 2 < t + 115000; e += period) {
+                        writer.writeTrigger(e, 'S', 0, 1);
+                        writer.writeTrigger(e + period / 2, 'S', 1, 1);
+                    }
+                } else {
+                    writer.writeTrigger(t + 15000, 'S', 0, 1);
+                }
+                t += 100000;
+            }
+            writer.close();
+
+            ScreenResponseAnalyzer stats = ScreenResponseAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(20, stats.deltas.size());
+            assertEquals(30, stats.deltasB2w.median(), 1e-9);
+            assertEquals(15, stats.deltasW2b.median(), 1e-9);
+        } finally {
+            file.delete();
+        }
+    }
+}
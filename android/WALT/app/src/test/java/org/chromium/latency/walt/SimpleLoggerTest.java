@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class SimpleLoggerTest {
+
+    @Test
+    public void testLineRing() {
+        SimpleLogger.LineRing ring = new SimpleLogger.LineRing(3);
+        assertEquals("", ring.getText());
+        ring.add("one");
+        ring.add("two");
+        assertEquals("one\ntwo\n", ring.getText());
+        ring.add("three");
+        ring.add("four");
+        ring.add("five");
+        assertEquals(3, ring.size());
+        assertEquals("three\nfour\nfive\n", ring.getText());
+        ring.clear();
+        assertEquals(0, ring.size());
+        ring.add("six");
+        assertEquals("six\n", ring.getText());
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+
+public class TapLatencyAnalyzerTest {
+
+    private static final int ACTION_MOVE = 2;
+
+    @Test
+    public void testCheckTapSanity() {
+        assertNull(TapLatencyAnalyzer.checkTapSanity(1000000, 1030000));
+        assertNotNull(TapLatencyAnalyzer.checkTapSanity(0, 1030000));
+        assertNotNull(TapLatencyAnalyzer.checkTapSanity(1030000, 1000000));
+        assertNotNull(TapLatencyAnalyzer.checkTapSanity(1000000, 1201000));
+    }
+
+    @Test
+    public void testAdd() {
+        TapLatencyAnalyzer stats = new TapLatencyAnalyzer();
+        stats.add(TapLatencyAnalyzer.ACTION_DOWN, 30, 5, true);
+        stats.add(TapLatencyAnalyzer.ACTION_DOWN, 500, 5, false);
+        stats.add(TapLatencyAnalyzer.ACTION_UP, 20, 4, true);
+        stats.addMove();
+        assertEquals(2, stats.allDownCount);
+        assertEquals(1, stats.okDownCount);
+        assertEquals(1, stats.allUpCount);
+        assertEquals(1, stats.okUpCount);
+        assertEquals(1, stats.moveCount);
+        assertEquals(30, stats.p2kDown.median(), 0);
+        assertEquals(4, stats.k2cUp.median(), 0);
+
+        stats.clear();
+        assertEquals(0, stats.allDownCount);
+        assertEquals(0, stats.p2kDown.size());
+    }
+
+    @Test
+    public void testPointers() {
+        TapLatencyAnalyzer stats = new TapLatencyAnalyzer();
+        stats.add(TapLatencyAnalyzer.ACTION_DOWN, 30, 5, true);
+        assertThat(stats.isMultiTouch(), is(false));
+
+        // Second finger down while the first one stays, then both up
+        stats.add(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 1, 2, 40, 5, true);
+        stats.add(TapLatencyAnalyzer.ACTION_POINTER_UP, 0, 2, 25, 4, true);
+        stats.add(TapLatencyAnalyzer.ACTION_UP, 1, 1, 15, 4, true);
+        // A finger without a shock of its own, and one beyond MAX_POINTERS
+        stats.add(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 2, 2, 500, 5, false);
+        stats.add(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 7, 8, 50, 5, true);
+        assertThat(stats.isMultiTouch(), is(true));
+
+        assertEquals(4, stats.allDownCount);
+        assertEquals(3, stats.okDownCount);
+        assertEquals(2, stats.okUpCount);
+        assertEquals(40, stats.p2kDown.median(), 0);
+        assertEquals(30, stats.p2kDownByPointer[0].median(), 0);
+        assertEquals(40, stats.p2kDownByPointer[1].median(), 0);
+        assertEquals(0, stats.p2kDownByPointer[2].size());
+        assertEquals(50, stats.p2kDownByPointer[TapLatencyAnalyzer.MAX_POINTERS - 1].median(), 0);
+        assertEquals(25, stats.p2kUpByPointer[0].median(), 0);
+        assertEquals(30, stats.p2kDownByCount[0].median(), 0);
+        assertEquals(40, stats.p2kDownByCount[1].median(), 0);
+        assertEquals(15, stats.p2kUpByCount[0].median(), 0);
+        assertEquals(25, stats.p2kUpByCount[1].median(), 0);
+
+        String summary = stats.getPointerSummary();
+        assertThat(summary, containsString("ID 1: down 40.0 ms (N=1), up 15.0 ms (N=1)"));
+        assertThat(summary, containsString("2 on screen: down 40.0 ms (N=1), up 25.0 ms (N=1)"));
+        assertThat(summary, containsString("5 on screen and more: down 50.0 ms (N=1)"));
+
+        stats.clear();
+        assertThat(stats.isMultiTouch(), is(false));
+    }
+
+    @Test
+    public void testSharedShock() {
+        TapLatencyAnalyzer stats = new TapLatencyAnalyzer();
+        long t = 1000000;
+        // Two fingers down at once, only the first one gets the shock
+        assertNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_DOWN, 1, t, t + 30000));
+        assertEquals(TapLatencyAnalyzer.SHARED_SHOCK,
+                stats.classifyTap(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 2, 0, t + 35000));
+        // Lifted together, the last pointer up has a count of 1 but the shock had 2
+        assertNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_POINTER_UP, 2,
+                t + 500000, t + 520000));
+        assertEquals(TapLatencyAnalyzer.SHARED_SHOCK,
+                stats.classifyTap(TapLatencyAnalyzer.ACTION_UP, 1, 0, t + 525000));
+
+        // Not shared: a single finger, the other direction, or too late
+        stats.clear();
+        assertNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_DOWN, 1, t, t + 30000));
+        assertNotNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_UP, 1, 0, t + 100000));
+        assertNotNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_POINTER_UP, 2, 0, t + 100000));
+        assertNotNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 2, 0, t + 201000));
+
+        stats.addShared(TapLatencyAnalyzer.ACTION_POINTER_DOWN);
+        stats.addShared(TapLatencyAnalyzer.ACTION_UP);
+        assertEquals(1, stats.sharedDownCount);
+        assertEquals(1, stats.sharedUpCount);
+        assertEquals(0, stats.allDownCount);
+        stats.clear();
+        assertEquals(0, stats.sharedDownCount);
+        assertNotNull(stats.classifyTap(TapLatencyAnalyzer.ACTION_POINTER_DOWN, 2, 0, t + 35000));
+    }
+
+    @Test
+    public void testFromCapture() throws Exception {
+        File file = File.createTempFile("tap", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "tap");
+            long t = 1000000000L;
+            for (int i = 0; i < 10; i++) {
+                // Shock, then the kernel sees the touch 30 ms later and the app 5 ms after that
+                writer.writeTouch(t + 30000, t + 35000, 0, 0, TapLatencyAnalyzer.ACTION_DOWN);
+                writer.writeTrigger(t, 'G', 0, 0);
+                writer.writeTouch(t + 40000, t + 41000, 0, 0, ACTION_MOVE);
+                writer.writeTouch(t + 120000, t + 124000, 0, 0, TapLatencyAnalyzer.ACTION_UP);
+                // No shock for the last ACTION_UP
+                writer.writeTrigger(i == 9 ? 0 : t + 100000, 'G', 0, 0);
+                t += 1000000;
+            }
+            writer.close();
+
+            TapLatencyAnalyzer stats = TapLatencyAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(10, stats.allDownCount);
+            assertEquals(10, stats.okDownCount);
+            assertEquals(10, stats.allUpCount);
+            assertEquals(9, stats.okUpCount);
+            assertEquals(10, stats.moveCount);
+            assertEquals(30, stats.p2kDown.median(), 1e-9);
+            assertEquals(5, stats.k2cDown.median(), 1e-9);
+            assertEquals(20, stats.p2kUp.median(), 1e-9);
+            assertEquals(4, stats.k2cUp.median(), 1e-9);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFromMultiTouchCapture() throws Exception {
+        File file = File.createTempFile("tap", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "tap");
+            long t = 1000000000L;
+            for (int i = 0; i < 10; i++) {
+                // First finger 30 ms, second one 40 ms from shock to kernel, both 20 ms for up
+                writer.writeTouch(t + 30000, t + 35000, 0, 0, TapLatencyAnalyzer.ACTION_DOWN, 0, 1);
+                writer.writeTrigger(t, 'G', 0, 0);
+                writer.writeTouch(t + 90000, t + 95000, 0, 0,
+                        TapLatencyAnalyzer.ACTION_POINTER_DOWN, 1, 2);
+                writer.writeTrigger(t + 50000, 'G', 0, 0);
+                writer.writeTouch(t + 100000, t + 101000, 0, 0, ACTION_MOVE, 0, 2);
+                writer.writeTouch(t + 220000, t + 224000, 0, 0,
+                        TapLatencyAnalyzer.ACTION_POINTER_UP, 0, 2);
+                writer.writeTrigger(t + 200000, 'G', 0, 0);
+                writer.writeTouch(t + 320000, t + 324000, 0, 0, TapLatencyAnalyzer.ACTION_UP, 1, 1);
+                writer.writeTrigger(t + 300000, 'G', 0, 0);
+                t += 1000000;
+            }
+            writer.close();
+
+            TapLatencyAnalyzer stats = TapLatencyAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(20, stats.okDownCount);
+            assertEquals(20, stats.okUpCount);
+            assertEquals(10, stats.moveCount);
+            assertEquals(30, stats.p2kDownByPointer[0].median(), 1e-9);
+            assertEquals(40, stats.p2kDownByPointer[1].median(), 1e-9);
+            assertEquals(40, stats.p2kDownByCount[1].median(), 1e-9);
+            assertEquals(20, stats.p2kUpByPointer[1].median(), 1e-9);
+            assertEquals(10, stats.p2kUpByCount[1].size());
+            assertThat(stats.isMultiTouch(), is(true));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFromCaptureWithSharedShocks() throws Exception {
+        File file = File.createTempFile("tap", ".wcap");
+        try {
+            CaptureFile.Writer writer = new CaptureFile.Writer(file, "tap");
+            long t = 1000000000L;
+            for (int i = 0; i < 10; i++) {
+                // Two fingers at once, the second one gets no shock of its own
+                writer.writeTouch(t + 30000, t + 35000, 0, 0, TapLatencyAnalyzer.ACTION_DOWN, 0, 1);
+                writer.writeTrigger(t, 'G', 0, 0);
+                writer.writeTouch(t + 32000, t + 36000, 0, 0,
+                        TapLatencyAnalyzer.ACTION_POINTER_DOWN, 1, 2);
+                writer.writeTrigger(0, 'G', 0, 0);
+                writer.writeTouch(t + 220000, t + 224000, 0, 0,
+                        TapLatencyAnalyzer.ACTION_POINTER_UP, 0, 2);
+                writer.writeTrigger(t + 200000, 'G', 0, 0);
+                writer.writeTouch(t + 221000, t + 225000, 0, 0, TapLatencyAnalyzer.ACTION_UP, 1, 1);
+                writer.writeTrigger(0, 'G', 0, 0);
+                t += 1000000;
+            }
+            writer.close();
+
+            TapLatencyAnalyzer stats = TapLatencyAnalyzer.analyze(new CaptureFile.Reader(file));
+            assertEquals(10, stats.allDownCount);
+            assertEquals(10, stats.okDownCount);
+            assertEquals(10, stats.allUpCount);
+            assertEquals(10, stats.okUpCount);
+            assertEquals(10, stats.sharedDownCount);
+            assertEquals(10, stats.sharedUpCount);
+            assertEquals(30, stats.p2kDown.median(), 1e-9);
+            assertEquals(20, stats.p2kUp.median(), 1e-9);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -43,4 +44,34 @@ public class TraceLoggerTest {
                 "WALTThread-[0-9]+ \\(42\\) \\[[0-9]+] .{4} 40\\.045678: tracing_mark_write: E\\|42\\|AnotherTitle\\|\\|WALT\n";
         assertTrue(traceLogger.getLogText().matches(expected));
     }
+
+    @Test
+    public void testRingOverflow() {
+        TraceLogger.EventRing ring = new TraceLogger.EventRing(4);
+        for (int i = 0; i < 6; i++) ring.add(i * 100, i * 100 + 10, i, 0);
+        assertEquals(4, ring.size);
+        assertEquals(2, ring.dropped);
+
+        TraceLogger.EventRing copy = new TraceLogger.EventRing(4);
+        ring.copyTo(copy);
+        assertEquals(4, copy.size);
+        assertEquals(2, copy.dropped);
+        // Oldest first, the first two were overwritten
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 2) * 100, copy.startTimeMicros[i]);
+            assertEquals((i + 2) * 100 + 10, copy.finishTimeMicros[i]);
+            assertEquals(i + 2, copy.titleId[i]);
+        }
+
+        ring.clear();
+        assertEquals(0, ring.size);
+        assertEquals(0, ring.dropped);
+    }
+
+    @Test
+    public void testJsonString() {
+        StringBuilder sb = new StringBuilder();
+        TraceLogger.appendJsonString(sb, "Say \"hi\"\\\n");
+        assertEquals("\"Say \\\"hi\\\"\\\\\\u000a\"", sb.toString());
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class TriggerMessageTest {
+
+    // "G L 123456789 1 2" as sent by send_trigger_frame() in walt.ino, twice in a row
+    private static final byte[] FRAMES = new byte[] {
+            (byte) 0xA5, 'L', 0x15, (byte) 0xCD, 0x5B, 0x07, 1, 0, 2, 0,
+            (byte) 0xA5, 'S', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F, 0, 0, 1, 0,
+    };
+
+    @Test
+    public void testParseString() {
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage("L 123456789 1 2\n");
+        assertThat(tmsg.tag, is('L'));
+        assertEquals(123456789, tmsg.t);
+        assertEquals(1, tmsg.value);
+        assertEquals(2, tmsg.count);
+    }
+
+    @Test
+    public void testIsTriggerString() {
+        assertThat(WaltDevice.TriggerMessage.isTriggerString("G L 123 1 2\n"), is(true));
+        assertThat(WaltDevice.TriggerMessage.isTriggerString("G L 123 1"), is(true));
+        assertThat(WaltDevice.TriggerMessage.isTriggerString("g\n"), is(false));
+        assertThat(WaltDevice.TriggerMessage.isTriggerString("1234 567"), is(false));
+    }
+
+    @Test
+    public void testParseFrame() {
+        assertThat(WaltDevice.TriggerMessage.isTriggerFrame(FRAMES, 0, FRAMES.length), is(true));
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage(FRAMES, 0);
+        assertThat(tmsg.tag, is('L'));
+        assertEquals(123456789, tmsg.t);
+        assertEquals(1, tmsg.value);
+        assertEquals(2, tmsg.count);
+
+        assertThat(WaltDevice.TriggerMessage.isTriggerFrame(FRAMES, 10, FRAMES.length), is(true));
+        tmsg = new WaltDevice.TriggerMessage(FRAMES, 10);
+        assertThat(tmsg.tag, is('S'));
+        assertEquals(Integer.MAX_VALUE, tmsg.t);
+        assertEquals(0, tmsg.value);
+        assertEquals(1, tmsg.count);
+    }
+
+    @Test
+    public void testParseFrameAfter2To31() {
+        // t = 0x80000001 and 0xFFFFFFFF, more than 36 minutes after the WALT clock was reset
+        byte[] frames = new byte[] {
+                (byte) 0xA5, 'S', 0x01, 0x00, 0x00, (byte) 0x80, 1, 0, 1, 0,
+                (byte) 0xA5, 'S', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 1, 0,
+        };
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage(frames, 0);
+        assertEquals(0x80000001L, tmsg.t);
+        assertEquals(1, tmsg.value);
+        tmsg = new WaltDevice.TriggerMessage(frames, 10);
+        assertEquals(0xFFFFFFFFL, tmsg.t);
+    }
+
+    @Test
+    public void testIsTriggerFrame() {
+        assertThat(WaltDevice.TriggerMessage.isTriggerFrame(FRAMES, 0, 9), is(false));
+        assertThat(WaltDevice.TriggerMessage.isTriggerFrame(FRAMES, 20, FRAMES.length), is(false));
+        byte[] text = "G L 123 1 2\n".getBytes();
+        assertThat(WaltDevice.TriggerMessage.isTriggerFrame(text, 0, text.length), is(false));
+    }
+
+    @Test
+    public void testParseBytes() {
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage();
+        byte[] buff = "G L 123456789 1 2\n".getBytes();
+        assertThat(tmsg.parse(buff, 0, buff.length), is(true));
+        assertThat(tmsg.tag, is('L'));
+        assertEquals(123456789, tmsg.t);
+        assertEquals(1, tmsg.value);
+        assertEquals(2, tmsg.count);
+
+        buff = "  G S 5 0 1".getBytes();
+        assertThat(tmsg.parse(buff, 0, buff.length), is(true));
+        assertThat(tmsg.tag, is('S'));
+        assertEquals(5, tmsg.t);
+        assertEquals(0, tmsg.value);
+        assertEquals(1, tmsg.count);
+    }
+
+    @Test
+    public void testParseTextAfter2To31() {
+        // Same as testParseFrameAfter2To31, the text and binary messages must agree
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage();
+        byte[] buff = "G S 2147483649 1 1\n".getBytes();
+        assertThat(tmsg.parse(buff, 0, buff.length), is(true));
+        assertEquals(0x80000001L, tmsg.t);
+        tmsg = new WaltDevice.TriggerMessage("S 4294967295 0 1\n");
+        assertEquals(0xFFFFFFFFL, tmsg.t);
+    }
+
+    @Test
+    public void testParseBytes_notTrigger() {
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage();
+        for (String s : new String[] {"", "\n", "end\n", "1234 567\n", "G L 1 2\n", "GL 1 2 3",
+                "G l 1 2 3", "G L 1 2 3 4", "G L -1 2 3", "G L 1 2 3\nG L 4 5 6\n"}) {
+            byte[] buff = s.getBytes();
+            assertThat(s, tmsg.parse(buff, 0, buff.length), is(false));
+        }
+    }
+}
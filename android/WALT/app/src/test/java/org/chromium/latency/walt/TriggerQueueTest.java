@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class TriggerQueueTest {
+
+    @Test
+    public void testFifo() {
+        TriggerQueue queue = new TriggerQueue(4);
+        assertThat(queue.isEmpty(), is(true));
+        assertNull(queue.peek());
+        for (int i = 0; i < 10; i++) {
+            WaltDevice.TriggerMessage tmsg = queue.claim();
+            tmsg.t = i;
+            queue.publish();
+            assertEquals(i, queue.peek().t);
+            queue.release();
+        }
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        TriggerQueue queue = new TriggerQueue(4);
+        for (int i = 0; i < 4; i++) {
+            queue.claim().t = i;
+            queue.publish();
+        }
+        assertNull(queue.claim());
+        assertNull(queue.claim());
+        assertEquals(2, queue.takeDroppedCount());
+        assertEquals(0, queue.takeDroppedCount());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, queue.peek().t);
+            queue.release();
+        }
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void testTwoThreads() throws InterruptedException {
+        final int n = 100000;
+        final TriggerQueue queue = new TriggerQueue(16);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < n; ) {
+                    WaltDevice.TriggerMessage tmsg = queue.claim();
+                    if (tmsg == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    tmsg.t = i++;
+                    queue.publish();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < n; ) {
+            WaltDevice.TriggerMessage tmsg = queue.peek();
+            if (tmsg == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(i++, tmsg.t);
+            queue.release();
+        }
+        producer.join();
+    }
+}
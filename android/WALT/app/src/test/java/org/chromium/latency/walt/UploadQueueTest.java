@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UploadQueueTest {
+
+    private File dir;
+    private HttpServer server;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private String lastContentEncoding;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("uploads", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop(0);
+        deleteAll(new File(dir, UploadQueue.FAILED_DIRECTORY));
+        deleteAll(dir);
+    }
+
+    private static void deleteAll(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private File addEntry(UploadQueue queue, String text) throws IOException {
+        OutputStream out = queue.add();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        List<File> pending = queue.getPending();
+        return pending.get(pending.size() - 1);
+    }
+
+    /**
+     * A server that keeps one upload and, like server/main.py, only accepts the offset it expects.
+     */
+    private URL startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                synchronized (received) {
+                    if (exchange.getRequestMethod().equals("GET")) {
+                        exchange.getResponseHeaders().set(UploadQueue.HEADER_OFFSET,
+                                Integer.toString(received.size()));
+                        exchange.sendResponseHeaders(200, -1);
+                    } else if (Long.parseLong(exchange.getRequestHeaders().getFirst(
+                            UploadQueue.HEADER_OFFSET)) != received.size()) {
+                        exchange.sendResponseHeaders(409, -1);
+                    } else {
+                        lastContentEncoding =
+                                exchange.getRequestHeaders().getFirst("Content-Encoding");
+                        received.write(body);
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        UploadQueue queue = new UploadQueue(dir);
+        File first = addEntry(queue, "first log\n");
+        File second = addEntry(queue, "second log\n");
+        List<File> pending = queue.getPending();
+        assertEquals(2, pending.size());
+        assertEquals(first, pending.get(0));
+        assertEquals(second, pending.get(1));
+        byte[] text = readAll(new GZIPInputStream(new FileInputStream(first)));
+        assertEquals("first log\n", new String(text, StandardCharsets.UTF_8));
+
+        // Not queued until closed
+        OutputStream out = queue.add();
+        out.write('x');
+        assertEquals(2, queue.getPending().size());
+        out.close();
+        assertEquals(3, queue.getPending().size());
+
+        queue.trim(1);
+        assertEquals(1, queue.getPending().size());
+        assertThat(queue.getPending().get(0).getName().compareTo(second.getName()) > 0, is(true));
+    }
+
+    @Test
+    public void testSendAndResume() throws Exception {
+        URL url = startServer();
+        UploadQueue queue = new UploadQueue(dir);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append("line ").append(i * 7919 % 10007).append('\n');
+        File entry = addEntry(queue, sb.toString());
+        byte[] compressed = readAll(new FileInputStream(entry));
+        assertThat(compressed.length > UploadQueue.CHUNK_SIZE, is(true));
+
+        // As if the first attempt had been cut off after the first chunk
+        received.write(compressed, 0, UploadQueue.CHUNK_SIZE);
+        assertEquals(409, queue.send(url, entry, 0));
+        long offset = queue.getServerOffset(url, entry);
+        assertEquals(UploadQueue.CHUNK_SIZE, offset);
+        assertEquals(200, queue.send(url, entry, offset));
+        assertEquals("gzip", lastContentEncoding);
+
+        byte[] text = readAll(new GZIPInputStream(
+                new java.io.ByteArrayInputStream(received.toByteArray())));
+        assertEquals(sb.toString(), new String(text, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUploadId() throws Exception {
+        UploadQueue queue = new UploadQueue(dir);
+        File entry = addEntry(queue, "log\n");
+        String id = queue.getUploadId(entry);
+        assertThat(id.endsWith("-" + entry.getName()), is(true));
+        // Kept for the install, but not shared with another one
+        assertEquals(id, new UploadQueue(dir).getUploadId(entry));
+        File otherDir = File.createTempFile("uploads", "");
+        otherDir.delete();
+        try {
+            assertThat(new UploadQueue(otherDir).getUploadId(entry).equals(id), is(false));
+        } finally {
+            deleteAll(otherDir);
+        }
+        assertEquals(1, queue.getPending().size());
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        UploadQueue queue = new UploadQueue(dir);
+        File first = addEntry(queue, "refused\n");
+        File second = addEntry(queue, "fine\n");
+        queue.reject(first);
+        List<File> pending = queue.getPending();
+        assertEquals(1, pending.size());
+        assertEquals(second, pending.get(0));
+        assertEquals(1, queue.getFailed().size());
+        assertEquals(first.getName(), queue.getFailed().get(0).getName());
+
+        for (int i = 0; i < UploadQueue.MAX_ENTRIES + 5; i++) {
+            queue.reject(addEntry(queue, "refused " + i + "\n"));
+        }
+        assertEquals(UploadQueue.MAX_ENTRIES, queue.getFailed().size());
+        assertEquals(1, queue.getPending().size());
+    }
+
+    @Test
+    public void testIsFinal() {
+        assertThat(UploadQueue.isFinal(400), is(true));
+        assertThat(UploadQueue.isFinal(413), is(true));
+        assertThat(UploadQueue.isFinal(408), is(false));
+        assertThat(UploadQueue.isFinal(409), is(false));
+        assertThat(UploadQueue.isFinal(429), is(false));
+        assertThat(UploadQueue.isFinal(500), is(false));
+        assertThat(UploadQueue.isFinal(200), is(false));
+        assertThat(UploadQueue.isFinal(-1), is(false));
+    }
+
+    @Test
+    public void testParseOffset() {
+        assertEquals(0, UploadQueue.parseOffset(null, 100));
+        assertEquals(42, UploadQueue.parseOffset("42", 100));
+        assertEquals(0, UploadQueue.parseOffset("101", 100));
+        assertEquals(0, UploadQueue.parseOffset("-1", 100));
+        assertEquals(0, UploadQueue.parseOffset("abc", 100));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+
+public class UsbChunkQueueTest {
+
+    private static final int SIZE = 16;
+
+    // Fills the buffer the way a completed UsbRequest leaves it
+    private static void offer(UsbChunkQueue queue, String message, long receiveMicros) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE);
+        buffer.put(message.getBytes());
+        queue.offer(buffer, buffer.position(), receiveMicros);
+    }
+
+    private static void offer(UsbChunkQueue queue, String message) {
+        offer(queue, message, 0);
+    }
+
+    private static String poll(UsbChunkQueue queue) {
+        byte[] buff = new byte[SIZE];
+        int length = queue.poll(buff, 0);
+        return length < 0 ? null : new String(buff, 0, length);
+    }
+
+    @Test
+    public void testInOrder() {
+        UsbChunkQueue queue = new UsbChunkQueue(4, SIZE);
+        offer(queue, "G L 1\n");
+        offer(queue, "G L 2\n");
+        assertEquals("G L 1\n", poll(queue));
+        assertEquals("G L 2\n", poll(queue));
+        assertEquals(null, poll(queue));
+    }
+
+    @Test
+    public void testReceiveTime() {
+        UsbChunkQueue queue = new UsbChunkQueue(4, SIZE);
+        offer(queue, "G L 1\n", 1000);
+        offer(queue, "G L 2\n", 2000);
+        // The time the transfer was reaped, not when it was read
+        poll(queue);
+        assertEquals(1000, queue.getLastReceiveMicros());
+        poll(queue);
+        assertEquals(2000, queue.getLastReceiveMicros());
+        assertEquals(null, poll(queue));
+        assertEquals(2000, queue.getLastReceiveMicros());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        UsbChunkQueue queue = new UsbChunkQueue(2, SIZE);
+        offer(queue, "a");
+        offer(queue, "b");
+        offer(queue, "c");
+        assertEquals(1, queue.takeDroppedCount());
+        assertEquals(0, queue.takeDroppedCount());
+        assertEquals("a", poll(queue));
+        // Reading frees a chunk for the next transfer
+        offer(queue, "d");
+        assertEquals(0, queue.takeDroppedCount());
+        assertEquals("b", poll(queue));
+        assertEquals("d", poll(queue));
+    }
+
+    @Test
+    public void testClearOnStop() {
+        // What UsbReadQueue does around a clock sync: nothing read before stop() may be handed
+        // out after start(), and all chunks are available again
+        UsbChunkQueue queue = new UsbChunkQueue(2, SIZE);
+        offer(queue, "stale 1");
+        offer(queue, "stale 2");
+        queue.clear();
+        assertEquals(null, poll(queue));
+
+        offer(queue, "fresh 1");
+        offer(queue, "fresh 2");
+        assertEquals(0, queue.takeDroppedCount());
+        assertEquals("fresh 1", poll(queue));
+        assertEquals("fresh 2", poll(queue));
+        assertEquals(null, poll(queue));
+    }
+}
@@ -163,6 +163,44 @@ public class UtilsTest {
         assertEquals(latency, Utils.findBestShift(laserTimes, touchTimes, touchY), 1e-6);
     }
 
+    @Test
+    public void testFindBestShift_sameAsBruteForce() {
+        Random rand = new Random(1234);
+        for (int trial = 0; trial < 20; trial++) {
+            double latency = 5 + rand.nextDouble() * 100;
+            double period = 300 + rand.nextDouble() * 900;
+            double[] touchTimes = new double[3000];
+            double[] touchY = new double[touchTimes.length];
+            for (int i = 0; i < touchTimes.length; i++) {
+                touchTimes[i] = i + rand.nextDouble() * 0.2 - 0.1;
+                touchY[i] = 1000 * Math.cos((touchTimes[i] - latency) * 2 * Math.PI / period)
+                        + rand.nextGaussian() * 3;
+            }
+            double[] laserTimes = new double[2 * (int) (touchTimes.length / period)];
+            for (int i = 0; i < laserTimes.length; i += 2) {
+                laserTimes[i] = i / 2 * period + period / 4 - 10;
+                laserTimes[i + 1] = i / 2 * period + period * 3 / 4 + 10;
+            }
+            assertEquals(Utils.findBestShiftBruteForce(laserTimes, touchTimes, touchY),
+                    Utils.findBestShift(laserTimes, touchTimes, touchY), 0.01);
+        }
+    }
+
+    @Test
+    public void testFindBestShift_multimodalSameAsBruteForce() {
+        // Two laser events, the error is how far apart the touch trace is at them. Around the
+        // first one it has a broad dip at 130 ms and a deeper but very narrow one at 133.05 ms,
+        // which the coarse pass steps over. The second one sees a flat trace.
+        double[] laserTimes = new double[]{100, 1000};
+        double[] touchTimes = new double[]{
+                100, 125, 130, 133.03, 133.05, 133.07, 135, 140, 250, 900, 1200};
+        double[] touchY = new double[]{
+                10, 3, 0.5, 2.015, 0, 2.035, 3, 10, 10, 0, 0};
+        double bruteForce = Utils.findBestShiftBruteForce(laserTimes, touchTimes, touchY);
+        assertEquals(33.05, bruteForce, 1e-6);
+        assertEquals(bruteForce, Utils.findBestShift(laserTimes, touchTimes, touchY), 1e-6);
+    }
+
     @Test
     public void testMeanEntries() {
         List<Entry> entries = new ArrayList<>();
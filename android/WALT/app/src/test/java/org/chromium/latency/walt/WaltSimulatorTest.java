@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class WaltSimulatorTest {
+
+    private WaltSimulator walt;
+    private final MessageFramer framer = new MessageFramer(4096);
+    private final byte[] buffer = new byte[4096];
+
+    @Before
+    public void setUp() {
+        walt = new WaltSimulator(1);
+        walt.setLatencyMicros(100);
+        walt.setJitterMicros(20);
+        walt.connect();
+    }
+
+    @After
+    public void tearDown() {
+        walt.disconnect();
+    }
+
+    private String read() {
+        while (!framer.next()) {
+            int ret = walt.blockingRead(buffer);
+            if (ret <= 0) return null;
+            framer.append(buffer, 0, ret);
+        }
+        return new String(framer.getBuffer(), framer.getMessageStart(),
+                framer.getMessageLength());
+    }
+
+    private String command(char cmd) throws Exception {
+        walt.sendByte(cmd);
+        return read();
+    }
+
+    @Test
+    public void testCommands() throws Exception {
+        assertEquals("p\n", command(WaltDevice.CMD_PING));
+        assertEquals("v 6\n", command(WaltDevice.CMD_VERSION));
+        assertEquals("k B\n", command(WaltDevice.CMD_CAPABILITIES));
+        assertEquals("f\n", command(WaltDevice.CMD_RESET));
+        assertEquals("Unknown command: x\n", command('x'));
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        walt.setLatencyMicros(5000);
+        walt.setJitterMicros(0);
+        long t0 = System.nanoTime();
+        command(WaltDevice.CMD_PING);
+        assertThat(System.nanoTime() - t0 >= 10000000, is(true));
+    }
+
+    @Test
+    public void testDrift() {
+        walt.setDriftPpm(1000);
+        long t = System.nanoTime();
+        long start = walt.remoteMicros(t);
+        assertEquals(1001000, walt.remoteMicros(t + 1000000000L) - start, 1);
+    }
+
+    @Test
+    public void testLaserTriggers() throws Exception {
+        walt.laserChange(1);
+        assertEquals("l\n", command(WaltDevice.CMD_AUTO_LASER_ON));
+        walt.laserChange(0);
+        String s = read();
+        assertThat(s, s.matches("G L \\d+ 0 1\n"), is(true));
+        assertEquals("L\n", command(WaltDevice.CMD_AUTO_LASER_OFF));
+        walt.laserChange(1);
+        String last = command(WaltDevice.CMD_SEND_LAST_LASER);
+        assertThat(last, last.matches("G L \\d+ 1 1\n"), is(true));
+    }
+
+    @Test
+    public void testBinaryScreenTriggers() throws Exception {
+        assertEquals("y\n", command(WaltDevice.CMD_BINARY_TRIGGERS_ON));
+        assertEquals("c\n", command(WaltDevice.CMD_AUTO_SCREEN_ON));
+        walt.setScreenLevel(50);
+        walt.setScreenLevel(200);
+        read();
+        WaltDevice.TriggerMessage tmsg = new WaltDevice.TriggerMessage(framer.getBuffer(),
+                framer.getMessageStart());
+        assertEquals('S', tmsg.tag);
+        assertEquals(1, tmsg.value);
+        assertEquals(1, tmsg.count);
+    }
+
+    @Test
+    public void testProbeFiresOnce() throws Exception {
+        walt.audioSignal();
+        assertEquals("a\n", command(WaltDevice.CMD_AUDIO));
+        walt.audioSignal();
+        walt.audioSignal();
+        assertThat(read().startsWith("G A "), is(true));
+        assertEquals("p\n", command(WaltDevice.CMD_PING));
+    }
+
+    @Test
+    public void testClockSync() throws Exception {
+        assertEquals("z\n", command(WaltDevice.CMD_SYNC_ZERO));
+        walt.sendByte(WaltDevice.CMD_SYNC_SEND);
+        for (int i = 1; i <= 9; i++) assertEquals(i + "\n", read());
+        String first = command(WaltDevice.CMD_SYNC_READOUT);
+        assertThat(first, first.matches("1:\\d+\n"), is(true));
+
+        RemoteClockInfo clock = walt.syncClock();
+        // At least the round trip
+        assertThat(clock.maxLag >= 200, is(true));
+        walt.updateLag();
+        long lag = clock.micros() - walt.remoteMicros(System.nanoTime());
+        // Allow for rounding to whole microseconds
+        assertThat(clock.minLag - 2 <= lag && lag <= clock.maxLag + 2, is(true));
+    }
+
+    @Test
+    public void testBrightnessCurve() throws Exception {
+        walt.setScreenLevel(300);
+        assertEquals("u\n", command(WaltDevice.CMD_BRIGHTNESS_CURVE));
+        long last = -1;
+        for (int i = 0; i < 1000; i++) {
+            String[] parts = read().trim().split(" ");
+            long t = Long.parseLong(parts[0]);
+            assertThat(t > last, is(true));
+            assertEquals("300", parts[1]);
+            last = t;
+        }
+        assertEquals("end\n", read());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import com.github.mikephil.charting.data.Entry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot loops of the drag and accelerometer analysis.
+ *
+ * Trace sizes are JMH parameters and can be overridden from the command line, e.g.
+ * java -jar benchmark/build/libs/benchmark-jmh.jar -p touchCount=40000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnalysisBenchmark {
+
+    /** Number of touch events, one per millisecond. Also the number of WALT accelerometer samples */
+    @Param({"1000", "4000", "16000"})
+    public int touchCount;
+
+    private SyntheticTraces traces;
+    private ArrayList<Double> latencyList;
+    private SampleBuffer latencyBuffer;
+    private double[] latencies;
+    private double[] shiftedLaserT;
+    private List<Entry> smoothWaltEntries;
+    private ShiftFinder shiftFinder = new ShiftFinder();
+
+    @Setup
+    public void setUp() {
+        traces = new SyntheticTraces(42);
+        traces.makeDrag(touchCount);
+        traces.makeAccelerometer(touchCount);
+
+        latencies = traces.makeLatencies(touchCount);
+        latencyList = new ArrayList<>(latencies.length);
+        for (double d : latencies) latencyList.add(d);
+        latencyBuffer = new SampleBuffer(latencies.length);
+        for (double d : latencies) latencyBuffer.add(d);
+
+        shiftedLaserT = new double[traces.laserT.length];
+        for (int i = 0; i < shiftedLaserT.length; i++) {
+            shiftedLaserT[i] = traces.laserT[i] + SyntheticTraces.DRAG_LATENCY;
+        }
+        smoothWaltEntries = AccelerometerAnalyzer.smoothEntries(traces.waltEntries, 4);
+    }
+
+    @Benchmark
+    public double findBestShift() {
+        return MathUtils.findBestShift(traces.laserT, traces.touchT, traces.touchY);
+    }
+
+    @Benchmark
+    public double findBestShiftBruteForce() {
+        return MathUtils.findBestShiftBruteForce(traces.laserT, traces.touchT, traces.touchY);
+    }
+
+    @Benchmark
+    public double findBestShiftReused() {
+        return shiftFinder.findBestShift(traces.laserT, traces.touchT, traces.touchY);
+    }
+
+    @Benchmark
+    public double[] interpLaser() {
+        return MathUtils.interp(shiftedLaserT, traces.touchT, traces.touchY);
+    }
+
+    @Benchmark
+    public double median() {
+        return MathUtils.median(latencyList);
+    }
+
+    @Benchmark
+    public double medianSampleBuffer() {
+        return latencyBuffer.median();
+    }
+
+    @Benchmark
+    public double stdev() {
+        return MathUtils.stdev(latencies);
+    }
+
+    @Benchmark
+    public double[] findShifts() {
+        return AccelerometerAnalyzer.findShifts(traces.phoneEntries, smoothWaltEntries);
+    }
+
+    @Benchmark
+    public double findAccelerometerShift() {
+        return AccelerometerAnalyzer.findBestShift(traces.phoneEntries, smoothWaltEntries);
+    }
+
+    @Benchmark
+    public List<Entry> smoothEntries() {
+        return AccelerometerAnalyzer.smoothEntries(traces.waltEntries, 4);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import com.github.mikephil.charting.data.Entry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generators for fake, but realistically shaped, WALT measurements.
+ * All times are in milliseconds.
+ */
+class SyntheticTraces {
+
+    static final double DRAG_LATENCY = 12.34;
+    static final double DRAG_PERIOD = 1000;  // One full up and down finger movement
+    static final double ACCELEROMETER_LATENCY = 12;
+
+    private final Random rand;
+
+    double[] touchT;
+    double[] touchY;
+    double[] laserT;
+
+    List<Entry> phoneEntries;
+    List<Entry> waltEntries;
+
+    SyntheticTraces(long seed) {
+        rand = new Random(seed);
+    }
+
+    /**
+     * Touch events every millisecond with some jitter, the finger moving along a cosine and
+     * crossing the laser beam four times per period, like in UtilsTest.testFindBestShift().
+     */
+    void makeDrag(int touchCount) {
+        touchT = new double[touchCount];
+        touchY = new double[touchCount];
+        for (int i = 0; i < touchCount; i++) {
+            touchT[i] = i + rand.nextDouble() * 0.2 - 0.1;
+            touchY[i] = 1000 * Math.cos((touchT[i] - DRAG_LATENCY) * 2 * Math.PI / DRAG_PERIOD)
+                    + rand.nextDouble() * 0.02 - 0.01;
+        }
+
+        int periods = (int) (touchCount / DRAG_PERIOD);
+        laserT = new double[4 * Math.max(periods, 1)];
+        int i = 0;
+        for (int p = 0; p < laserT.length / 4; p++) {
+            double root = p * DRAG_PERIOD;
+            laserT[i++] = root + DRAG_PERIOD / 4 - 10;
+            laserT[i++] = root + DRAG_PERIOD / 4 + 10;
+            laserT[i++] = root + DRAG_PERIOD * 3 / 4 - 10;
+            laserT[i++] = root + DRAG_PERIOD * 3 / 4 + 10;
+        }
+    }
+
+    /**
+     * WALT samples the accelerometer every millisecond while the phone reports every third
+     * millisecond, same shape as in AccelerometerAnalyzerTest.testFindShifts().
+     */
+    void makeAccelerometer(int waltCount) {
+        phoneEntries = new ArrayList<>();
+        waltEntries = new ArrayList<>();
+        for (int i = 0; i < waltCount; i++) {
+            if (i % 3 == 0) {
+                phoneEntries.add(new Entry(i,
+                        (float) Math.sin((i - ACCELEROMETER_LATENCY) * Math.PI / 100)));
+            }
+            waltEntries.add(new Entry(i, (float) Math.sin(i * Math.PI / 100) * rand.nextFloat()
+                    + rand.nextFloat() * 0.2f - 0.1f));
+        }
+    }
+
+    /**
+     * Latency samples in the range typically seen in tap and screen tests.
+     */
+    double[] makeLatencies(int count) {
+        double[] latencies = new double[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = 20 + 5 * rand.nextGaussian();
+        }
+        return latencies;
+    }
+}
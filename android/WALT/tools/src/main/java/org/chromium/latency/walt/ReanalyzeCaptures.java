@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.chromium.latency.walt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Re-runs the analysis of the drag, tap and screen response tests over captures saved by the app,
+ * see EventCapture, and prints a table per test with one row per run and aggregates over all runs.
+ *
+ * Usage: reanalyze [-j threads] dir_or_file...
+ *
+ * Directories are searched recursively for .wcap files. The files are split between the threads
+ * of a fork-join pool, each capture is mapped and analyzed on its own, so large archives are done
+ * about as many times faster as there are cores. Captures of other tests and files that can't be
+ * analyzed are listed at the end.
+ */
+public class ReanalyzeCaptures {
+
+    static final String EXTENSION = ".wcap";
+
+    // Columns of the table for each test, in the order of Run.values
+    private static final Map<String, String[]> COLUMNS = new TreeMap<>();
+    static {
+        COLUMNS.put("drag", new String[]{"latency"});
+        COLUMNS.put("screen", new String[]{"b2w", "w2b", "average", "N"});
+        COLUMNS.put("tap", new String[]{"down p2k", "down k2c", "up p2k", "up k2c",
+                "N down", "N up"});
+    }
+
+    /**
+     * Result of one capture, values in ms or counts. Error is set instead if it failed.
+     */
+    static class Run {
+        final String file;
+        final String test;
+        final double[] values;
+        final String error;
+
+        Run(String file, String test, double[] values, String error) {
+            this.file = file;
+            this.test = test;
+            this.values = values;
+            this.error = error;
+        }
+    }
+
+    static Run analyze(File file) {
+        String name = file.getPath();
+        CaptureFile.Reader capture;
+        try {
+            capture = new CaptureFile.Reader(file);
+        } catch (IOException e) {
+            return new Run(name, null, null, e.getMessage());
+        } catch (RuntimeException e) {
+            return new Run(name, null, null, "corrupt capture: " + e);
+        }
+        String test = capture.getTestName();
+        try {
+            double[] values;
+            switch (test) {
+                case "drag":
+                    values = new double[]{DragLatencyAnalyzer.analyze(capture).latency};
+                    break;
+                case "screen": {
+                    ScreenResponseAnalyzer stats = ScreenResponseAnalyzer.analyze(capture);
+                    values = new double[]{
+                            stats.deltasB2w.median(),
+                            stats.deltasW2b.median(),
+                            stats.averageMedian(),
+                            stats.deltas.size()};
+                    break;
+                }
+                case "tap": {
+                    TapLatencyAnalyzer stats = TapLatencyAnalyzer.analyze(capture);
+                    values = new double[]{
+                            stats.p2kDown.median(),
+                            stats.k2cDown.median(),
+                            stats.p2kUp.median(),
+                            stats.k2cUp.median(),
+                            stats.okDownCount,
+                            stats.okUpCount};
+                    break;
+                }
+                default:
+                    return new Run(name, test, null, "no offline analysis for this test");
+            }
+            if (!capture.isComplete()) {
+                return new Run(name + " (truncated)", test, values, null);
+            }
+            return new Run(name, test, values, null);
+        } catch (IllegalArgumentException e) {
+            return new Run(name, test, null, e.getMessage());
+        } catch (RuntimeException e) {
+            // E.g. a block that doesn't decode, the other files still get analyzed
+            return new Run(name, test, null, "corrupt capture: " + e);
+        }
+    }
+
+    /**
+     * Analyzes files[from, to), splitting the range in halves down to single files.
+     */
+    static class AnalyzeTask extends RecursiveTask<List<Run>> {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] files;
+        private final int from;
+        private final int to;
+
+        AnalyzeTask(File[] files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Run> compute() {
+            if (to - from <= 1) {
+                List<Run> runs = new ArrayList<>();
+                if (to > from) runs.add(analyze(files[from]));
+                return runs;
+            }
+            int mid = (from + to) >>> 1;
+            AnalyzeTask left = new AnalyzeTask(files, from, mid);
+            left.fork();
+            List<Run> runs = new AnalyzeTask(files, mid, to).compute();
+            List<Run> leftRuns = left.join();
+            leftRuns.addAll(runs);
+            return leftRuns;
+        }
+    }
+
+    /**
+     * Analyzes all files on the pool, returns the runs in the order of the files.
+     */
+    static List<Run> analyzeAll(ForkJoinPool pool, File[] files) {
+        return pool.invoke(new AnalyzeTask(files, 0, files.length));
+    }
+
+    static void findCaptures(File file, List<File> out) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) return;
+            for (File child : children) findCaptures(child, out);
+        } else if (file.getName().endsWith(EXTENSION)) {
+            out.add(file);
+        }
+    }
+
+    static void printTables(List<Run> runs, PrintStream out) {
+        for (Map.Entry<String, String[]> entry : COLUMNS.entrySet()) {
+            String test = entry.getKey();
+            String[] columns = entry.getValue();
+            List<Run> testRuns = new ArrayList<>();
+            for (Run run : runs) {
+                if (test.equals(run.test) && run.error == null) testRuns.add(run);
+            }
+            if (testRuns.isEmpty()) continue;
+
+            out.println(String.format(Locale.US, "## %s, %d runs", test, testRuns.size()));
+            StringBuilder header = new StringBuilder(String.format(Locale.US, "%-10s", ""));
+            for (String column : columns) header.append(String.format(Locale.US, " %10s", column));
+            out.println(header);
+
+            SampleBuffer[] columnValues = new SampleBuffer[columns.length];
+            for (int i = 0; i < columns.length; i++) columnValues[i] = new SampleBuffer();
+            for (Run run : testRuns) {
+                for (int i = 0; i < columns.length; i++) {
+                    if (!Double.isNaN(run.values[i])) columnValues[i].add(run.values[i]);
+                }
+                out.println(formatRow("", run.values) + "  " + run.file);
+            }
+
+            double[] median = new double[columns.length];
+            double[] min = new double[columns.length];
+            double[] max = new double[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                median[i] = columnValues[i].median();
+                double[] values = columnValues[i].toArray();
+                Arrays.sort(values);
+                min[i] = values.length > 0 ? values[0] : Double.NaN;
+                max[i] = values.length > 0 ? values[values.length - 1] : Double.NaN;
+            }
+            out.println(formatRow("median", median));
+            out.println(formatRow("min", min));
+            out.println(formatRow("max", max));
+            out.println();
+        }
+
+        List<Run> failed = new ArrayList<>();
+        for (Run run : runs) {
+            if (run.error != null) failed.add(run);
+        }
+        if (!failed.isEmpty()) {
+            out.println(String.format(Locale.US, "## not analyzed, %d files", failed.size()));
+            for (Run run : failed) {
+                out.println(String.format(Locale.US, "%s (%s): %s",
+                        run.file, run.test == null ? "?" : run.test, run.error));
+            }
+        }
+    }
+
+    private static String formatRow(String label, double[] values) {
+        StringBuilder row = new StringBuilder(String.format(Locale.US, "%-10s", label));
+        for (double value : values) row.append(String.format(Locale.US, " %10.1f", value));
+        return row.toString();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: reanalyze [-j threads] dir_or_file...");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j")) {
+                if (++i == args.length) usage();
+                try {
+                    threads = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (threads < 1) usage();
+            } else if (args[i].startsWith("-")) {
+                usage();
+            } else {
+                File file = new File(args[i]);
+                if (!file.exists()) {
+                    System.err.println("No such file or directory: " + file);
+                    System.exit(1);
+                }
+                findCaptures(file, files);
+            }
+        }
+        if (args.length == 0) usage();
+        if (files.isEmpty()) {
+            System.err.println("No " + EXTENSION + " files found");
+            System.exit(1);
+        }
+        Collections.sort(files);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Run> runs;
+        try {
+            runs = analyzeAll(pool, files.toArray(new File[0]));
+        } finally {
+            pool.shutdown();
+        }
+        printTables(runs, System.out);
+    }
+}
@@ -48,6 +48,19 @@
 
 #define CMD_ACCELEROMETER_CURVE 'O'
 
+#define CMD_BINARY_TRIGGERS_ON  'Y' // Send auto triggers as binary frames
+#define CMD_BINARY_TRIGGERS_OFF 'y'
+#define CMD_CAPABILITIES        'K' // List optional features
+
+// Capabilities listed in the reply to CMD_CAPABILITIES. The reply to CMD_VERSION stays the bare
+// version, apps compare it as a whole.
+#define CAPABILITY_BINARY_TRIGGERS "B"
+
+// Binary trigger frame: magic, tag, time (int32), value (int16), count (int16).
+// All little endian. The magic byte can't appear at the start of a text message.
+#define TRIGGER_FRAME_MAGIC 0xA5
+#define TRIGGER_FRAME_SIZE 10
+
 #define NOTE_DELAY 10000 // 10 ms
 
 // Message types for MIDI encapsulation
@@ -80,6 +93,7 @@ boolean led_state;
 char tmp_str[256];
 
 boolean serial_over_midi;
+boolean binary_triggers;
 String send_buffer;
 
 struct trigger {
@@ -163,6 +177,31 @@ void send_trigger(struct trigger t) {
   send_line();
 }
 
+// Like send_trigger() but without flushing, so that several triggers can go out in one USB
+// packet. The app splits them at the newlines. Serial only, with MIDI each line is a SysEx.
+void queue_trigger(struct trigger t) {
+  char s[256];
+  sprintf(s, "G %c %ld %d %d\n", t.tag, t.t, t.value, t.count);
+  send(s);
+}
+
+// Same content as send_trigger() but as a binary frame, bypasses send_buffer and does not
+// flush either. Not possible with serial_over_midi since SysEx data must be 7 bit.
+void queue_trigger_frame(struct trigger t) {
+  uint8_t frame[TRIGGER_FRAME_SIZE];
+  frame[0] = TRIGGER_FRAME_MAGIC;
+  frame[1] = t.tag;
+  frame[2] = t.t & 0xFF;
+  frame[3] = (t.t >> 8) & 0xFF;
+  frame[4] = (t.t >> 16) & 0xFF;
+  frame[5] = (t.t >> 24) & 0xFF;
+  frame[6] = t.value & 0xFF;
+  frame[7] = (t.value >> 8) & 0xFF;
+  frame[8] = t.count & 0xFF;
+  frame[9] = (t.count >> 8) & 0xFF;
+  Serial.write(frame, TRIGGER_FRAME_SIZE);
+}
+
 // flips case for a give char. Unchanged if not in [A-Za-z].
 char flip_case(char c) {
   if (c >= 'A' && c <= 'Z') {
@@ -188,6 +227,7 @@ void init_clock() {
 void init_vars() {
   noInterrupts();
   init_clock();
+  binary_triggers = false;
 
   for (int i = 0; i < TRIGGER_COUNT; i++) {
     memset(triggers[i], 0, sizeof(struct trigger));
@@ -316,6 +356,13 @@ void process_command(char cmd) {
     send(' ');
     send(VERSION);
     send_line();
+  } else if (cmd == CMD_CAPABILITIES) {
+    send(flip_case(cmd));
+    if (!serial_over_midi) {
+      send(' ');
+      send(CAPABILITY_BINARY_TRIGGERS);
+    }
+    send_line();
   } else if (cmd == CMD_GSHOCK) {
     send(gshock.t);  // TODO: Serialize trigger
     send_line();
@@ -383,6 +430,12 @@ void process_command(char cmd) {
     send_ack(CMD_ACCELEROMETER_CURVE);
     // This blocks all other execution for about 2 seconds
     run_accelerometer_curve();
+  } else if (cmd == CMD_BINARY_TRIGGERS_ON) {
+    binary_triggers = true;
+    send_ack(CMD_BINARY_TRIGGERS_ON);
+  } else if (cmd == CMD_BINARY_TRIGGERS_OFF) {
+    binary_triggers = false;
+    send_ack(CMD_BINARY_TRIGGERS_OFF);
   } else if (cmd == CMD_SAMPLE_ALL) {
     send(flip_case(cmd));
     send(" G:");
@@ -445,6 +498,7 @@ void loop() {
   }
 
   // Send out any triggers with autosend and pending data
+  boolean queued = false;
   for (int i = 0; i < TRIGGER_COUNT; i++) {
     boolean should_send = false;
 
@@ -457,9 +511,21 @@ void loop() {
     interrupts();
 
     if (should_send) {
-      send_trigger(copy_trigger);
+      if (serial_over_midi) {
+        send_trigger(copy_trigger);
+      } else if (binary_triggers) {
+        queue_trigger_frame(copy_trigger);
+        queued = true;
+      } else {
+        queue_trigger(copy_trigger);
+        queued = true;
+      }
     }
   }
+  if (queued) {
+    // Text triggers are in send_buffer, frames already went to Serial
+    send_now();
+  }
 
   // Check if we got incoming commands from the host
   if (has_midi) {
@@ -21,15 +21,27 @@ Usage example:
     $ python main.py
 """
 
-import time
+import errno
+import gzip
+import io
 import os
+import re
+import time
+import zlib
 
 try:
-    from bottle import route, template, run, request, static_file
+    from bottle import route, template, run, request, response, static_file
 except:
     print('Could not import bottle! Please install bottle, e.g. pip install bottle')
     raise
 
+# Partial uploads from the app, see UploadQueue.java
+PARTIAL_DIR = 'logs/partial/'
+# Finished markers and abandoned partial uploads are removed after this many seconds
+PARTIAL_MAX_AGE = 7 * 24 * 3600
+READ_SIZE = 64 * 1024
+
+
 @route('/')
 def index():
     if not os.path.isdir('logs/'):
@@ -46,19 +58,140 @@ def static(filename):
     return static_file(filename, root='logs')
 
 
-@route('/upload', method='POST')
-def upload():
-    body = request.body.getvalue()
-    request.body.close()
-    filename = 'logs/' + str(int(time.time()*1000)) + '.txt'
-    if not os.path.exists(os.path.dirname(filename)):
+def make_dirs(path):
+    if not os.path.exists(path):
         try:
-            os.makedirs(os.path.dirname(filename))
+            os.makedirs(path)
         except OSError as e:
             if e.errno != errno.EEXIST:
                 raise
-    with open(filename, 'w') as file:
+
+
+def save_log(body):
+    filename = 'logs/' + str(int(time.time()*1000)) + '.txt'
+    make_dirs(os.path.dirname(filename))
+    with open(filename, 'wb') as file:
         file.write(body)
+
+
+def partial_path(upload_id):
+    # The id is chosen by the app, the install id and a file name, don't let it point anywhere else
+    return PARTIAL_DIR + re.sub(r'[^A-Za-z0-9._-]', '_', upload_id)
+
+
+def received_bytes(upload_id):
+    path = partial_path(upload_id)
+    if os.path.exists(path + '.done'):
+        return int(open(path + '.done').read())
+    if os.path.exists(path):
+        return os.path.getsize(path)
+    return 0
+
+
+def remove_old_partials():
+    if not os.path.isdir(PARTIAL_DIR):
+        return
+    now = time.time()
+    for name in os.listdir(PARTIAL_DIR):
+        path = os.path.join(PARTIAL_DIR, name)
+        try:
+            if now - os.path.getmtime(path) > PARTIAL_MAX_AGE:
+                os.remove(path)
+        except OSError:
+            pass  # Removed by another request
+
+
+def body_chunks():
+    """Yields the request body as it arrives.
+
+    request.body would read all of it before returning, so an upload cut short by a dropped
+    connection would leave nothing to resume from. This reads wsgi.input directly and undoes the
+    chunked transfer encoding the app uses. It stops early if the connection drops.
+    """
+    stream = request.environ['wsgi.input']
+    if 'chunked' in request.environ.get('HTTP_TRANSFER_ENCODING', '').lower():
+        while True:
+            header = stream.readline()
+            if not header:
+                return
+            size = int(header.split(b';')[0].strip(), 16)
+            if size == 0:
+                return
+            while size > 0:
+                chunk = stream.read(min(size, READ_SIZE))
+                if not chunk:
+                    return
+                size -= len(chunk)
+                yield chunk
+            stream.readline()  # CRLF after the chunk data
+    else:
+        left = max(request.content_length, 0)
+        while left > 0:
+            chunk = stream.read(min(left, READ_SIZE))
+            if not chunk:
+                return
+            left -= len(chunk)
+            yield chunk
+
+
+@route('/upload', method='GET')
+def upload_status():
+    """Tells the app how much of an upload it already got, so it can resume."""
+    response.set_header('X-Upload-Offset', str(received_bytes(request.query.get('X-Upload-Id', ''))))
+    return ''
+
+
+@route('/upload', method='POST')
+def upload():
+    upload_id = request.get_header('X-Upload-Id')
+    if not upload_id:
+        # One request per log, as sent by older versions of the app
+        body = request.body.read()
+        request.body.close()
+        if request.get_header('Content-Encoding') == 'gzip':
+            body = gzip.GzipFile(fileobj=io.BytesIO(body)).read()
+        save_log(body)
+        return 'success'
+
+    offset = int(request.get_header('X-Upload-Offset', '0'))
+    length = int(request.get_header('X-Upload-Length', '0'))
+    path = partial_path(upload_id)
+    make_dirs(PARTIAL_DIR)
+    remove_old_partials()
+    if os.path.exists(path + '.done'):
+        # Finished before, the app just didn't get the response
+        return 'success'
+    if offset != received_bytes(upload_id):
+        response.status = 409
+        response.set_header('X-Upload-Offset', str(received_bytes(upload_id)))
+        return 'wrong offset'
+
+    # The body is streamed to the file, what arrived before a dropped connection is kept
+    with open(path, 'r+b' if offset > 0 else 'wb') as file:
+        file.seek(offset)
+        try:
+            for chunk in body_chunks():
+                file.write(chunk)
+        except (IOError, ValueError):
+            pass
+
+    size = os.path.getsize(path)
+    if size < length:
+        response.status = 202
+        response.set_header('X-Upload-Offset', str(size))
+        return 'incomplete'
+    try:
+        with open(path, 'rb') as file:
+            body = gzip.GzipFile(fileobj=file).read()
+    except (IOError, EOFError, zlib.error):
+        # Sending it again won't fix it, let the app give up on it
+        os.remove(path)
+        response.status = 400
+        return 'corrupt upload'
+    save_log(body)
+    os.remove(path)
+    with open(path + '.done', 'w') as file:
+        file.write(str(size))
     return 'success'
 
 